@@ -0,0 +1,459 @@
+package usask.hci.fastdraw.analysis;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import usask.hci.fastdraw.LogFormat;
+
+// Summarizes every study session under a log directory, as StudyLogger leaves them: one
+// "<sid> - <start>" directory per session holding an Event log, in either the text or the binary
+// format. Each file is read in one pass by a fork/join task, the lines taken apart with indexOf
+// and startsWith rather than regexes, and the tasks' totals merged per subject as they join.
+// Writes Subjects.csv, with each subject's selection times, chord versus overlay use and error
+// rate, and Targets.csv, with the same for each target. Runs on a desktop JVM, Java 7 or later:
+// javac -d analysis/bin src/usask/hci/fastdraw/LogFormat.java analysis/src/usask/hci/fastdraw/analysis/*.java
+// java -cp analysis/bin usask.hci.fastdraw.analysis.LogAnalyzer <log dir> [<output dir>]
+//
+// A selection's time runs from the first finger of the latest gesture going down, when no other
+// finger was down, to the target being selected. It is made with the overlay if the overlay was
+// showing at the time, and by chord otherwise. A selection is counted as an error when it corrects
+// an earlier one: another target of the same type was picked since the last stroke began, so the
+// first was never used. An overlay hidden without anything selected from it is counted as a cancel.
+public class LogAnalyzer {
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: LogAnalyzer <log dir> [<output dir>]");
+            System.exit(1);
+        }
+        
+        File logDir = new File(args[0]);
+        File outputDir = args.length == 2 ? new File(args[1]) : logDir;
+        List<File> files = findLogs(logDir);
+        long start = System.nanoTime();
+        
+        Map<Integer, Subject> subjects = new ForkJoinPool().invoke(new AnalyzeTask(files, 0, files.size()));
+        
+        outputDir.mkdirs();
+        writeSubjects(subjects, new File(outputDir, "Subjects.csv"));
+        writeTargets(subjects, new File(outputDir, "Targets.csv"));
+        System.out.println("Analyzed " + files.size() + " logs of " + subjects.size() + " subjects in "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+    
+    // The Event logs in each session directory, text or binary
+    private static List<File> findLogs(File logDir) throws IOException {
+        File[] sessions = logDir.listFiles();
+        
+        if (sessions == null)
+            throw new IOException("Could not list " + logDir);
+        
+        Arrays.sort(sessions);
+        List<File> files = new ArrayList<File>();
+        
+        for (File session : sessions) {
+            File[] logs = session.listFiles();
+            
+            if (logs == null)
+                continue;
+            
+            Arrays.sort(logs);
+            
+            for (File log : logs) {
+                String name = log.getName();
+                
+                if (name.contains(" - Event - ") && (name.endsWith(".txt") || name.endsWith(".bin")))
+                    files.add(log);
+            }
+        }
+        
+        return files;
+    }
+    
+    // Analyzes files from to to, splitting the range in half until each task has one file
+    private static class AnalyzeTask extends RecursiveTask<Map<Integer, Subject>> {
+        private static final long serialVersionUID = 1L;
+        
+        private List<File> mFiles;
+        private int mFrom;
+        private int mTo;
+        
+        public AnalyzeTask(List<File> files, int from, int to) {
+            mFiles = files;
+            mFrom = from;
+            mTo = to;
+        }
+        
+        @Override
+        protected Map<Integer, Subject> compute() {
+            if (mTo - mFrom <= 1) {
+                SessionReader reader = new SessionReader();
+                
+                for (int i = mFrom; i < mTo; i++) {
+                    try {
+                        reader.read(mFiles.get(i));
+                    } catch (IOException e) {
+                        System.err.println("Could not read " + mFiles.get(i) + ": " + e.getMessage());
+                    }
+                }
+                
+                return reader.subjects;
+            }
+            
+            int middle = (mFrom + mTo) >>> 1;
+            AnalyzeTask first = new AnalyzeTask(mFiles, mFrom, middle);
+            first.fork();
+            Map<Integer, Subject> subjects = new AnalyzeTask(mFiles, middle, mTo).compute();
+            
+            for (Subject subject : first.join().values()) {
+                Subject merged = subjects.get(subject.id);
+                
+                if (merged == null)
+                    subjects.put(subject.id, subject);
+                else
+                    merged.merge(subject);
+            }
+            
+            return subjects;
+        }
+    }
+    
+    // Follows one session's events a line at a time, adding them up per subject
+    private static class SessionReader {
+        public Map<Integer, Subject> subjects = new TreeMap<Integer, Subject>();
+        private long mDown; // bit n is set while pointer id n is down
+        private long mGestureStart;
+        private boolean mOverlayShown;
+        private boolean mOverlaySelected; // something was selected while the overlay showed
+        private HashSet<String> mUnusedTypes = new HashSet<String>(); // picked since the last stroke began
+        
+        public void read(File file) throws IOException {
+            mDown = 0;
+            mGestureStart = -1;
+            mOverlayShown = false;
+            mOverlaySelected = false;
+            mUnusedTypes.clear();
+            
+            if (file.getName().endsWith(".bin"))
+                readBinary(file);
+            else
+                readText(file);
+        }
+        
+        private void readText(File file) throws IOException {
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"), 65536);
+            
+            try {
+                String line;
+                
+                while ((line = in.readLine()) != null) {
+                    line(line);
+                }
+            } finally {
+                in.close();
+            }
+        }
+        
+        // Formats each record as the line the text format would have had, without its line break
+        private void readBinary(File file) throws IOException {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+            
+            try {
+                int[] subjectId = new int[1];
+                LogFormat format = LogFormat.readHeader(in, subjectId);
+                StringBuilder line = new StringBuilder();
+                
+                while (format.readRecord(in, subjectId[0], line)) {
+                    int end = line.length();
+                    while (end > 0 && (line.charAt(end - 1) == '\n' || line.charAt(end - 1) == '\r'))
+                        end--;
+                    
+                    line(line.substring(0, end));
+                    line.setLength(0);
+                }
+            } finally {
+                in.close();
+            }
+        }
+        
+        // One "sid,timestamp,message" line. Lines that do not have that shape are skipped.
+        private void line(String line) {
+            int first = line.indexOf(',');
+            int second = first < 0 ? -1 : line.indexOf(',', first + 1);
+            
+            if (second < 0)
+                return;
+            
+            long sid = parseLong(line, 0, first);
+            long time = parseLong(line, first + 1, second);
+            
+            if (sid < 0 || time < 0)
+                return;
+            
+            int message = second + 1;
+            
+            if (line.startsWith("Touch down: ", message)) {
+                long id = parseLong(line, message + 12, line.length());
+                
+                if (id < 0 || id >= 64)
+                    return;
+                
+                if (mDown == 0)
+                    mGestureStart = time;
+                
+                mDown |= 1L << id;
+            } else if (line.startsWith("Touch up: ", message)) {
+                long id = parseLong(line, message + 10, line.length());
+                
+                if (id >= 0 && id < 64)
+                    mDown &= ~(1L << id);
+            } else if (line.startsWith("Overlay shown", message)) {
+                mOverlayShown = true;
+                mOverlaySelected = false;
+            } else if (line.startsWith("Overlay hidden after ", message)) {
+                if (mOverlayShown && !mOverlaySelected)
+                    subject((int) sid).overlayCancels++;
+                
+                mOverlayShown = false;
+            } else if (line.startsWith("Target selected: ", message)) {
+                selected((int) sid, time, line.substring(message + 17));
+            } else if (line.startsWith("Started using tool: ", message)) {
+                mUnusedTypes.clear();
+            } else if (line.startsWith("New session started", message)) {
+                mDown = 0;
+                mGestureStart = -1;
+                mOverlayShown = false;
+                mUnusedTypes.clear();
+            }
+        }
+        
+        // target is "Type / Name"
+        private void selected(int sid, long time, String target) {
+            Subject subject = subject(sid);
+            Target stats = subject.target(target);
+            int slash = target.indexOf(" / ");
+            String type = slash < 0 ? target : target.substring(0, slash);
+            long ms = mGestureStart >= 0 ? time - mGestureStart : -1;
+            
+            stats.add(ms, mOverlayShown);
+            subject.all.add(ms, mOverlayShown);
+            
+            if (mOverlayShown)
+                mOverlaySelected = true;
+            
+            // Actions take effect at once, so only a choice of tool, color or thickness can go unused
+            if (!type.equals("Action") && !mUnusedTypes.add(type)) {
+                stats.errors++;
+                subject.all.errors++;
+            }
+        }
+        
+        private Subject subject(int sid) {
+            Subject subject = subjects.get(sid);
+            
+            if (subject == null) {
+                subject = new Subject(sid);
+                subjects.put(sid, subject);
+            }
+            
+            return subject;
+        }
+        
+        // The digits from start to end as a number, or -1 if there are none or anything else
+        private static long parseLong(String s, int start, int end) {
+            if (start >= end)
+                return -1;
+            
+            long value = 0;
+            
+            for (int i = start; i < end; i++) {
+                char c = s.charAt(i);
+                
+                if (c < '0' || c > '9')
+                    return -1;
+                
+                value = value * 10 + c - '0';
+            }
+            
+            return value;
+        }
+    }
+    
+    private static class Subject {
+        public int id;
+        public Target all = new Target("All");
+        public TreeMap<String, Target> targets = new TreeMap<String, Target>();
+        public int overlayCancels;
+        
+        public Subject(int id) {
+            this.id = id;
+        }
+        
+        public Target target(String name) {
+            Target target = targets.get(name);
+            
+            if (target == null) {
+                target = new Target(name);
+                targets.put(name, target);
+            }
+            
+            return target;
+        }
+        
+        public void merge(Subject other) {
+            all.merge(other.all);
+            overlayCancels += other.overlayCancels;
+            
+            for (Target target : other.targets.values()) {
+                target(target.name).merge(target);
+            }
+        }
+    }
+    
+    // Selections of one target, or of all of them
+    private static class Target {
+        public String name;
+        public int chords;
+        public int overlays;
+        public int errors;
+        public long chordMs;
+        public long overlayMs;
+        public int[] times = new int[16]; // ms, of the selections that could be timed
+        public int timed;
+        
+        public Target(String name) {
+            this.name = name;
+        }
+        
+        // ms is -1 if the selection could not be timed
+        public void add(long ms, boolean overlay) {
+            if (overlay)
+                overlays++;
+            else
+                chords++;
+            
+            if (ms < 0)
+                return;
+            
+            if (overlay)
+                overlayMs += ms;
+            else
+                chordMs += ms;
+            
+            if (timed == times.length)
+                times = Arrays.copyOf(times, timed * 2);
+            
+            times[timed++] = (int) Math.min(ms, Integer.MAX_VALUE);
+        }
+        
+        public void merge(Target other) {
+            chords += other.chords;
+            overlays += other.overlays;
+            errors += other.errors;
+            chordMs += other.chordMs;
+            overlayMs += other.overlayMs;
+            
+            if (timed + other.timed > times.length)
+                times = Arrays.copyOf(times, Math.max(times.length * 2, timed + other.timed));
+            
+            System.arraycopy(other.times, 0, times, timed, other.timed);
+            timed += other.timed;
+        }
+        
+        // The nearest-rank percentile of the timed selections, which must be sorted
+        private String percentile(int percent) {
+            if (timed == 0)
+                return "";
+            
+            return String.valueOf(times[(int) ((timed * (long) percent + 99) / 100) - 1]);
+        }
+        
+        public int selections() {
+            return chords + overlays;
+        }
+        
+        public void writeColumns(Writer out) throws IOException {
+            Arrays.sort(times, 0, timed);
+            
+            long totalMs = chordMs + overlayMs;
+            out.write(selections() + "," + chords + "," + overlays + ","
+                    + divide(chords, selections()) + "," + divide(totalMs, timed) + ","
+                    + percentile(50) + "," + percentile(95) + ","
+                    + errors + "," + divide(errors, selections()));
+        }
+    }
+    
+    private static final String mTargetColumns = "selections,chord_selections,overlay_selections,chord_ratio,"
+            + "mean_ms,median_ms,p95_ms,errors,error_rate";
+    
+    private static void writeSubjects(Map<Integer, Subject> subjects, File file) throws IOException {
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        
+        try {
+            out.write("sid," + mTargetColumns + ",overlay_cancels\n");
+            
+            for (Subject subject : subjects.values()) {
+                out.write(subject.id + ",");
+                subject.all.writeColumns(out);
+                out.write("," + subject.overlayCancels + "\n");
+            }
+        } finally {
+            out.close();
+        }
+    }
+    
+    private static void writeTargets(Map<Integer, Subject> subjects, File file) throws IOException {
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        
+        try {
+            out.write("sid,type,target," + mTargetColumns + "\n");
+            
+            for (Subject subject : subjects.values()) {
+                for (Target target : subject.targets.values()) {
+                    int slash = target.name.indexOf(" / ");
+                    
+                    out.write(subject.id + ",");
+                    
+                    if (slash < 0)
+                        out.write("," + quote(target.name) + ",");
+                    else
+                        out.write(quote(target.name.substring(0, slash)) + "," + quote(target.name.substring(slash + 3)) + ",");
+                    
+                    target.writeColumns(out);
+                    out.write("\n");
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+    
+    // Empty when there is nothing to divide by
+    private static String divide(long count, long total) {
+        return total == 0 ? "" : String.format(Locale.US, "%.3f", (double) count / total);
+    }
+    
+    private static String quote(String field) {
+        if (field.indexOf(',') < 0 && field.indexOf('"') < 0)
+            return field;
+        
+        return "\"" + field.replace("\"", "\"\"") + "\"";
+    }
+}
@@ -0,0 +1,221 @@
+package usask.hci.fastdraw.benchmark;
+
+import java.lang.management.ManagementFactory;
+
+import usask.hci.fastdraw.core.ChordResolver;
+import usask.hci.fastdraw.core.PointerTracker;
+import usask.hci.fastdraw.core.ShapeTracker;
+import usask.hci.fastdraw.core.StrokeBuilder;
+import usask.hci.fastdraw.core.StrokeIndex;
+import usask.hci.fastdraw.core.StrokeSimplifier;
+import usask.hci.fastdraw.core.Viewport;
+
+// Checks that the per-event work of the geometry core allocates nothing once it is warmed up, by
+// counting the bytes this thread allocates while playing whole 10 finger gestures through each
+// part the way the tools' move paths call it. The Android side of those paths is counted by
+// TouchAllocationTest in tests/, which needs a device. Runs on a desktop HotSpot JVM and exits
+// with status 1 if anything allocated:
+// javac -d benchmark/bin src/usask/hci/fastdraw/core/*.java \
+//     benchmark/src/usask/hci/fastdraw/benchmark/AllocationTest.java
+// java -cp benchmark/bin usask.hci.fastdraw.benchmark.AllocationTest
+public class AllocationTest {
+    private static final int mFingers = 10;
+    private static final int mSamples = 480; // per finger per gesture
+    private static final int mBatchSize = 4; // samples per move event, counting the historical ones
+    private static final int mGestures = 50;
+    private static final int mCols = 4; // the app's default grid
+    private static final int mRows = 5;
+    private static final long mChordDelay = 1000 * 1000 * 200; // 200 ms in ns
+    
+    private static com.sun.management.ThreadMXBean mThreads;
+    
+    private float[][] mXs; // each finger's samples, indexed by finger then sample
+    private float[][] mYs;
+    private float[] mBatchXs;
+    private float[] mBatchYs;
+    private float[] mKeptXs;
+    private float[] mKeptYs;
+    private float[] mSegments;
+    private float[] mShape;
+    private PointerTracker mPointers;
+    private StrokeBuilder mStrokes;
+    private StrokeSimplifier mSimplifier;
+    private ShapeTracker mShapes;
+    private ChordResolver mChords;
+    private StrokeIndex mIndex;
+    private Viewport mViewport;
+    private float mSink; // results are summed here so none of the work is optimized away
+    
+    public static void main(String[] args) {
+        mThreads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        mThreads.setThreadAllocatedMemoryEnabled(true);
+        
+        AllocationTest test = new AllocationTest();
+        int failures = 0;
+        
+        for (int part = 0; part < 6; part++) {
+            // The first gestures may grow buffers to their working size
+            for (int i = 0; i < mGestures; i++) {
+                test.play(part);
+            }
+            
+            long before = allocated();
+            
+            for (int i = 0; i < mGestures; i++) {
+                test.play(part);
+            }
+            
+            long bytes = allocated() - before;
+            System.out.println(name(part) + ": " + bytes + " bytes allocated");
+            
+            if (bytes != 0)
+                failures++;
+        }
+        
+        System.exit(failures == 0 ? 0 : 1);
+    }
+    
+    private static long allocated() {
+        return mThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    
+    private static String name(int part) {
+        switch (part) {
+            case 0: return "PointerTracker";
+            case 1: return "StrokeBuilder";
+            case 2: return "StrokeSimplifier";
+            case 3: return "ShapeTracker";
+            case 4: return "ChordResolver";
+            default: return "StrokeIndex and Viewport";
+        }
+    }
+    
+    public AllocationTest() {
+        mXs = new float[mFingers][mSamples];
+        mYs = new float[mFingers][mSamples];
+        
+        for (int finger = 0; finger < mFingers; finger++) {
+            float startY = 40 + finger * 72;
+            
+            for (int i = 0; i < mSamples; i++) {
+                mXs[finger][i] = 40 + i * 5 % 1200;
+                mYs[finger][i] = startY + (float) Math.sin(i / 8.0) * 30;
+            }
+        }
+        
+        mBatchXs = new float[mBatchSize];
+        mBatchYs = new float[mBatchSize];
+        mKeptXs = new float[mBatchSize + 1];
+        mKeptYs = new float[mBatchSize + 1];
+        mSegments = new float[(mBatchSize + 1) * 4];
+        mShape = new float[4];
+        mPointers = new PointerTracker(10);
+        mStrokes = new StrokeBuilder();
+        mSimplifier = new StrokeSimplifier(0.5f);
+        mShapes = new ShapeTracker();
+        mChords = new ChordResolver(mCols, mRows, mChordDelay);
+        mChords.setSize(1280, 800);
+        mIndex = new StrokeIndex(64);
+        mIndex.reset(1280, 800);
+        mViewport = new Viewport(8);
+        mViewport.setSize(1280, 800, 2560, 1600);
+        
+        // Strokes for the eraser's hit tests to find
+        for (int i = 0; i < 200; i++) {
+            float x = i * 37 % 1200;
+            float y = i * 53 % 760;
+            mIndex.add(i, x, y, x + 80, y + 40);
+        }
+    }
+    
+    private void play(int part) {
+        for (int finger = 0; finger < mFingers; finger++) {
+            start(part, finger, mXs[finger][0], mYs[finger][0]);
+        }
+        
+        for (int batch = 0; batch < mSamples / mBatchSize; batch++) {
+            for (int finger = 0; finger < mFingers; finger++) {
+                System.arraycopy(mXs[finger], batch * mBatchSize, mBatchXs, 0, mBatchSize);
+                System.arraycopy(mYs[finger], batch * mBatchSize, mBatchYs, 0, mBatchSize);
+                move(part, finger, batch);
+            }
+        }
+        
+        for (int finger = 0; finger < mFingers; finger++) {
+            if (part == 0)
+                mPointers.up(finger);
+            else if (part == 3)
+                mShapes.stop(finger);
+        }
+    }
+    
+    private void start(int part, int finger, float x, float y) {
+        switch (part) {
+            case 0:
+                mPointers.down(finger);
+                mPointers.arm(finger, x, y);
+                break;
+            
+            case 1:
+                mStrokes.start(finger, x, y);
+                break;
+            
+            case 2:
+                mSimplifier.start(finger, x, y, 4);
+                break;
+            
+            case 3:
+                mShapes.start(finger, x, y);
+                break;
+        }
+    }
+    
+    private void move(int part, int finger, int batch) {
+        switch (part) {
+            case 0:
+                mSink += mPointers.passThreshold(finger, mBatchXs, mBatchYs, mBatchSize);
+                break;
+            
+            case 1:
+                mStrokes.extend(finger, mBatchXs, mBatchYs, mBatchSize, mSegments);
+                mSink += mStrokes.getBounds()[2];
+                break;
+            
+            case 2:
+                mSink += mSimplifier.simplify(finger, mBatchXs, mBatchYs, mBatchSize, mKeptXs, mKeptYs);
+                break;
+            
+            case 3: {
+                // Only the newest sample of each batch moves a shape
+                float x = mBatchXs[mBatchSize - 1];
+                float y = mBatchYs[mBatchSize - 1];
+                mShapes.move(finger, x, y);
+                ShapeTracker.circle(mShapes.getOriginX(finger), mShapes.getOriginY(finger), x, y, mShape);
+                mSink += mShape[2];
+                ShapeTracker.rect(mShapes.getOriginX(finger), mShapes.getOriginY(finger), x, y, mShape);
+                mSink += mShape[2];
+                break;
+            }
+            
+            case 4: {
+                long now = (batch * mFingers + finger) * 4L * 1000 * 1000;
+                mChords.cellTouched(mChords.cellAt(mBatchXs[0], mBatchYs[0]), now);
+                mSink += mChords.resolve(now, now, false);
+                break;
+            }
+            
+            default: {
+                float x = mBatchXs[mBatchSize - 1];
+                float y = mBatchYs[mBatchSize - 1];
+                int hits = mIndex.query(x - 10, y - 10, x + 10, y + 10);
+                
+                for (int i = 0; i < hits; i++) {
+                    mSink += mIndex.getResult(i);
+                }
+                
+                mSink += mViewport.toViewX(x) + mViewport.toViewY(y);
+                break;
+            }
+        }
+    }
+}
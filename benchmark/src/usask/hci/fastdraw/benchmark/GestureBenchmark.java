@@ -0,0 +1,170 @@
+package usask.hci.fastdraw.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import usask.hci.fastdraw.core.ChordResolver;
+import usask.hci.fastdraw.core.PointerTracker;
+import usask.hci.fastdraw.core.ShapeTracker;
+import usask.hci.fastdraw.core.StrokeBuilder;
+
+// Touch events per second through the geometry core, for synthetic gestures of 1 to 10 fingers
+// each drawing a wavy stroke across a 1280x800 screen. Every invocation plays one whole gesture
+// of mEvents samples shared between the fingers: they go down, move in batches as Android
+// delivers them, and lift. Runs on a desktop JVM with the JMH jars on the class path:
+// javac -cp jmh-core.jar:jmh-generator-annprocess.jar -d benchmark/bin \
+//     src/usask/hci/fastdraw/core/*.java benchmark/src/usask/hci/fastdraw/benchmark/*.java
+// java -cp jmh-core.jar:jopt-simple.jar:commons-math3.jar:benchmark/bin org.openjdk.jmh.Main GestureBenchmark
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@OperationsPerInvocation(GestureBenchmark.mEvents)
+public class GestureBenchmark {
+    static final int mEvents = 2400; // divides evenly into batches for every finger count below
+    private static final int mBatchSize = 4; // samples per move event, counting the historical ones
+    private static final int mCols = 4; // the app's default grid
+    private static final int mRows = 5;
+    private static final long mChordDelay = 1000 * 1000 * 200; // 200 ms in ns
+    
+    @Param({"1", "2", "3", "4", "5", "6", "8", "10"})
+    public int fingers;
+    
+    private int mBatches; // move events per finger
+    private float[][] mXs; // each finger's samples, indexed by finger then sample
+    private float[][] mYs;
+    private float[] mBatchXs;
+    private float[] mBatchYs;
+    private float[] mSegments;
+    private float[] mShape;
+    private PointerTracker mPointers;
+    private StrokeBuilder mStrokes;
+    private ShapeTracker mShapes;
+    private ChordResolver mChords;
+    
+    @Setup
+    public void setup() {
+        int samples = mEvents / fingers;
+        mBatches = samples / mBatchSize;
+        mXs = new float[fingers][samples];
+        mYs = new float[fingers][samples];
+        
+        for (int finger = 0; finger < fingers; finger++) {
+            float startY = 40 + finger * 72;
+            
+            // Strokes that would run off the right edge start again at the left
+            for (int i = 0; i < samples; i++) {
+                mXs[finger][i] = 40 + i * 5 % 1200;
+                mYs[finger][i] = startY + (float) Math.sin(i / 8.0) * 30;
+            }
+        }
+        
+        mBatchXs = new float[mBatchSize];
+        mBatchYs = new float[mBatchSize];
+        mSegments = new float[mBatchSize * 4];
+        mShape = new float[4];
+        mPointers = new PointerTracker(10);
+        mStrokes = new StrokeBuilder();
+        mShapes = new ShapeTracker();
+        mChords = new ChordResolver(mCols, mRows, mChordDelay);
+        mChords.setSize(1280, 800);
+    }
+    
+    // The paint tool's work: thresholding, then smoothing every sample into a quadratic segment
+    @Benchmark
+    public void stroke(Blackhole bh) {
+        for (int finger = 0; finger < fingers; finger++) {
+            mPointers.down(finger);
+            mPointers.arm(finger, mXs[finger][0], mYs[finger][0]);
+            mStrokes.start(finger, mXs[finger][0], mYs[finger][0]);
+        }
+        
+        for (int batch = 0; batch < mBatches; batch++) {
+            for (int finger = 0; finger < fingers; finger++) {
+                System.arraycopy(mXs[finger], batch * mBatchSize, mBatchXs, 0, mBatchSize);
+                System.arraycopy(mYs[finger], batch * mBatchSize, mBatchYs, 0, mBatchSize);
+                
+                int start = mPointers.passThreshold(finger, mBatchXs, mBatchYs, mBatchSize);
+                if (start < 0)
+                    continue;
+                
+                // The tool only sees the samples past the threshold, which always start the buffers here
+                if (start > 0) {
+                    System.arraycopy(mBatchXs, start, mBatchXs, 0, mBatchSize - start);
+                    System.arraycopy(mBatchYs, start, mBatchYs, 0, mBatchSize - start);
+                }
+                
+                mStrokes.extend(finger, mBatchXs, mBatchYs, mBatchSize - start, mSegments);
+                bh.consume(mStrokes.getBounds());
+            }
+        }
+        
+        for (int finger = 0; finger < fingers; finger++) {
+            bh.consume(mStrokes.getSampleCount(finger));
+            mPointers.up(finger);
+        }
+        
+        bh.consume(mSegments);
+    }
+    
+    // The circle tool's work: only the newest sample of each batch moves the shape, then it is
+    // recomputed for the preview
+    @Benchmark
+    public void shape(Blackhole bh) {
+        for (int finger = 0; finger < fingers; finger++) {
+            mShapes.start(finger, mXs[finger][0], mYs[finger][0]);
+        }
+        
+        for (int batch = 0; batch < mBatches; batch++) {
+            int last = batch * mBatchSize + mBatchSize - 1;
+            
+            for (int finger = 0; finger < fingers; finger++) {
+                mShapes.move(finger, mXs[finger][last], mYs[finger][last]);
+                ShapeTracker.circle(mShapes.getOriginX(finger), mShapes.getOriginY(finger),
+                        mShapes.getEndX(finger), mShapes.getEndY(finger), mShape);
+                bh.consume(mShape[2]);
+            }
+        }
+        
+        for (int finger = 0; finger < fingers; finger++) {
+            mShapes.getCoords(finger, mShape);
+            mShapes.stop(finger);
+        }
+        
+        bh.consume(mShape);
+    }
+    
+    // Every sample lands as a tap on a grid cell while the overlay button is held, as when choosing
+    // a color and a tool in one chord
+    @Benchmark
+    public void chord(Blackhole bh) {
+        long now = 0;
+        int selected = 0;
+        
+        for (int i = 0; i < mEvents / fingers; i++) {
+            now += 4 * 1000 * 1000;
+            
+            for (int finger = 0; finger < fingers; finger++) {
+                mChords.cellTouched(mChords.cellAt(mXs[finger][i], mYs[finger][i]), now);
+                selected |= mChords.resolve(now, now, false);
+            }
+        }
+        
+        bh.consume(selected);
+    }
+}
@@ -3,13 +3,16 @@ package usask.hci.fastdraw;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Paint.Style;
-import android.graphics.PointF;
-import android.util.SparseArray;
+
+import usask.hci.fastdraw.core.ShapeTracker;
+import usask.hci.fastdraw.core.StrokeGeometry;
 
 public class CircleTool extends Tool {
     private Paint mPaint;
-    private SparseArray<PointF> mOrigins;
-    private SparseArray<PointF> mEnds;
+    private ShapeTracker mShapes;
+    private float[] mStroke;
+    private float[] mCircle; // center x, y and radius
+    private float[] mSvgCircle;
     
     public CircleTool(DrawView drawView) {
         super(drawView);
@@ -19,56 +22,111 @@ public class CircleTool extends Tool {
         mPaint.setDither(true);
         mPaint.setStyle(Style.STROKE);
         
-        mOrigins = new SparseArray<PointF>();
-        mEnds = new SparseArray<PointF>();
+        mShapes = new ShapeTracker();
+        mStroke = new float[4];
+        mCircle = new float[3];
+        mSvgCircle = new float[3];
     }
 
     @Override
     public void touchStart(int id, float x, float y) {
-        mOrigins.put(id, new PointF(x, y));
+        mShapes.start(id, x, y);
     }
 
     @Override
     public void touchMove(int id, float x, float y) {
-        mEnds.put(id, new PointF(x, y));
+        markId(id);
+        mShapes.move(id, x, y);
+        markId(id);
+    }
+    
+    // Only the newest sample affects the shape
+    @Override
+    public void touchMoveBatch(int id, float[] xs, float[] ys, long[] times, int count) {
+        if (count > 0)
+            touchMove(id, xs[count - 1], ys[count - 1]);
     }
 
     @Override
     public void touchStop(int id, float x, float y, Canvas canvas) {
         drawId(id, canvas);
-        mOrigins.delete(id);
-        mEnds.delete(id);
+        
+        if (mShapes.isMoved(id)) {
+            mShapes.getCoords(id, mStroke);
+            record(mStroke, 2);
+        }
+        
+        mShapes.stop(id);
     }
 
     @Override
     public void clearFingers() {
-        mOrigins.clear();
-        mEnds.clear();
+        for (int id = 0; id < 32; id++) {
+            markId(id);
+        }
+        
+        mShapes.clear();
     }
 
     @Override
     public void draw(Canvas canvas) {
-        for (int i = 0; i < mOrigins.size(); i++) {
-            int id = mOrigins.keyAt(i);
+        for (int id = 0; id < 32; id++) {
             drawId(id, canvas);
         }
     }
     
     private void drawId(int id, Canvas canvas) {
-        PointF origin = mOrigins.get(id);
-        PointF end = mEnds.get(id);
+        if (mShapes.isMoved(id))
+            drawCircle(mShapes.getOriginX(id), mShapes.getOriginY(id), mShapes.getEndX(id), mShapes.getEndY(id), getColor(), getThickness(), canvas);
+    }
+    
+    @Override
+    public void replay(float[] coords, int offset, int count, int color, int thickness, Canvas canvas) {
+        drawCircle(coords[offset], coords[offset + 1], coords[offset + 2], coords[offset + 3], color, thickness, canvas);
+    }
+    
+    @Override
+    public float distance(float[] coords, int offset, int count, float x, float y) {
+        ShapeTracker.circle(coords[offset], coords[offset + 1], coords[offset + 2], coords[offset + 3], mCircle);
+        return StrokeGeometry.circle(mCircle[0], mCircle[1], mCircle[2], x, y);
+    }
+    
+    @Override
+    public void getBounds(float[] coords, int offset, int count, float[] out) {
+        ShapeTracker.circle(coords[offset], coords[offset + 1], coords[offset + 2], coords[offset + 3], mCircle);
+        out[0] = mCircle[0] - mCircle[2];
+        out[1] = mCircle[1] - mCircle[2];
+        out[2] = mCircle[0] + mCircle[2];
+        out[3] = mCircle[1] + mCircle[2];
+    }
+    
+    @Override
+    public void writeSvg(float[] coords, int offset, int count, int color, int thickness, StringBuilder out) {
+        ShapeTracker.circle(coords[offset], coords[offset + 1], coords[offset + 2], coords[offset + 3], mSvgCircle);
         
-        if (end != null) {
-            float dx = origin.x - end.x;
-            float dy = origin.y - end.y;
-            float dist = (float)Math.sqrt(dx*dx + dy*dy);
-            
-            float midX = (origin.x + end.x) / 2;
-            float midY = (origin.y + end.y) / 2;
+        out.append("<circle cx=\"");
+        SvgExporter.appendNumber(out, mSvgCircle[0]);
+        out.append("\" cy=\"");
+        SvgExporter.appendNumber(out, mSvgCircle[1]);
+        out.append("\" r=\"");
+        SvgExporter.appendNumber(out, mSvgCircle[2]);
+        out.append('"');
+        SvgExporter.appendStroke(out, color, thickness);
+        out.append("/>");
+    }
+    
+    private void drawCircle(float x1, float y1, float x2, float y2, int color, int thickness, Canvas canvas) {
+        ShapeTracker.circle(x1, y1, x2, y2, mCircle);
             
-            mPaint.setColor(getColor());
-            mPaint.setStrokeWidth(getThickness());
-            canvas.drawCircle(midX, midY, dist / 2, mPaint);
+        mPaint.setColor(color);
+        mPaint.setStrokeWidth(thickness);
+        canvas.drawCircle(mCircle[0], mCircle[1], mCircle[2], mPaint);
+    }
+    
+    private void markId(int id) {
+        if (mShapes.isMoved(id)) {
+            ShapeTracker.circle(mShapes.getOriginX(id), mShapes.getOriginY(id), mShapes.getEndX(id), mShapes.getEndY(id), mCircle);
+            markDirty(mCircle[0] - mCircle[2], mCircle[1] - mCircle[2], mCircle[0] + mCircle[2], mCircle[1] + mCircle[2]);
         }
     }
 }
@@ -0,0 +1,647 @@
+package usask.hci.fastdraw;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+
+import usask.hci.fastdraw.core.RunLengthCodec;
+import usask.hci.fastdraw.core.StrokeIndex;
+
+// Append-only record of every committed stroke, grouped into one level per gesture. The
+// drawing can be rebuilt from it at any level, starting from the nearest raster checkpoint, kept
+// run-length encoded in a direct buffer and decoded straight into the bitmap being rebuilt.
+// The strokes visible at the current level are kept in a spatial index, so strokes can be hit
+// tested and erased, and an erased stroke's area repainted, without going through all of them.
+// A journal, if there is one, is told of every level as it is closed, undone or redone.
+// Everything except the constructor and hit testing must be called with the bitmap lock held.
+public class CommandLog {
+    public static final byte STROKE = 0;
+    public static final byte CLEAR = 1;
+    public static final byte ERASE = 2;
+    
+    private Tool[] mTools;
+    private Object mBitmapLock;
+    private byte[] mTypes;
+    private byte[] mToolIndices;
+    private int[] mColors;
+    private int[] mThicknesses;
+    private int[] mOffsets;
+    private int[] mPointCounts;
+    private int[] mTargets; // the stroke each ERASE erased
+    private int[] mErasedBy; // the ERASE that erased each stroke, or -1
+    private int mSize;
+    private float[] mCoords;
+    private int mCoordCount;
+    private int[] mLevelStarts; // level i spans commands mLevelStarts[i] to mLevelStarts[i + 1]
+    private int mLevelCount;
+    private int mLevelTotal;
+    private int mRewrites;
+    private ByteBuffer[] mCheckpoints;
+    private int[] mCheckpointWidths;
+    private int[] mCheckpointHeights;
+    private int[] mCheckpointLevels;
+    private int mLastCheckpointSize;
+    private ExecutorService mExecutor;
+    private StrokeIndex mIndex;
+    private float[] mBounds;
+    private int[] mHits;
+    private int[] mRows; // a band of pixels being encoded or decoded
+    private ByteBuffer mEncoded;
+    private SnapshotStats mStats;
+    private Journal mJournal; // null if the drawing is not autosaved
+    private static final int mCellSize = 64; // matches the undo history's tiles
+    private static final int mCheckpointInterval = 64; // commands between raster checkpoints
+    private static final int mMaxCheckpoints = 2;
+    private static final int mBandRows = 64;
+    
+    public CommandLog(Tool[] tools, Object bitmapLock, SnapshotStats stats) {
+        mTools = tools;
+        mBitmapLock = bitmapLock;
+        mStats = stats;
+        mTypes = new byte[256];
+        mToolIndices = new byte[256];
+        mColors = new int[256];
+        mThicknesses = new int[256];
+        mOffsets = new int[256];
+        mPointCounts = new int[256];
+        mTargets = new int[256];
+        mErasedBy = new int[256];
+        mCoords = new float[4096];
+        mLevelStarts = new int[256];
+        mCheckpoints = new ByteBuffer[mMaxCheckpoints];
+        mCheckpointWidths = new int[mMaxCheckpoints];
+        mCheckpointHeights = new int[mMaxCheckpoints];
+        mCheckpointLevels = new int[mMaxCheckpoints];
+        Arrays.fill(mCheckpointLevels, -1);
+        mExecutor = Executors.newSingleThreadExecutor();
+        mIndex = new StrokeIndex(mCellSize);
+        mBounds = new float[4];
+        mHits = new int[16];
+    }
+    
+    public void setJournal(Journal journal) {
+        mJournal = journal;
+    }
+    
+    // Records a completed stroke as count packed x, y pairs
+    public void appendStroke(Tool tool, int color, int thickness, float[] coords, int count) {
+        int toolIndex = 0;
+        while (mTools[toolIndex] != tool)
+            toolIndex++;
+        
+        int i = append(STROKE, color, thickness);
+        mToolIndices[i] = (byte) toolIndex;
+        mPointCounts[i] = count;
+        
+        if (mCoordCount + count * 2 > mCoords.length)
+            mCoords = Arrays.copyOf(mCoords, Math.max(mCoords.length * 2, mCoordCount + count * 2));
+        
+        System.arraycopy(coords, 0, mCoords, mCoordCount, count * 2);
+        mCoordCount += count * 2;
+        index(i);
+    }
+    
+    public void appendClear() {
+        append(CLEAR, 0, 0);
+        mIndex.clear();
+    }
+    
+    // Erases a visible stroke and repaints the cells it covered on canvas from the strokes still
+    // there, unless canvas is null. Does nothing if the stroke is not visible, e.g. when two fingers
+    // erased it.
+    public void erase(int command, Canvas canvas) {
+        if (!mIndex.contains(command))
+            return;
+        
+        getEraseBounds(command, mBounds);
+        
+        int i = append(ERASE, 0, 0);
+        mTargets[i] = command;
+        mErasedBy[command] = i;
+        mIndex.remove(command);
+        
+        if (canvas != null)
+            repaint(canvas, mBounds);
+    }
+    
+    // Appends a command read back from a journal, as it was first recorded. Returns false if it
+    // could not have been recorded, e.g. its tool or the stroke it erased does not exist.
+    public boolean restore(byte type, int toolIndex, int color, int thickness, int target, float[] coords, int count) {
+        switch (type) {
+            case STROKE:
+                if (toolIndex < 0 || toolIndex >= mTools.length)
+                    return false;
+                
+                appendStroke(mTools[toolIndex], color, thickness, coords, count);
+                return true;
+            
+            case CLEAR:
+                appendClear();
+                return true;
+            
+            case ERASE:
+                if (target < 0 || target >= mSize || mTypes[target] != STROKE)
+                    return false;
+                
+                erase(target, null);
+                return true;
+            
+            default:
+                return false;
+        }
+    }
+    
+    // Finds the visible strokes passing within radius of x, y and returns how many there are,
+    // newest first. May be called without the bitmap lock, on the thread that changes the log.
+    public int hitTest(float x, float y, float radius) {
+        synchronized (mBitmapLock) {
+            int count = mIndex.query(x - radius, y - radius, x + radius, y + radius);
+            int hits = 0;
+            
+            for (int k = count - 1; k >= 0; k--) {
+                int i = mIndex.getResult(k);
+                
+                if (mTools[mToolIndices[i]].distance(mCoords, mOffsets[i], mPointCounts[i], x, y) > mThicknesses[i] / 2f + radius)
+                    continue;
+                
+                if (hits == mHits.length)
+                    mHits = Arrays.copyOf(mHits, hits * 2);
+                
+                mHits[hits++] = i;
+            }
+            
+            return hits;
+        }
+    }
+    
+    // The k-th stroke found by the last hitTest
+    public int getHit(int k) {
+        return mHits[k];
+    }
+    
+    // Writes the area erasing a visible stroke repaints, the cells its bounds overlap, as left,
+    // top, right, bottom. May be called like hitTest.
+    public void getEraseBounds(int command, float[] out) {
+        synchronized (mBitmapLock) {
+            mIndex.getBounds(command, out);
+            mIndex.getCellBounds(out[0], out[1], out[2], out[3], out);
+        }
+    }
+    
+    // Drops every command and checkpoint, for when the canvas is replaced by one of the given size
+    public void reset(int width, int height) {
+        mIndex.reset(width, height);
+        mSize = 0;
+        mCoordCount = 0;
+        mRewrites++;
+        mLevelCount = 0;
+        mLevelTotal = 0;
+        mLastCheckpointSize = 0;
+        Arrays.fill(mCheckpoints, null);
+        Arrays.fill(mCheckpointLevels, -1);
+        
+        if (mJournal != null)
+            mJournal.reset(width, height);
+    }
+    
+    private int append(byte type, int color, int thickness) {
+        // A new command discards everything that could have been redone
+        if (mLevelCount < mLevelTotal) {
+            // Strokes erased only by discarded commands are no longer erased
+            for (int i = mLevelStarts[mLevelCount]; i < mSize; i++) {
+                if (mTypes[i] == ERASE && mErasedBy[mTargets[i]] == i)
+                    mErasedBy[mTargets[i]] = -1;
+            }
+            
+            mSize = mLevelStarts[mLevelCount];
+            mRewrites++;
+            mCoordCount = mSize < 1 ? 0 : mOffsets[mSize - 1] + mPointCounts[mSize - 1] * 2;
+            mLevelTotal = mLevelCount;
+            mLastCheckpointSize = Math.min(mLastCheckpointSize, mSize);
+            
+            for (int i = 0; i < mMaxCheckpoints; i++) {
+                if (mCheckpointLevels[i] > mLevelCount)
+                    mCheckpointLevels[i] = -1;
+            }
+        }
+        
+        if (mSize == mTypes.length) {
+            int length = mSize * 2;
+            mTypes = Arrays.copyOf(mTypes, length);
+            mToolIndices = Arrays.copyOf(mToolIndices, length);
+            mColors = Arrays.copyOf(mColors, length);
+            mThicknesses = Arrays.copyOf(mThicknesses, length);
+            mOffsets = Arrays.copyOf(mOffsets, length);
+            mPointCounts = Arrays.copyOf(mPointCounts, length);
+            mTargets = Arrays.copyOf(mTargets, length);
+            mErasedBy = Arrays.copyOf(mErasedBy, length);
+        }
+        
+        int i = mSize++;
+        mTypes[i] = type;
+        mToolIndices[i] = 0;
+        mColors[i] = color;
+        mThicknesses[i] = thickness;
+        mOffsets[i] = mCoordCount;
+        mPointCounts[i] = 0;
+        mTargets[i] = -1;
+        mErasedBy[i] = -1;
+        return i;
+    }
+    
+    // Closes the current gesture. Returns its level, or -1 if it recorded nothing. Without a
+    // bitmap no raster checkpoint is taken.
+    public int endGesture(final Bitmap bitmap) {
+        if (mLevelCount < mLevelTotal || mSize == mLevelStarts[mLevelCount])
+            return -1;
+        
+        if (mLevelTotal + 1 == mLevelStarts.length)
+            mLevelStarts = Arrays.copyOf(mLevelStarts, mLevelStarts.length * 2);
+        
+        final int level = mLevelCount;
+        mLevelStarts[level + 1] = mSize;
+        mLevelCount++;
+        mLevelTotal++;
+        
+        if (mJournal != null)
+            mJournal.gesture(this, mLevelStarts[level], mSize);
+        
+        if (bitmap != null && mSize - mLastCheckpointSize >= mCheckpointInterval) {
+            mLastCheckpointSize = mSize;
+            
+            // The copy is taken off the touch thread, and only if nothing was drawn in the meantime
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (mBitmapLock) {
+                        if (mLevelTotal == level + 1 && mLevelCount == mLevelTotal && mSize == mLevelStarts[mLevelTotal])
+                            checkpoint(bitmap, mLevelTotal);
+                    }
+                }
+            });
+        }
+        
+        return level;
+    }
+    
+    // Keeps an encoded copy of bitmap as the state after the given number of levels, reusing the
+    // oldest one's buffer
+    private void checkpoint(Bitmap bitmap, int levels) {
+        int oldest = 0;
+        for (int i = 1; i < mMaxCheckpoints; i++) {
+            if (mCheckpointLevels[i] < mCheckpointLevels[oldest])
+                oldest = i;
+        }
+        
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        ByteBuffer checkpoint = mCheckpoints[oldest];
+        
+        if (checkpoint != null)
+            checkpoint.clear();
+        
+        if (mRows == null || mRows.length != width * mBandRows) {
+            mRows = new int[width * mBandRows];
+            mEncoded = ByteBuffer.allocate(RunLengthCodec.maxEncodedSize(width, mBandRows));
+        }
+        
+        for (int y = 0; y < height; y += mBandRows) {
+            int rows = Math.min(mBandRows, height - y);
+            bitmap.getPixels(mRows, 0, width, 0, y, width, rows);
+            
+            long start = System.nanoTime();
+            mEncoded.clear();
+            RunLengthCodec.encode(mRows, 0, width, width, rows, mEncoded);
+            mEncoded.flip();
+            mStats.encoded(width * rows * 4, mEncoded.remaining(), System.nanoTime() - start);
+            
+            // Grows by doubling, so a busy picture settles on a buffer that fits it
+            if (checkpoint == null || checkpoint.remaining() < mEncoded.remaining()) {
+                int size = checkpoint == null ? 0 : checkpoint.capacity();
+                ByteBuffer grown = ByteBuffer.allocateDirect(Math.max(size * 2, size + mEncoded.remaining()));
+                
+                if (checkpoint != null) {
+                    checkpoint.flip();
+                    grown.put(checkpoint);
+                }
+                
+                checkpoint = grown;
+            }
+            
+            checkpoint.put(mEncoded);
+        }
+        
+        checkpoint.flip();
+        mCheckpoints[oldest] = checkpoint;
+        mCheckpointWidths[oldest] = width;
+        mCheckpointHeights[oldest] = height;
+        mCheckpointLevels[oldest] = levels;
+    }
+    
+    // Decodes checkpoint i into bitmap
+    private void restore(int i, Bitmap bitmap) {
+        int width = mCheckpointWidths[i];
+        int height = mCheckpointHeights[i];
+        ByteBuffer checkpoint = mCheckpoints[i];
+        long time = 0;
+        
+        checkpoint.rewind();
+        
+        for (int y = 0; y < height; y += mBandRows) {
+            int rows = Math.min(mBandRows, height - y);
+            
+            long start = System.nanoTime();
+            RunLengthCodec.decode(checkpoint, mRows, 0, width, width, rows);
+            time += System.nanoTime() - start;
+            
+            bitmap.setPixels(mRows, 0, width, 0, y, width, rows);
+        }
+        
+        mStats.decoded(time);
+    }
+    
+    // Number of levels currently applied
+    public int getLevelCount() {
+        return mLevelCount;
+    }
+    
+    public boolean canUndo() {
+        return mLevelCount > 0;
+    }
+    
+    public boolean canRedo() {
+        return mLevelCount < mLevelTotal;
+    }
+    
+    // Steps back a level. If bitmap is not null it is rebuilt by replaying from the nearest
+    // checkpoint; pass null when the pixels were already restored some other way.
+    public void undo(Bitmap bitmap) {
+        if (mLevelCount == 0)
+            return;
+        
+        mLevelCount--;
+        
+        if (mJournal != null)
+            mJournal.undo();
+        
+        boolean cleared = false;
+        
+        for (int i = mLevelStarts[mLevelCount + 1] - 1; i >= mLevelStarts[mLevelCount]; i--) {
+            switch (mTypes[i]) {
+                case STROKE:
+                    mIndex.remove(i);
+                    break;
+                
+                case CLEAR:
+                    cleared = true;
+                    break;
+                
+                case ERASE:
+                    index(mTargets[i]);
+                    break;
+            }
+        }
+        
+        // The strokes from before the clear are visible again
+        if (cleared)
+            rebuildIndex();
+        
+        if (bitmap != null)
+            replay(bitmap, mLevelCount);
+    }
+    
+    // Steps forward a level, drawing its commands onto bitmap unless it is null
+    public void redo(Bitmap bitmap) {
+        if (mLevelCount == mLevelTotal)
+            return;
+        
+        if (mJournal != null)
+            mJournal.redo();
+        
+        Canvas canvas = bitmap != null ? new Canvas(bitmap) : null;
+            
+        for (int i = mLevelStarts[mLevelCount]; i < mLevelStarts[mLevelCount + 1]; i++) {
+            switch (mTypes[i]) {
+                case STROKE:
+                    index(i);
+                    
+                    if (canvas != null)
+                        draw(i, canvas);
+                    break;
+                
+                case CLEAR:
+                    mIndex.clear();
+                    
+                    if (canvas != null)
+                        draw(i, canvas);
+                    break;
+                
+                case ERASE:
+                    if (canvas != null)
+                        getEraseBounds(mTargets[i], mBounds);
+                    
+                    mIndex.remove(mTargets[i]);
+                    
+                    if (canvas != null)
+                        repaint(canvas, mBounds);
+                    break;
+            }
+        }
+        
+        mLevelCount++;
+    }
+    
+    // Rebuilds bitmap as it was after the given number of levels
+    public void replay(Bitmap bitmap, int levels) {
+        int end = mLevelStarts[levels];
+        int start = firstVisible(end);
+        int base = -1;
+        
+        for (int i = 0; i < mMaxCheckpoints; i++) {
+            int checkpointLevel = mCheckpointLevels[i];
+            
+            if (checkpointLevel > 0 && checkpointLevel <= levels && mLevelStarts[checkpointLevel] > start
+                    && mCheckpointWidths[i] == bitmap.getWidth() && mCheckpointHeights[i] == bitmap.getHeight()
+                    && !erasesBefore(mLevelStarts[checkpointLevel], end)) {
+                start = mLevelStarts[checkpointLevel];
+                base = i;
+            }
+        }
+        
+        Canvas canvas = new Canvas(bitmap);
+        
+        if (base != -1)
+            restore(base, bitmap);
+        else
+            canvas.drawRGB(0xFF, 0xFF, 0xFF);
+        
+        for (int i = start; i < end; i++) {
+            if (!isErased(i, end))
+                draw(i, canvas);
+        }
+    }
+    
+    // The first command after the last clear among the first end commands, where drawing them
+    // from a blank canvas can start
+    public int firstVisible(int end) {
+        for (int i = end - 1; i >= 0; i--) {
+            if (mTypes[i] == CLEAR)
+                return i + 1;
+        }
+        
+        return 0;
+    }
+    
+    // Whether command i is a stroke erased by one of the first end commands
+    public boolean isErased(int i, int end) {
+        return mErasedBy[i] != -1 && mErasedBy[i] < end;
+    }
+    
+    // Whether any command from start to end erases a stroke from before start, which a checkpoint
+    // taken at start would still show
+    private boolean erasesBefore(int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (mTypes[i] == ERASE && mTargets[i] < start)
+                return true;
+        }
+        
+        return false;
+    }
+    
+    // Adds stroke i to the index, with its bounds padded for its thickness and anti-aliasing
+    private void index(int i) {
+        getPaintBounds(i, mBounds);
+        mIndex.add(i, mBounds[0], mBounds[1], mBounds[2], mBounds[3]);
+    }
+    
+    // Indexes every stroke visible at the current level
+    private void rebuildIndex() {
+        int end = size();
+        int start = firstVisible(end);
+        
+        mIndex.clear();
+        
+        for (int i = start; i < end; i++) {
+            if (mTypes[i] == STROKE && !isErased(i, end))
+                index(i);
+        }
+    }
+    
+    private void repaint(Canvas canvas, float[] area) {
+        repaint(canvas, area[0], area[1], area[2], area[3]);
+    }
+    
+    // Redraws the area from the strokes visible at the current level that overlap it
+    public void repaint(Canvas canvas, float left, float top, float right, float bottom) {
+        canvas.save();
+        canvas.clipRect(left, top, right, bottom);
+        canvas.drawRGB(0xFF, 0xFF, 0xFF);
+        
+        int count = mIndex.query(left, top, right, bottom);
+        
+        for (int k = 0; k < count; k++) {
+            draw(mIndex.getResult(k), canvas);
+        }
+        
+        canvas.restore();
+    }
+    
+    // Writes the area drawing command i with paint() changes as left, top, right, bottom. Only
+    // for strokes and erases; a clear changes everything.
+    public void getPaintBounds(int i, float[] out) {
+        if (mTypes[i] == ERASE) {
+            mIndex.getBounds(mTargets[i], out);
+            mIndex.getCellBounds(out[0], out[1], out[2], out[3], out);
+        } else {
+            mTools[mToolIndices[i]].getBounds(mCoords, mOffsets[i], mPointCounts[i], out);
+            float pad = mThicknesses[i] / 2f + 2;
+            out[0] -= pad;
+            out[1] -= pad;
+            out[2] += pad;
+            out[3] += pad;
+        }
+    }
+    
+    // Draws command i as it was first drawn, for drawing into something other than the canvas the
+    // tool was given. An erase repaints the area its stroke covered.
+    public void paint(int i, Canvas canvas) {
+        if (mTypes[i] == ERASE) {
+            getPaintBounds(i, mBounds);
+            repaint(canvas, mBounds);
+        } else {
+            draw(i, canvas);
+        }
+    }
+    
+    private void draw(int i, Canvas canvas) {
+        switch (mTypes[i]) {
+            case STROKE:
+                mTools[mToolIndices[i]].replay(mCoords, mOffsets[i], mPointCounts[i], mColors[i], mThicknesses[i], canvas);
+                break;
+            
+            case CLEAR:
+                canvas.drawRGB(0xFF, 0xFF, 0xFF);
+                break;
+        }
+    }
+    
+    // Number of commands in the applied levels
+    public int size() {
+        return mLevelStarts[mLevelCount];
+    }
+    
+    // Changes whenever recorded commands are dropped, so their indices may be reused. Lets a reader
+    // that goes through the commands a few at a time, taking the bitmap lock for each batch, tell
+    // that the ones it has not read yet are no longer those it started with.
+    public int getRewrites() {
+        return mRewrites;
+    }
+    
+    // Number of commands recorded, including those of the gesture in progress
+    public int count() {
+        return mSize;
+    }
+    
+    public byte getType(int i) {
+        return mTypes[i];
+    }
+    
+    public Tool getTool(int i) {
+        return mTools[mToolIndices[i]];
+    }
+    
+    // The tool's place in the array the log was made with
+    public int getToolIndex(int i) {
+        return mToolIndices[i];
+    }
+    
+    public int getColor(int i) {
+        return mColors[i];
+    }
+    
+    public int getThickness(int i) {
+        return mThicknesses[i];
+    }
+    
+    // The stroke an ERASE command erased
+    public int getTarget(int i) {
+        return mTargets[i];
+    }
+    
+    public int getPointCount(int i) {
+        return mPointCounts[i];
+    }
+    
+    // The x, y pairs of command i start at getOffset(i) in getCoords()
+    public int getOffset(int i) {
+        return mOffsets[i];
+    }
+    
+    public float[] getCoords() {
+        return mCoords;
+    }
+}
@@ -1,9 +1,8 @@
 package usask.hci.fastdraw;
 
-import java.util.HashSet;
-import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
 
 import android.app.AlertDialog;
 import android.content.Context;
@@ -15,58 +14,111 @@ import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Paint.Align;
 import android.graphics.Paint.Style;
-import android.graphics.PointF;
 import android.graphics.Rect;
 import android.graphics.RectF;
+import android.graphics.Region;
 import android.util.Log;
-import android.util.SparseArray;
 import android.view.MotionEvent;
+import android.view.SurfaceView;
 import android.view.View;
+import android.view.ViewGroup;
 import android.widget.CheckBox;
 import android.widget.NumberPicker;
+import android.widget.RadioGroup;
+
+import usask.hci.fastdraw.core.ChordResolver;
+import usask.hci.fastdraw.core.PointerTracker;
+import usask.hci.fastdraw.core.Viewport;
 
 public class DrawView extends View {
     private MainActivity mMainActivity;
     private StudyLogger mLog;
-    private Bitmap mBitmap;
+    private PictureSaver mSaver;
+    private SvgExporter mSvgExporter;
+    private boolean mSaveSvg; // saves go to mSvgExporter rather than mSaver
+    private Bitmap mBitmap; // null in palette mode
+    private PaletteCanvas mPalette; // replaces the bitmap in palette mode, otherwise null
+    private boolean mPaletteMode;
+    private TiledCanvas mTiles; // replaces the bitmap for a canvas larger than the view, otherwise null
+    private boolean mLargeCanvas;
+    private long mTileStoreBudget; // bytes of compressed canvas tiles out of view, chosen in the study setup
+    private Viewport mViewport; // only used on the thread that runs the tools
+    private boolean mViewportChanged;
+    private RectF mVisible;
+    private Rect mVisibleBounds;
+    private Rect mCanvasClip;
+    private Paint mZoomPaint;
+    private Canvas mNullCanvas; // what tools draw into in palette and tiled mode, since it keeps nothing
+    private PaletteCanvas.Painter mCommandPainter;
+    private PaletteCanvas.Painter mRepaintPainter;
+    private int mPaintCommand;
+    private float[] mPaintBounds;
     private Object mBitmapLock;
     private Paint mBitmapPaint;
     private final int mCols = 4;
-    private final int mRows = 5;
+    private int mRows;
     private float mColWidth;
     private float mRowHeight;
     private boolean mShowOverlay;
     private long mOverlayStart;
     private Paint mPaint;
-    private int mSelected;
     private long mPressedInsideTime;
     private int mFingerInside;
     private boolean mCheckOverlay;
-    private Set<Integer> mFingers;
-    private Set<Integer> mIgnoredFingers;
+    private PointerTracker mPointers;
+    private ChordResolver mChords;
     private Selection[] mSelections;
+    private Selection[] mExtendedSelections; // with the extra row, which mSelections is set to when chosen
     private Tool mTool;
+    private PaintTool mPaintTool;
+    private FillTool mFillTool;
     private int mColor;
     private int mThickness;
     private String mToolName;
     private String mColorName;
     private String mThicknessName;
-    private Bitmap mUndo;
-    private Bitmap mNextUndo;
+    private int mToolSelection;
+    private int mColorSelection;
+    private int mThicknessSelection;
+    private UndoHistory mHistory;
+    private CommandLog mCommandLog;
     private boolean mLeftHanded;
-    private final float mThreshold = 10; // pixel distance before tool registers
-    private SparseArray<PointF> mOrigins;
     private boolean mPermanentGrid;
     private Rect mTextBounds;
-    private SparseArray<Long> mFlashTimes;
-    private SparseArray<Long> mRecentTouches;
-    private boolean mChanged;
+    private long[] mFlashTimes; // indexed by selection; the grid has fewer than 32 cells
+    private int mFlashing;
+    private RectF mDirty;
+    private RectF mToolDirty;
+    private Rect mDirtyBounds;
+    private Rect mClipBounds;
+    private RectF mButtonBounds;
+    private RectF mOverlayBounds;
+    private Bitmap mOverlayLayer; // every selection's icon and label, drawn once per layout
+    private boolean mOverlayLayerValid;
+    private Runnable mDeadlineTask;
+    private long mDeadline; // when mDeadlineTask is due, or Long.MAX_VALUE when it is not scheduled
+    private Canvas mBitmapCanvas;
+    private float[] mBatchXs;
+    private float[] mBatchYs;
+    private long[] mBatchTimes;
+    private RenderThread mRenderThread; // null while the tools run and draw on the UI thread
+    private LatencyMonitor mLatency; // used by whichever thread draws the picture
+    private SnapshotStats mSnapshotStats;
+    private Journal mJournal;
+    private FrameStats mFrameStats;
+    private boolean mShowHud;
+    private InputRecorder mRecorder; // null unless raw input is being recorded
+    private long mReplayTime; // the clock while a replay runs faster than real time, or -1
+    private static final float mThreshold = 10; // pixel distance before tool registers
     private static final int mChordDelay = 1000 * 1000 * 200; // 200 ms in ns
     private static final int mFlashDelay = 1000 * 1000 * 500; // 500 ms in ns
-    private static final int mOverlayButtonIndex = 16;
+    private int mOverlayButtonIndex;
+    private static final int mUndoBudget = 32 * 1024 * 1024; // bytes of saved tiles, as encoded
+    private static final int mLargeCanvasScreens = 2; // the large canvas' size in views, on each side
+    private static final float mMaxZoom = 4;
     
     private enum Action {
-        SAVE, CLEAR, UNDO
+        SAVE, CLEAR, UNDO, REDO
     }
 
     private enum SelectionType {
@@ -78,12 +130,14 @@ public class DrawView extends View {
         public String name;
         public SelectionType type;
         public Bitmap icon;
+        public int textHeight;
         
         public Selection(Object object, String name, int iconResource, SelectionType type) {
             this.object = object;
             this.name = name;
             this.type = type;
             this.icon = BitmapFactory.decodeResource(getResources(), iconResource);
+            this.textHeight = getTextHeight(name, mPaint);
         }
     }
 
@@ -98,29 +152,70 @@ public class DrawView extends View {
         mMainActivity = (MainActivity) mainActivity;
         mLog = new StudyLogger(mainActivity);
         mBitmapLock = new Object();
+        mSaver = new PictureSaver(mLog, mBitmapLock);
+        mSvgExporter = new SvgExporter(mLog, mBitmapLock);
+        mLatency = new LatencyMonitor();
+        mFrameStats = new FrameStats(mLog, mMainActivity.getWindowManager().getDefaultDisplay().getRefreshRate());
         mBitmapPaint = new Paint(Paint.DITHER_FLAG);
+        mZoomPaint = new Paint(Paint.DITHER_FLAG | Paint.FILTER_BITMAP_FLAG);
+        mViewport = new Viewport(mMaxZoom);
+        mVisible = new RectF();
+        mVisibleBounds = new Rect();
+        mCanvasClip = new Rect();
         mPaint = new Paint();
         mPaint.setTextSize(26);
         mPaint.setTextAlign(Align.CENTER);
         mPaint.setAntiAlias(true);
-        mSelected = -1;
         mFingerInside = -1;
         mCheckOverlay = true;
-        mFingers = new HashSet<Integer>();
-        mIgnoredFingers = new HashSet<Integer>();
         mLeftHanded = false;
         mPermanentGrid = false;
-        mOrigins = new SparseArray<PointF>();
+        mPointers = new PointerTracker(mThreshold);
         mTextBounds = new Rect();
-        mFlashTimes = new SparseArray<Long>();
-        mRecentTouches = new SparseArray<Long>();
-        mChanged = false;
-        
-        mSelections = new Selection[] {
-            new Selection(new PaintTool(this), "Paintbrush", R.drawable.paintbrush, SelectionType.TOOL),
-            new Selection(new LineTool(this), "Line", R.drawable.line, SelectionType.TOOL),
-            new Selection(new CircleTool(this), "Circle", R.drawable.circle, SelectionType.TOOL),
-            new Selection(new RectangleTool(this), "Rectangle", R.drawable.rectangle, SelectionType.TOOL),
+        mSnapshotStats = new SnapshotStats();
+        mHistory = new UndoHistory(mBitmapLock, mUndoBudget, mSnapshotStats);
+        mTileStoreBudget = 24 * 1024 * 1024;
+        mDirty = new RectF();
+        mToolDirty = new RectF();
+        mPaintBounds = new float[4];
+        
+        mCommandPainter = new PaletteCanvas.Painter() {
+            @Override
+            public void paint(Canvas canvas, float left, float top, float right, float bottom) {
+                mCommandLog.paint(mPaintCommand, canvas);
+            }
+        };
+        
+        mRepaintPainter = new PaletteCanvas.Painter() {
+            @Override
+            public void paint(Canvas canvas, float left, float top, float right, float bottom) {
+                mCommandLog.repaint(canvas, left, top, right, bottom);
+            }
+        };
+        
+        mDirtyBounds = new Rect();
+        mClipBounds = new Rect();
+        mButtonBounds = new RectF();
+        mOverlayBounds = new RectF();
+        mBatchXs = new float[16];
+        mBatchYs = new float[16];
+        mBatchTimes = new long[16];
+        mPaintTool = new PaintTool(this);
+        
+        Tool lineTool = new LineTool(this);
+        Tool circleTool = new CircleTool(this);
+        Tool rectangleTool = new RectangleTool(this);
+        Tool eraserTool = new EraserTool(this);
+        mFillTool = new FillTool(this);
+        mCommandLog = new CommandLog(new Tool[] { mPaintTool, lineTool, circleTool, rectangleTool, mFillTool }, mBitmapLock, mSnapshotStats);
+        mJournal = new Journal(mMainActivity.getJournalFile());
+        mCommandLog.setJournal(mJournal);
+        
+        mExtendedSelections = new Selection[] {
+            new Selection(mPaintTool, "Paintbrush", R.drawable.paintbrush, SelectionType.TOOL),
+            new Selection(lineTool, "Line", R.drawable.line, SelectionType.TOOL),
+            new Selection(circleTool, "Circle", R.drawable.circle, SelectionType.TOOL),
+            new Selection(rectangleTool, "Rectangle", R.drawable.rectangle, SelectionType.TOOL),
             
             new Selection(Color.BLACK, "Black", R.drawable.black, SelectionType.COLOR),
             new Selection(Color.RED, "Red", R.drawable.red, SelectionType.COLOR),
@@ -137,46 +232,49 @@ public class DrawView extends View {
             new Selection(16, "Medium", R.drawable.medium, SelectionType.THICKNESS),
             new Selection(50, "Wide", R.drawable.wide, SelectionType.THICKNESS),
             
+            new Selection(eraserTool, "Eraser", R.drawable.eraser, SelectionType.TOOL),
+            new Selection(mFillTool, "Fill", R.drawable.fill, SelectionType.TOOL),
+            new Selection(new PanTool(this), "Pan", R.drawable.pan, SelectionType.TOOL),
+            new Selection(Action.REDO, "Redo", R.drawable.redo, SelectionType.ACTION),
+            
             null, // The position of the command map button
             new Selection(Action.SAVE, "Save", R.drawable.save, SelectionType.ACTION),
             new Selection(Action.CLEAR, "Clear", R.drawable.clear, SelectionType.ACTION),
             new Selection(Action.UNDO, "Undo", R.drawable.undo, SelectionType.ACTION)
         };
         
+        setExtendedGrid(false);
+        
         // Default to thin black paintbrush
         changeSelection(0, false);
         changeSelection(4, false);
         changeSelection(13, false);
         
-        Timer timer = new Timer();
-        timer.schedule(new TimerTask() {
+        mDeadline = Long.MAX_VALUE;
+        mReplayTime = -1;
+        mDeadlineTask = new Runnable() {
             @Override
             public void run() {
-                long now = System.nanoTime();
-                
-                synchronized (mFlashTimes) {
-                    for (int i = 0; i < mFlashTimes.size(); i++) {
-                        long time = mFlashTimes.valueAt(i);
-                        if (now - time > mFlashDelay) {
-                            mFlashTimes.removeAt(i);
-                            postInvalidate();
-                        }
-                    }
-                }
-                
-                if (mFingerInside != -1 && now - mPressedInsideTime > mChordDelay && mCheckOverlay && !mShowOverlay) {
-                    mOverlayStart = now;
-                    mShowOverlay = true;
-                    mLog.event("Overlay shown");
-                    mTool.clearFingers();
-                    postInvalidate();
-                }
+                mDeadline = Long.MAX_VALUE;
+                onDeadline();
             }
-        }, 25, 25);
+        };
         
         View studySetupLayout = mMainActivity.getLayoutInflater().inflate(R.layout.study_setup, null);
         final CheckBox leftHandedCheckBox = (CheckBox) studySetupLayout.findViewById(R.id.left_handed_checkbox);
         final CheckBox permanentGridCheckBox = (CheckBox) studySetupLayout.findViewById(R.id.permanent_grid_checkbox);
+        final CheckBox incrementalStrokesCheckBox = (CheckBox) studySetupLayout.findViewById(R.id.incremental_strokes_checkbox);
+        final CheckBox binaryLogCheckBox = (CheckBox) studySetupLayout.findViewById(R.id.binary_log_checkbox);
+        final CheckBox logcatCheckBox = (CheckBox) studySetupLayout.findViewById(R.id.logcat_checkbox);
+        final CheckBox renderThreadCheckBox = (CheckBox) studySetupLayout.findViewById(R.id.render_thread_checkbox);
+        final CheckBox frameStatsCheckBox = (CheckBox) studySetupLayout.findViewById(R.id.frame_stats_checkbox);
+        final CheckBox recordInputCheckBox = (CheckBox) studySetupLayout.findViewById(R.id.record_input_checkbox);
+        final CheckBox paletteCanvasCheckBox = (CheckBox) studySetupLayout.findViewById(R.id.palette_canvas_checkbox);
+        final CheckBox largeCanvasCheckBox = (CheckBox) studySetupLayout.findViewById(R.id.large_canvas_checkbox);
+        final CheckBox extendedGridCheckBox = (CheckBox) studySetupLayout.findViewById(R.id.extended_grid_checkbox);
+        final RadioGroup saveFormatGroup = (RadioGroup) studySetupLayout.findViewById(R.id.save_format_group);
+        final RadioGroup simplifyGroup = (RadioGroup) studySetupLayout.findViewById(R.id.simplify_group);
+        final RadioGroup tileStoreGroup = (RadioGroup) studySetupLayout.findViewById(R.id.tile_store_group);
         
         final NumberPicker subjectIdPicker = (NumberPicker) studySetupLayout.findViewById(R.id.subject_id_picker);
         subjectIdPicker.setMinValue(0);
@@ -193,15 +291,51 @@ public class DrawView extends View {
                         .setCancelable(false)
                         .setPositiveButton(android.R.string.yes, new DialogInterface.OnClickListener() {
                             public void onClick(DialogInterface dialog, int which) {
-                                mLog.event("New session started");
+                                mLog.event(LogFormat.SESSION_STARTED);
                             }
                         })
                         .show();
                     
+                    mLog.setBinary(binaryLogCheckBox.isChecked());
+                    mLog.setLogcat(logcatCheckBox.isChecked());
                     mLog.setSubjectId(subjectIdPicker.getValue());
                     mLeftHanded = leftHandedCheckBox.isChecked();
+                    
+                    // Panning needs the extra row, which has the pan tool
+                    setExtendedGrid(extendedGridCheckBox.isChecked() || largeCanvasCheckBox.isChecked());
+                    mChords.setLeftHanded(mLeftHanded);
+                    mOverlayLayerValid = false;
                     mPermanentGrid = permanentGridCheckBox.isChecked();
+                    mPaintTool.setIncremental(incrementalStrokesCheckBox.isChecked());
+                    mPaintTool.setTolerance(simplifyTolerance(simplifyGroup.getCheckedRadioButtonId()));
+                    mSaver.setFormat(saveFormat(saveFormatGroup.getCheckedRadioButtonId()));
+                    mSaveSvg = saveFormatGroup.getCheckedRadioButtonId() == R.id.save_svg_radio;
+                    mShowHud = frameStatsCheckBox.isChecked();
+                    
+                    synchronized (mBitmapLock) {
+                        mTileStoreBudget = tileStoreBudget(tileStoreGroup.getCheckedRadioButtonId());
+                        
+                        if (mTiles != null)
+                            mTiles.setStoreCeiling(mTileStoreBudget);
+                    }
+                    
+                    // Nothing has been drawn yet, so the canvas can start over in the new mode
+                    if (paletteCanvasCheckBox.isChecked() || largeCanvasCheckBox.isChecked()) {
+                        mPaletteMode = paletteCanvasCheckBox.isChecked();
+                        mLargeCanvas = largeCanvasCheckBox.isChecked();
+                        
+                        if (getWidth() > 0)
+                            createCanvas(getWidth(), getHeight());
+                    }
+                    
+                    if (renderThreadCheckBox.isChecked())
+                        startRenderThread();
+                    
+                    if (recordInputCheckBox.isChecked())
+                        startRecording();
+                    
                     DrawView.this.invalidate();
+                    mMainActivity.offerRecovery();
                 }
             })
             .setView(studySetupLayout)
@@ -226,57 +360,322 @@ public class DrawView extends View {
         return mThickness;
     }
     
+    CommandLog getCommandLog() {
+        return mCommandLog;
+    }
+    
+    Object getBitmapLock() {
+        return mBitmapLock;
+    }
+    
+    // These read the committed picture, from either the bitmap or the palette canvas, and must
+    // be called with the bitmap lock held
+    int getCanvasWidth() {
+        return mTiles != null ? mTiles.getWidth() : mPalette != null ? mPalette.getWidth() : mBitmap.getWidth();
+    }
+    
+    int getCanvasHeight() {
+        return mTiles != null ? mTiles.getHeight() : mPalette != null ? mPalette.getHeight() : mBitmap.getHeight();
+    }
+    
+    void getPixels(int[] pixels, int offset, int stride, int x, int y, int width, int height) {
+        if (mTiles != null)
+            mTiles.getPixels(pixels, offset, stride, x, y, width, height);
+        else if (mPalette != null)
+            mPalette.getPixels(pixels, offset, stride, x, y, width, height);
+        else
+            mBitmap.getPixels(pixels, offset, stride, x, y, width, height);
+    }
+    
+    // The viewport and the visible area are those of the thread that runs the tools
+    Viewport getViewport() {
+        return mViewport;
+    }
+    
+    void getVisibleBounds(RectF out) {
+        out.set(mViewport.toCanvasX(0), mViewport.toCanvasY(0),
+                mViewport.toCanvasX(getWidth()), mViewport.toCanvasY(getHeight()));
+    }
+    
+    void viewportChanged() {
+        mViewportChanged = true;
+    }
+    
+    // Called when the activity is paused, since the process may be killed without further notice
+    public void pause() {
+        mLog.flush();
+        mJournal.flush();
+    }
+    
+    public void destroy() {
+        if (mRenderThread != null)
+            mRenderThread.quit();
+        
+        if (mRecorder != null)
+            mRecorder.close();
+        
+        mLatency.report(mLog);
+        mPaintTool.report(mLog);
+        mSnapshotStats.report(mLog);
+        mFillTool.shutdown();
+        mSaver.shutdown();
+        mSvgExporter.shutdown();
+        mJournal.shutdown();
+        mLog.shutdown();
+    }
+    
+    // Moves the tools and the bitmap onto a render thread drawing to a SurfaceView behind this
+    // view, which then only draws the grid and overlay on top. Must be called before any input.
+    private void startRenderThread() {
+        SurfaceView surface = new SurfaceView(getContext());
+        mRenderThread = new RenderThread(this, surface.getHolder(), mLatency);
+        ((ViewGroup) getParent()).addView(surface, 0);
+        mRenderThread.start();
+    }
+    
+    private void startRecording() {
+        try {
+            mRecorder = new InputRecorder(mLog.getInputFile(), getWidth(), getHeight());
+        } catch (IOException e) {
+            alert("Could not start recording input: " + e.getMessage());
+        }
+    }
+    
+    // The time in ns that touch handling and deadlines go by
+    private long clock() {
+        return mReplayTime != -1 ? mReplayTime : System.nanoTime();
+    }
+    
+    // Runs the clock at timeNs for a replay faster than real time, first firing in order every
+    // deadline that would have come due on the way there
+    void setReplayClock(long timeNs) {
+        while (mDeadline <= timeNs) {
+            mReplayTime = mDeadline;
+            removeCallbacks(mDeadlineTask);
+            mDeadline = Long.MAX_VALUE;
+            onDeadline();
+        }
+        
+        mReplayTime = timeNs;
+    }
+    
+    // Fires the deadlines still pending at the end of a replay and goes back to the real clock,
+    // forgetting the touch times from the replay's clock that would otherwise join a later chord
+    void endReplayClock() {
+        setReplayClock(Long.MAX_VALUE - 1);
+        mReplayTime = -1;
+        mPressedInsideTime = 0;
+        mChords.reset();
+    }
+    
+    // The extra row of eraser, fill, pan and redo is opt-in, so the standard grid keeps the layout
+    // and selection numbers of the original study. Resets the chords and the logged names.
+    private void setExtendedGrid(boolean extended) {
+        mRows = extended ? 6 : 5;
+        mOverlayButtonIndex = mCols * (mRows - 1);
+        
+        if (extended) {
+            mSelections = mExtendedSelections;
+        } else {
+            // The standard grid is the extended one without its fifth row
+            mSelections = new Selection[mCols * mRows];
+            System.arraycopy(mExtendedSelections, 0, mSelections, 0, mCols * 4);
+            System.arraycopy(mExtendedSelections, mCols * 5, mSelections, mCols * 4, mCols);
+        }
+        
+        mChords = new ChordResolver(mCols, mRows, mChordDelay);
+        mChords.setLeftHanded(mLeftHanded);
+        mFlashTimes = new long[mCols * mRows];
+        mOverlayLayerValid = false;
+        
+        if (getWidth() > 0) {
+            mRowHeight = (float)getHeight() / mRows;
+            mChords.setSize(getWidth(), getHeight());
+        }
+        
+        String[] names = new String[mSelections.length];
+        String[] typeNames = new String[mSelections.length];
+        
+        for (int i = 0; i < mSelections.length; i++) {
+            if (mSelections[i] != null) {
+                names[i] = mSelections[i].name;
+                typeNames[i] = selectionTypeName(mSelections[i].type);
+            }
+        }
+        
+        mLog.setSelectionNames(names, typeNames);
+    }
+    
     @Override
     protected void onSizeChanged(int w, int h, int oldw, int oldh) {
         super.onSizeChanged(w, h, oldw, oldh);
 
-        synchronized (mBitmapLock) {
-            mBitmap = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
-            Canvas canvas = new Canvas(mBitmap);
-            canvas.drawRGB(0xFF, 0xFF, 0xFF);
-        }
+        createCanvas(w, h);
         
         mColWidth = (float)w / mCols;
         mRowHeight = (float)h / mRows;
+        mChords.setSize(w, h);
+        mOverlayLayerValid = false;
+        
+        if (mRenderThread != null)
+            mRenderThread.redraw();
+    }
+    
+    // Starts over with a blank picture for a view of the given size, stored as the modes say. The
+    // large canvas takes precedence over the palette one.
+    private void createCanvas(int width, int height) {
+        synchronized (mBitmapLock) {
+            if (mLargeCanvas) {
+                mBitmap = null;
+                mBitmapCanvas = null;
+                mPalette = null;
+                mTiles = new TiledCanvas(width * mLargeCanvasScreens, height * mLargeCanvasScreens,
+                        mTileStoreBudget, mRepaintPainter, mSnapshotStats);
+                mNullCanvas = new Canvas(Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888));
+                mHistory.reset(mTiles);
+            } else if (mPaletteMode) {
+                mBitmap = null;
+                mBitmapCanvas = null;
+                mTiles = null;
+                mPalette = new PaletteCanvas(width, height, paletteColors());
+                mNullCanvas = new Canvas(Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888));
+                mHistory.reset(mPalette);
+            } else {
+                mPalette = null;
+                mTiles = null;
+                mNullCanvas = null;
+                mBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+                mBitmapCanvas = new Canvas(mBitmap);
+                mBitmapCanvas.drawRGB(0xFF, 0xFF, 0xFF);
+                mHistory.reset(mBitmap);
+            }
+            
+            mCommandLog.reset(getCanvasWidth(), getCanvasHeight());
+            mViewport.setSize(width, height, getCanvasWidth(), getCanvasHeight());
+        }
     }
     
-    private RectF getButtonBounds(int index) {
-        int y = index / mCols;
-        int x = index % mCols;
+    // The colors that can be selected, which are all the palette canvas needs
+    private int[] paletteColors() {
+        int count = 0;
+        int[] colors = new int[mSelections.length];
         
-        if (mLeftHanded)
-            x = mCols - x - 1;
+        for (Selection selection : mSelections) {
+            if (selection != null && selection.type == SelectionType.COLOR)
+                colors[count++] = (Integer) selection.object;
+        }
+        
+        return Arrays.copyOf(colors, count);
+    }
+    
+    // The canvas tools commit their strokes to
+    private Canvas toolCanvas() {
+        return mBitmapCanvas != null ? mBitmapCanvas : mNullCanvas;
+    }
+    
+    // In palette and tiled mode tools draw into a canvas that keeps nothing, and the commands
+    // they recorded from start on are painted into the palette or tiled canvas instead
+    private void paintCommands(int start) {
+        if (mBitmapCanvas != null)
+            return;
+        
+        for (int i = start; i < mCommandLog.count(); i++) {
+            mCommandLog.getPaintBounds(i, mPaintBounds);
+            mPaintCommand = i;
+            
+            if (mTiles != null)
+                mTiles.render(mPaintBounds[0], mPaintBounds[1], mPaintBounds[2], mPaintBounds[3], mCommandPainter);
+            else
+                mPalette.render(mPaintBounds[0], mPaintBounds[1], mPaintBounds[2], mPaintBounds[3], mCommandPainter);
+        }
+    }
+    
+    // Sets bounds to the area of the button at index
+    private RectF getButtonBounds(int index, RectF bounds) {
+        int y = mChords.getRow(index);
+        int x = mChords.getColumn(index);
         
         float top = mRowHeight * y;
         float bottom = top + mRowHeight;
         float left = mColWidth * x;
         float right = left + mColWidth;
         
-        return new RectF(left, top, right, bottom);
+        bounds.set(left, top, right, bottom);
+        return bounds;
     }
     
     private RectF getOverlayButtonBounds() {
-        return getButtonBounds(mOverlayButtonIndex);
+        return getButtonBounds(mOverlayButtonIndex, mOverlayBounds);
     }
 
+    // Button outlines are drawn on the bounds' edges, so pad them by a pixel
+    private void invalidateButton(int index) {
+        RectF bounds = getButtonBounds(index, mButtonBounds);
+        mDirty.union(bounds.left - 1, bounds.top - 1, bounds.right + 1, bounds.bottom + 1);
+    }
+    
+    private void invalidateAll() {
+        mDirty.set(0, 0, getWidth(), getHeight());
+    }
+    
+    // Tiles the tool is drawing over are saved for undo before its strokes are committed. Called
+    // on the thread that runs the tools.
+    void collectToolDirty(RectF dirty) {
+        mTool.takeDirty(mToolDirty);
+        
+        if (!mToolDirty.isEmpty())
+            mHistory.markDirty(mToolDirty);
+        
+        addToolDirty(dirty);
+    }
+    
+    // Adds mToolDirty, which is in canvas coordinates, to the view's dirty area and empties it
+    private void addToolDirty(RectF dirty) {
+        if (mViewportChanged) {
+            mViewportChanged = false;
+            dirty.set(0, 0, getWidth(), getHeight());
+        }
+        
+        if (mToolDirty.isEmpty())
+            return;
+        
+        dirty.union(mViewport.toViewX(mToolDirty.left) - 1, mViewport.toViewY(mToolDirty.top) - 1,
+                mViewport.toViewX(mToolDirty.right) + 1, mViewport.toViewY(mToolDirty.bottom) + 1);
+        mToolDirty.setEmpty();
+    }
+    
+    // Invalidates only the merged area changed by the tool and the overlay since the last event
+    private void flushDirty() {
+        if (mRenderThread == null)
+            collectToolDirty(mDirty);
+        
+        if (!mDirty.isEmpty()) {
+            mDirty.roundOut(mDirtyBounds);
+            invalidate(mDirtyBounds);
+            mDirty.setEmpty();
+        }
+    }
+    
     @Override
     protected void onDraw(Canvas canvas) {
         RectF bounds = getOverlayButtonBounds();
         
-        canvas.drawBitmap(mBitmap, 0, 0, mBitmapPaint);
-        mTool.draw(canvas);
+        if (mRenderThread == null && canvas.getClipBounds(mClipBounds))
+            drawPicture(canvas, mClipBounds);
+        
+        long overlayStart = System.nanoTime();
         
         if (mShowOverlay)
             canvas.drawARGB(0xAA, 0xFF, 0xFF, 0xFF);
 
-        if (mFingerInside != -1 || mFlashTimes.size() > 0)
+        if (mFingerInside != -1 || mFlashing != 0)
             mPaint.setColor(0xEEDDDD88);
         else
             mPaint.setColor(0xEEFFFFAA);
         
         canvas.drawRect(bounds, mPaint);
         
-        if (mShowOverlay || mPermanentGrid || mFlashTimes.size() > 0) {
+        if (mShowOverlay || mPermanentGrid || mFlashing != 0) {
             mPaint.setColor(0x44666666);
 
             for (int i = 0; i < mRows; i++) {
@@ -290,29 +689,17 @@ public class DrawView extends View {
         }
         
         if (mShowOverlay) {
-            mPaint.setColor(0xFF000000);
-            for (int y = 0; y < mRows; y++) {
-                for (int x = 0; x < mCols; x++) {
-                    int realX = x;
-                    if (mLeftHanded)
-                        realX = mCols - x - 1;
-                    
-                    int i = y * mCols + realX;
-                    if (mSelections[i] != null && mFlashTimes.get(i) == null) {
-                        String name = mSelections[i].name;
-                        int heightAdj = getTextHeight(name, mPaint) / 2;
-                        float centerX = (x + 0.5f) * mColWidth;
-                        float centerY = (y + 0.5f) * mRowHeight;
-                        
-                        Bitmap icon = mSelections[i].icon;
-                        float iconWidth = icon.getWidth();
-                        float iconHeight = icon.getHeight();
-                        
-                        canvas.drawBitmap(icon, centerX - iconWidth / 2, centerY - iconHeight * 3 / 4, mPaint);
-                        canvas.drawText(name, centerX, centerY + iconHeight / 2 + heightAdj, mPaint);
-                    }
-                }
+            if (!mOverlayLayerValid)
+                buildOverlayLayer();
+            
+            // Flashing buttons draw their own icon over a highlight, so leave them out of the layer
+            canvas.save();
+            for (int i = 0; i < mFlashTimes.length; i++) {
+                if ((mFlashing & (1 << i)) != 0)
+                    canvas.clipRect(getButtonBounds(i, mButtonBounds), Region.Op.DIFFERENCE);
             }
+            canvas.drawBitmap(mOverlayLayer, 0, 0, null);
+            canvas.restore();
         } else if (!mPermanentGrid) {
             mPaint.setColor(0x44666666);
             canvas.drawLine(bounds.left, bounds.top, bounds.right, bounds.top, mPaint);
@@ -323,45 +710,134 @@ public class DrawView extends View {
                 canvas.drawLine(bounds.right, bounds.top, bounds.right, bounds.bottom, mPaint);
         }
         
-        synchronized (mFlashTimes) {
-            for (int i = 0; i < mFlashTimes.size(); i++) {
-                int selectionNum = mFlashTimes.keyAt(i);
-                Selection selection = mSelections[selectionNum];
-                if (selection != null) {
-                    RectF buttonBounds = getButtonBounds(selectionNum);
-                    
-                    mPaint.setColor(0xCCE5E5E5);
-                    canvas.drawRect(buttonBounds, mPaint);
-                    
-                    mPaint.setColor(0x44666666);
-                    mPaint.setStyle(Style.STROKE);
-                    canvas.drawRect(buttonBounds, mPaint);
-                    mPaint.setStyle(Style.FILL);
+        long flashStart = System.nanoTime();
+        
+        for (int selectionNum = 0; selectionNum < mFlashTimes.length; selectionNum++) {
+            Selection selection = mSelections[selectionNum];
+            if (selection != null && (mFlashing & (1 << selectionNum)) != 0) {
+                RectF buttonBounds = getButtonBounds(selectionNum, mButtonBounds);
                     
-                    Bitmap icon = selection.icon;
-                    float iconWidth = icon.getWidth();
-                    float iconHeight = icon.getHeight();
-                    float centerX = buttonBounds.left + 0.5f * mColWidth;
-                    float centerY = buttonBounds.top + 0.5f * mRowHeight;
+                mPaint.setColor(0xCCE5E5E5);
+                canvas.drawRect(buttonBounds, mPaint);
                     
-                    mPaint.setColor(0xFF000000);
-                    String name = selection.name;
-                    int heightAdj = getTextHeight(name, mPaint) / 2;
+                mPaint.setColor(0x44666666);
+                mPaint.setStyle(Style.STROKE);
+                canvas.drawRect(buttonBounds, mPaint);
+                mPaint.setStyle(Style.FILL);
                     
-                    canvas.drawBitmap(icon, centerX - iconWidth / 2, centerY - iconHeight * 3 / 4, mPaint);
-                    canvas.drawText(name, centerX, centerY + iconHeight / 2 + heightAdj, mPaint);
-                }
+                mPaint.setColor(0xFF000000);
+                drawSelection(canvas, selection, buttonBounds);
             }
         }
         
+        long labelsStart = System.nanoTime();
         mPaint.setColor(0xFF666666);
         
         canvas.drawText(mThicknessName, bounds.left + mColWidth / 2,
-                bounds.top + mRowHeight / 2 + getTextHeight(mThicknessName, mPaint) / 2 - 30, mPaint);
+                bounds.top + mRowHeight / 2 + mSelections[mThicknessSelection].textHeight / 2 - 30, mPaint);
         canvas.drawText(mColorName, bounds.left + mColWidth / 2,
-                bounds.top + mRowHeight / 2 + getTextHeight(mColorName, mPaint) / 2, mPaint);
+                bounds.top + mRowHeight / 2 + mSelections[mColorSelection].textHeight / 2, mPaint);
         canvas.drawText(mToolName, bounds.left + mColWidth / 2,
-                bounds.top + mRowHeight / 2 + getTextHeight(mToolName, mPaint) / 2 + 30, mPaint);
+                bounds.top + mRowHeight / 2 + mSelections[mToolSelection].textHeight / 2 + 30, mPaint);
+        
+        long end = System.nanoTime();
+        mFrameStats.record(FrameStats.OVERLAY, flashStart - overlayStart + end - labelsStart);
+        
+        if (mFlashing != 0)
+            mFrameStats.record(FrameStats.FLASH, labelsStart - flashStart);
+        
+        if (mShowHud)
+            mFrameStats.drawHud(canvas, 0, 0);
+        
+        if (mRenderThread == null)
+            mLatency.frameDrawn();
+        
+        frameFinished();
+        mFrameStats.watchVsync();
+    }
+    
+    // Ends a frame on the thread that drew it, showing the HUD's new figures when a window closes
+    void frameFinished() {
+        if (mFrameStats.frameFinished() && mShowHud)
+            postInvalidate();
+    }
+    
+    // Draws the bitmap within clip and the tool's strokes in progress, on the thread that runs the
+    // tools. Both are in canvas coordinates, so the view's canvas is moved to the viewport.
+    void drawPicture(Canvas canvas, Rect clip) {
+        long start = System.nanoTime();
+        boolean zoomed = mViewport.getScale() != 1;
+        
+        canvas.save();
+        canvas.scale(mViewport.getScale(), mViewport.getScale());
+        canvas.translate(-mViewport.getLeft(), -mViewport.getTop());
+        
+        mCanvasClip.set((int) Math.floor(mViewport.toCanvasX(clip.left)), (int) Math.floor(mViewport.toCanvasY(clip.top)),
+                (int) Math.ceil(mViewport.toCanvasX(clip.right)), (int) Math.ceil(mViewport.toCanvasY(clip.bottom)));
+        
+        if (mTiles != null) {
+            // Unlike the bitmap, the tiles change when they are read, so the capture thread must be kept out
+            synchronized (mBitmapLock) {
+                mTiles.draw(canvas, mCanvasClip, zoomed ? mZoomPaint : mBitmapPaint);
+                
+                getVisibleBounds(mVisible);
+                mVisible.roundOut(mVisibleBounds);
+                mTiles.trim(mVisibleBounds);
+            }
+        } else if (mPalette != null) {
+            mPalette.draw(canvas, mCanvasClip, zoomed ? mZoomPaint : mBitmapPaint);
+        } else {
+            mCanvasClip.intersect(0, 0, mBitmap.getWidth(), mBitmap.getHeight());
+            canvas.drawBitmap(mBitmap, mCanvasClip, mCanvasClip, zoomed ? mZoomPaint : mBitmapPaint);
+        }
+        
+        long blitEnd = System.nanoTime();
+        mTool.draw(canvas);
+        canvas.restore();
+        
+        mFrameStats.record(FrameStats.BLIT, blitEnd - start);
+        mFrameStats.record(FrameStats.PREVIEW, System.nanoTime() - blitEnd);
+    }
+    
+    // Draws the icon and label of a selection centered in bounds, using the current paint color
+    private void drawSelection(Canvas canvas, Selection selection, RectF bounds) {
+        Bitmap icon = selection.icon;
+        float iconWidth = icon.getWidth();
+        float iconHeight = icon.getHeight();
+        float centerX = bounds.left + 0.5f * mColWidth;
+        float centerY = bounds.top + 0.5f * mRowHeight;
+        
+        canvas.drawBitmap(icon, centerX - iconWidth / 2, centerY - iconHeight * 3 / 4, mPaint);
+        canvas.drawText(selection.name, centerX, centerY + iconHeight / 2 + selection.textHeight / 2, mPaint);
+    }
+    
+    // Renders the overlay's icons and labels for the current size and handedness, so showing
+    // the overlay costs a single bitmap draw instead of laying out every button each frame
+    private void buildOverlayLayer() {
+        int width = getWidth();
+        int height = getHeight();
+        
+        if (mOverlayLayer == null || mOverlayLayer.getWidth() != width || mOverlayLayer.getHeight() != height)
+            mOverlayLayer = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        else
+            mOverlayLayer.eraseColor(Color.TRANSPARENT);
+        
+        Canvas canvas = new Canvas(mOverlayLayer);
+        mPaint.setColor(0xFF000000);
+        
+        for (int i = 0; i < mSelections.length; i++) {
+            if (mSelections[i] != null)
+                drawSelection(canvas, mSelections[i], getButtonBounds(i, mButtonBounds));
+        }
+        
+        mOverlayLayerValid = true;
+    }
+    
+    // Closes the current gesture in both the command log and the tile history
+    void endGesture() {
+        synchronized (mBitmapLock) {
+            mHistory.endLevel(mCommandLog.endGesture(mBitmap));
+        }
     }
     
     private int getTextHeight(String text, Paint paint) {
@@ -371,54 +847,50 @@ public class DrawView extends View {
     
     @Override
     public boolean onTouchEvent(MotionEvent event) {
+        if (mRecorder != null)
+            mRecorder.record(event);
+        
         int index = event.getActionIndex();
         float x = event.getX(index);
         float y = event.getY(index);
         int id = event.getPointerId(index);
-        long now = System.nanoTime();
+        long now = clock();
 
         switch (event.getActionMasked()) {
             case MotionEvent.ACTION_DOWN:
             case MotionEvent.ACTION_POINTER_DOWN:
-                mLog.event("Touch down: " + id);
+                mLog.touchEvent(LogFormat.TOUCH_DOWN, id);
                 
-                mFingers.add(id);
+                mPointers.down(id);
                 
                 if (event.getPointerCount() == 1)
                     mCheckOverlay = true;
                 
                 if (getOverlayButtonBounds().contains(x, y)) {
                     mFingerInside = id;
+                    invalidateButton(mOverlayButtonIndex);
                     mPressedInsideTime = now;
-                    mIgnoredFingers.add(mFingerInside);
+                    mPointers.ignore(id);
                 } else {
-                    int col = (int) (x / mColWidth);
-                    int row = (int) (y / mRowHeight);
-                    
-                    if (mLeftHanded)
-                        col = mCols - col - 1;
-                    
-                    mSelected = row * mCols + col;
-                    mRecentTouches.put(mSelected, now);
+                    mChords.cellTouched(mChords.cellAt(x, y), now);
                 }
                 
-                for (int i = 0; i < mRecentTouches.size(); i++) {
-                    int selection = mRecentTouches.keyAt(i);
-                    long time = mRecentTouches.valueAt(i);
-                    
-                    if ((now - time < mChordDelay && now - mPressedInsideTime < mChordDelay) || mShowOverlay) {
+                int selected = mChords.resolve(now, mPressedInsideTime, mShowOverlay);
+                
+                for (int selection = 0; selected != 0; selection++) {
+                    if ((selected & (1 << selection)) != 0) {
                         changeSelection(selection);
-                        mRecentTouches.removeAt(i);
-                        i--;
-                    } else if (now - time > mChordDelay) {
-                        mRecentTouches.removeAt(i);
-                        i--;
+                        selected &= ~(1 << selection);
                     }
                 }
                 
                 if (!mShowOverlay) {
-                    mOrigins.put(id, new PointF(x, y));
-                    mTool.touchStart(id, x, y);
+                    mPointers.arm(id, x, y);
+                    
+                    if (mRenderThread != null)
+                        mRenderThread.touchStart(id, x, y);
+                    else
+                        applyStart(id, x, y);
                 }
                 break;
                 
@@ -427,100 +899,301 @@ public class DrawView extends View {
                     break;
                 
                 int count = event.getPointerCount();
+                int historySize = event.getHistorySize();
+                
+                if (historySize + 1 > mBatchXs.length) {
+                    mBatchXs = new float[historySize + 1];
+                    mBatchYs = new float[historySize + 1];
+                    mBatchTimes = new long[historySize + 1];
+                }
                 
                 for (int i = 0; i < count; i++) {
                     int fingerId = event.getPointerId(i);
-                    float x2 = event.getX(i);
-                    float y2 = event.getY(i);
                     
-                    if(mIgnoredFingers.contains(fingerId))
+                    if (mPointers.isIgnored(fingerId))
                         continue;
                     
-                    PointF origin = mOrigins.get(fingerId);
-                    
-                    if (origin != null) {
-                        float dx = origin.x - x2;
-                        float dy = origin.y - y2;
-                        double dist = Math.sqrt(dx*dx + dy*dy);
-                        
-                        if (dist > mThreshold) {
-                            mOrigins.delete(fingerId);
-                            origin = null;
-                            mLog.event("Started using tool: " + mThicknessName + " " + mColorName + " " + mToolName + ", " + fingerId);
-                        }
+                    // Android batches the samples since the last event; pass them all on, not just the newest
+                    for (int h = 0; h < historySize; h++) {
+                        mBatchXs[h] = event.getHistoricalX(i, h);
+                        mBatchYs[h] = event.getHistoricalY(i, h);
+                        mBatchTimes[h] = event.getHistoricalEventTime(h);
                     }
                     
-                    if (origin == null) {
-                        mTool.touchMove(fingerId, x2, y2);
+                    mBatchXs[historySize] = event.getX(i);
+                    mBatchYs[historySize] = event.getY(i);
+                    mBatchTimes[historySize] = event.getEventTime();
+                    
+                    // Samples are dropped until the finger first moves past the threshold
+                    boolean pending = mPointers.isPending(fingerId);
+                    int start = mPointers.passThreshold(fingerId, mBatchXs, mBatchYs, historySize + 1);
+                    
+                    if (start < 0)
+                        continue;
                         
-                        if (!mChanged) {
-                            mChanged = true;
-                            mNextUndo = mBitmap.copy(mBitmap.getConfig(), true);
-                        }
-                    }
+                    if (pending)
+                        mLog.toolEvent(LogFormat.TOOL_STARTED, fingerId, mThicknessSelection, mColorSelection, mToolSelection);
+                            
+                    moveBatch(fingerId, start, historySize + 1 - start);
                 }
                 
                 break;
                 
             case MotionEvent.ACTION_UP:
             case MotionEvent.ACTION_POINTER_UP:
-                mLog.event("Touch up: " + id);
+                mLog.touchEvent(LogFormat.TOUCH_UP, id);
 
-                mOrigins.delete(id);
-                mFingers.remove(id);
+                boolean draw = !mPointers.up(id);
 
                 if (id == mFingerInside) {
                     mFingerInside = -1;
-                }
-
-                boolean draw = true;
-                
-                if (mIgnoredFingers.contains(id)) {
-                    mIgnoredFingers.remove(id);
-                    draw = false;
+                    invalidateButton(mOverlayButtonIndex);
                 }
                 
                 if (mShowOverlay) {
                     if (event.getPointerCount() == 1) {
                         mShowOverlay = false;
+                        invalidateAll();
                         long duration = now - mOverlayStart;
-                        mLog.event("Overlay hidden after " + duration / 1000000 + " ms");
+                        mLog.overlayHidden(duration / 1000000);
                     }
                 } else if (draw) {
-                    if (event.getPointerCount() == 1 && mChanged) {
-                        mUndo = mNextUndo;
-                    }
-
-                    synchronized (mBitmapLock) {
-                        mTool.touchStop(id, x, y, new Canvas(mBitmap));
+                    if (mRenderThread != null) {
+                        mRenderThread.touchStop(id, x, y, event.getEventTime());
+                    } else {
+                        applyStop(id, x, y, mDirty);
+                        mLatency.inputReceived(event.getEventTime());
                     }
                     
-                    mLog.event("Finished using tool: " + mThicknessName + " " + mColorName + " " + mToolName + ", " + id);
+                    mLog.toolEvent(LogFormat.TOOL_FINISHED, id, mThicknessSelection, mColorSelection, mToolSelection);
                 }
 
-                if (event.getPointerCount() == 1)
-                    mChanged = false;
+                if (event.getPointerCount() == 1) {
+                    if (mRenderThread != null)
+                        mRenderThread.endGesture();
+                    else
+                        endGesture();
+                }
                 
                 break;
         }
 
-        invalidate();
+        scheduleDeadline();
+        flushDirty();
         return true;
     }
     
+    // Expires the flashes and shows the overlay once their time is up
+    private void onDeadline() {
+        long now = clock();
+        
+        for (int selectionNum = 0; selectionNum < mFlashTimes.length; selectionNum++) {
+            if ((mFlashing & (1 << selectionNum)) != 0 && now - mFlashTimes[selectionNum] >= mFlashDelay) {
+                mFlashing &= ~(1 << selectionNum);
+                
+                if (mFlashing == 0 && !mPermanentGrid && !mShowOverlay) {
+                    invalidateAll(); // The grid disappears along with the last flash
+                } else {
+                    invalidateButton(selectionNum);
+                    invalidateButton(mOverlayButtonIndex);
+                }
+            }
+        }
+        
+        if (mFingerInside != -1 && now - mPressedInsideTime >= mChordDelay && mCheckOverlay && !mShowOverlay) {
+            mOverlayStart = now;
+            mShowOverlay = true;
+            mLog.overlayShown((now - mPressedInsideTime - mChordDelay) / 1000);
+            
+            if (mRenderThread != null)
+                mRenderThread.clearFingers();
+            else
+                applyClearFingers(mDirty);
+            
+            invalidateAll();
+        }
+        
+        scheduleDeadline();
+        flushDirty();
+    }
+    
+    // Posts a single wake-up on the UI thread for the earliest flash expiry or overlay deadline,
+    // instead of polling. Nothing is posted while there is nothing to wait for.
+    private void scheduleDeadline() {
+        long deadline = Long.MAX_VALUE;
+        
+        for (int i = 0; i < mFlashTimes.length; i++) {
+            if ((mFlashing & (1 << i)) != 0)
+                deadline = Math.min(deadline, mFlashTimes[i] + mFlashDelay);
+        }
+        
+        if (mFingerInside != -1 && mCheckOverlay && !mShowOverlay)
+            deadline = Math.min(deadline, mPressedInsideTime + mChordDelay);
+        
+        if (deadline == mDeadline)
+            return;
+        
+        removeCallbacks(mDeadlineTask);
+        mDeadline = deadline;
+        
+        if (deadline != Long.MAX_VALUE) {
+            // Rounded up so the task never runs before the deadline
+            long delay = Math.max(0, (deadline - clock() + 999999) / 1000000);
+            postDelayed(mDeadlineTask, delay);
+        }
+    }
+    
+    // Passes the batched samples from start on to the tool, shifting them to the front if needed
+    private void moveBatch(int id, int start, int count) {
+        if (mRenderThread != null) {
+            for (int i = start; i < start + count; i++) {
+                mRenderThread.touchMove(id, mBatchXs[i], mBatchYs[i], mBatchTimes[i]);
+            }
+            return;
+        }
+        
+        mLatency.inputReceived(mBatchTimes[start]);
+        
+        if (start > 0) {
+            System.arraycopy(mBatchXs, start, mBatchXs, 0, count);
+            System.arraycopy(mBatchYs, start, mBatchYs, 0, count);
+            System.arraycopy(mBatchTimes, start, mBatchTimes, 0, count);
+        }
+        
+        applyMoveBatch(id, mBatchXs, mBatchYs, mBatchTimes, count);
+    }
+    
+    // The apply methods drive the tool and the bitmap. On the View path they run on the UI thread;
+    // with a render thread, only on that thread, in the order their input was queued.
+    // Input is given in view coordinates and turned into canvas coordinates here, with the
+    // viewport as it is when the tool gets it.
+    void applyStart(int id, float x, float y) {
+        mTool.touchStart(id, mViewport.toCanvasX(x), mViewport.toCanvasY(y));
+    }
+    
+    // Converts the samples in place
+    void applyMoveBatch(int id, float[] xs, float[] ys, long[] times, int count) {
+        for (int i = 0; i < count; i++) {
+            xs[i] = mViewport.toCanvasX(xs[i]);
+            ys[i] = mViewport.toCanvasY(ys[i]);
+        }
+        
+        mTool.touchMoveBatch(id, xs, ys, times, count);
+    }
+    
+    void applyStop(int id, float x, float y, RectF dirty) {
+        collectToolDirty(dirty);
+        
+        synchronized (mBitmapLock) {
+            mHistory.capture();
+            
+            int start = mCommandLog.count();
+            mTool.touchStop(id, mViewport.toCanvasX(x), mViewport.toCanvasY(y), toolCanvas());
+            paintCommands(start);
+        }
+    }
+    
+    // Runs on the UI thread. A commit made while no finger is down is a gesture of its own;
+    // otherwise it joins the gesture in progress, whose tiles may already be partly saved.
+    void requestCommit(final Tool tool) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                boolean idle = !mPointers.anyDown();
+                
+                if (mRenderThread != null) {
+                    mRenderThread.commit(tool);
+                    
+                    if (idle)
+                        mRenderThread.endGesture();
+                } else {
+                    applyCommit(tool, mDirty);
+                    
+                    if (idle)
+                        endGesture();
+                    
+                    flushDirty();
+                }
+            }
+        });
+    }
+    
+    void applyCommit(Tool tool, RectF dirty) {
+        tool.prepareCommit();
+        tool.takeDirty(mToolDirty);
+        mHistory.markDirty(mToolDirty);
+        addToolDirty(dirty);
+        
+        synchronized (mBitmapLock) {
+            mHistory.capture();
+            
+            int start = mCommandLog.count();
+            tool.commit(toolCanvas());
+            paintCommands(start);
+        }
+    }
+    
+    // Replaces the picture with the one autosaved in a journal from an earlier session. Must be
+    // called on the UI thread.
+    public void recover(File journal) {
+        if (mRenderThread != null) {
+            mRenderThread.recover(journal);
+        } else {
+            applyRecover(journal, mDirty);
+            flushDirty();
+        }
+    }
+    
+    // The log is rebuilt from the journal first and then drawn in one go, which is much faster
+    // than redrawing it level by level. The journal is deleted once read, as this session's own
+    // journal now holds the same levels. A journal from a canvas of another size, i.e. the other
+    // orientation or the other of the large and the view-sized canvas, is refused with an alert.
+    void applyRecover(File journal, RectF dirty) {
+        synchronized (mBitmapLock) {
+            endGesture();
+            createCanvas(getWidth(), getHeight());
+            
+            try {
+                Journal.restore(journal, mCommandLog, getCanvasWidth(), getCanvasHeight());
+            } catch (final IOException e) {
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        alert("Could not recover all of the last drawing: " + e.getMessage());
+                    }
+                });
+            }
+            
+            // Closes whatever a damaged level left open
+            endGesture();
+            
+            if (mBitmap != null)
+                mCommandLog.replay(mBitmap, mCommandLog.getLevelCount());
+            else
+                repaintAll();
+        }
+        
+        journal.delete();
+        dirty.set(0, 0, getWidth(), getHeight());
+    }
+    
+    void applyClearFingers(RectF dirty) {
+        mTool.clearFingers();
+        mTool.takeDirty(mToolDirty);
+        addToolDirty(dirty);
+    }
+    
     private void changeSelection(int selected) {
         changeSelection(selected, true);
     }
     
     private void changeSelection(int selected, boolean fromUser) {
-        if (mTool != null)
-            mTool.clearFingers();
-        
-        for (int id : mFingers) {
-            mIgnoredFingers.add(id);
-        }
+        if (mRenderThread != null)
+            mRenderThread.select(selected);
+        else
+            applySelection(selected, mDirty);
         
-        mOrigins.clear();
+        mPointers.ignoreAllDown();
         
         Selection selection = mSelections[selected];
         
@@ -528,66 +1201,167 @@ public class DrawView extends View {
             return;
         
         if (fromUser) {
-            synchronized (mFlashTimes) {
-                mFlashTimes.put(selected, System.nanoTime());
-            }
+            if (mFlashing == 0 && !mPermanentGrid)
+                invalidateAll(); // The grid appears along with the first flash
+                
+            mFlashTimes[selected] = clock();
+            mFlashing |= 1 << selected;
             
-            invalidate();
+            invalidateButton(selected);
+            invalidateButton(mOverlayButtonIndex);
         }
         
         if (fromUser)
-            mLog.event("Target selected: " + selectionTypeName(selection.type) + " / " + selection.name);
+            mLog.targetSelected(selected);
         
         switch (selection.type) {
             case TOOL:
-                mTool = (Tool) selection.object;
                 mToolName = selection.name;
+                mToolSelection = selected;
                 break;
                 
             case COLOR:
-                mColor = (Integer) selection.object;
                 mColorName = selection.name;
+                mColorSelection = selected;
                 break;
                 
             case THICKNESS:
-                mThickness = (Integer) selection.object;
                 mThicknessName = selection.name;
+                mThicknessSelection = selected;
+                break;
+            
+            default:
+                break;
+        }
+    }
+    
+    // The part of a selection change that touches the tools or the bitmap
+    void applySelection(int selected, RectF dirty) {
+        if (mTool != null)
+            applyClearFingers(dirty);
+        
+        Selection selection = mSelections[selected];
+        
+        if (selection == null)
+            return;
+        
+        switch (selection.type) {
+            case TOOL:
+                mTool = (Tool) selection.object;
+                break;
+            
+            case COLOR:
+                mColor = (Integer) selection.object;
+                break;
+            
+            case THICKNESS:
+                mThickness = (Integer) selection.object;
                 break;
                 
             case ACTION:
                 switch ((Action) selection.object) {
                     case SAVE:
-                        new Thread() {
-                            public void run() {
-                                synchronized (mBitmapLock) {
-                                    mLog.savePicture(mBitmap);
-                                }
+                        if (mSaveSvg) {
+                            synchronized (mBitmapLock) {
+                                endGesture();
+                                mSvgExporter.export(mCommandLog, getCanvasWidth(), getCanvasHeight());
                             }
-                        }.start();
+                        } else if (mTiles != null)
+                            mSaver.save(mTiles);
+                        else if (mPalette != null)
+                            mSaver.save(mPalette);
+                        else
+                            mSaver.save(mBitmap);
                         break;
                 
                     case CLEAR:
                         synchronized (mBitmapLock) {
-                            mUndo = mBitmap.copy(mBitmap.getConfig(), true);
-                            Canvas canvas = new Canvas(mBitmap);
-                            canvas.drawRGB(0xFF, 0xFF, 0xFF);
+                            endGesture();
+                            mHistory.captureAll();
+                            
+                            if (mTiles != null)
+                                mTiles.clear();
+                            else if (mPalette != null)
+                                mPalette.clear();
+                            else
+                                mBitmapCanvas.drawRGB(0xFF, 0xFF, 0xFF);
+                            
+                            mCommandLog.appendClear();
+                            endGesture();
                         }
+                        dirty.set(0, 0, getWidth(), getHeight());
                         break;
                         
                     case UNDO:
                         synchronized (mBitmapLock) {
-                            if (mUndo != null) {
-                                Bitmap temp = mBitmap;
-                                mBitmap = mUndo;
-                                mUndo = temp;
+                            endGesture();
+                            
+                            // Recent levels come back from saved tiles, older ones are replayed from the log
+                            if (mCommandLog.canUndo()) {
+                                boolean restored = mHistory.undo(mCommandLog.getLevelCount() - 1);
+                                mCommandLog.undo(restored ? null : mBitmap);
+                                
+                                if (!restored)
+                                    repaintAll();
+                            }
+                        }
+                        dirty.set(0, 0, getWidth(), getHeight());
+                        break;
+                    
+                    case REDO:
+                        synchronized (mBitmapLock) {
+                            endGesture();
+                            
+                            if (mCommandLog.canRedo()) {
+                                boolean restored = mHistory.redo(mCommandLog.getLevelCount());
+                                mCommandLog.redo(restored ? null : mBitmap);
+                                
+                                if (!restored)
+                                    repaintAll();
                             }
                         }
+                        dirty.set(0, 0, getWidth(), getHeight());
                         break;
                 }
                 break;
         }
     }
     
+    // Rebuilds the palette or tiled canvas from the log after it changed levels; the bitmap is
+    // rebuilt by the log itself
+    private void repaintAll() {
+        if (mTiles != null)
+            mTiles.repaintAll();
+        else if (mPalette != null)
+            mPalette.render(0, 0, getCanvasWidth(), getCanvasHeight(), mRepaintPainter);
+    }
+    
+    private PictureSaver.Format saveFormat(int radioButtonId) {
+        switch (radioButtonId) {
+            case R.id.save_webp_radio: return PictureSaver.Format.WEBP;
+            case R.id.save_raw_radio: return PictureSaver.Format.RAW;
+            default: return PictureSaver.Format.PNG;
+        }
+    }
+    
+    private long tileStoreBudget(int radioButtonId) {
+        switch (radioButtonId) {
+            case R.id.tile_store_8_radio: return 8 * 1024 * 1024;
+            case R.id.tile_store_64_radio: return 64 * 1024 * 1024;
+            default: return 24 * 1024 * 1024;
+        }
+    }
+    
+    // As a fraction of the stroke thickness
+    private float simplifyTolerance(int radioButtonId) {
+        switch (radioButtonId) {
+            case R.id.simplify_fine_radio: return 0.1f;
+            case R.id.simplify_medium_radio: return 0.25f;
+            case R.id.simplify_coarse_radio: return 0.5f;
+            default: return 0;
+        }
+    }
+    
     private String selectionTypeName(SelectionType type) {
         switch (type) {
             case TOOL: return "Tool";
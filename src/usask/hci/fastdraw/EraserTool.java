@@ -0,0 +1,170 @@
+package usask.hci.fastdraw;
+
+import java.util.Arrays;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Paint.Style;
+
+// Erases whole strokes. Strokes the finger passes over are looked up in the command log's spatial
+// index and shown as erased while the finger is down; when it lifts they are erased from the log
+// and only the cells they covered are repainted. The thickness selection widens the eraser.
+public class EraserTool extends Tool {
+    private static final float mRadius = 12; // px around the finger, on top of half the thickness
+    
+    private Paint mCursorPaint;
+    private int mActive; // bit n is set while pointer id n is erasing
+    private float[] mPositions; // x, y pairs indexed by pointer id
+    private int[] mPending; // strokes hit but not yet erased
+    private int[] mPendingIds; // the pointer that hit each one
+    private float[] mPendingBounds; // left, top, right, bottom of what erasing each one repaints
+    private int mPendingCount;
+    private float[] mBounds;
+    
+    public EraserTool(DrawView drawView) {
+        super(drawView);
+        
+        mCursorPaint = new Paint();
+        mCursorPaint.setAntiAlias(true);
+        mCursorPaint.setStyle(Style.STROKE);
+        mCursorPaint.setStrokeWidth(2);
+        mCursorPaint.setColor(Color.GRAY);
+        
+        mPositions = new float[64];
+        mPending = new int[16];
+        mPendingIds = new int[16];
+        mPendingBounds = new float[16 * 4];
+        mBounds = new float[4];
+    }
+    
+    @Override
+    public void touchStart(int id, float x, float y) {
+        mActive |= 1 << id;
+        mPositions[id * 2] = x;
+        mPositions[id * 2 + 1] = y;
+        markCursor(id);
+        hit(id, x, y);
+    }
+    
+    @Override
+    public void touchMove(int id, float x, float y) {
+        markCursor(id);
+        mPositions[id * 2] = x;
+        mPositions[id * 2 + 1] = y;
+        markCursor(id);
+        hit(id, x, y);
+    }
+    
+    @Override
+    public void touchStop(int id, float x, float y, Canvas canvas) {
+        if ((mActive & (1 << id)) == 0)
+            return;
+        
+        markCursor(id);
+        mActive &= ~(1 << id);
+        CommandLog log = getCommandLog();
+        int kept = 0;
+        
+        for (int i = 0; i < mPendingCount; i++) {
+            if (mPendingIds[i] == id) {
+                log.erase(mPending[i], canvas);
+                markDirty(mPendingBounds[i * 4], mPendingBounds[i * 4 + 1], mPendingBounds[i * 4 + 2], mPendingBounds[i * 4 + 3]);
+            } else {
+                mPending[kept] = mPending[i];
+                mPendingIds[kept] = mPendingIds[i];
+                System.arraycopy(mPendingBounds, i * 4, mPendingBounds, kept * 4, 4);
+                kept++;
+            }
+        }
+        
+        mPendingCount = kept;
+    }
+    
+    @Override
+    public void clearFingers() {
+        for (int id = 0; id < 32; id++) {
+            markCursor(id);
+        }
+        
+        for (int i = 0; i < mPendingCount; i++) {
+            markDirty(mPendingBounds[i * 4], mPendingBounds[i * 4 + 1], mPendingBounds[i * 4 + 2], mPendingBounds[i * 4 + 3]);
+        }
+        
+        mActive = 0;
+        mPendingCount = 0;
+    }
+    
+    // Strokes about to be erased are covered with the background, a little wider to hide their edges
+    @Override
+    public void draw(Canvas canvas) {
+        CommandLog log = getCommandLog();
+        
+        for (int i = 0; i < mPendingCount; i++) {
+            int command = mPending[i];
+            log.getTool(command).replay(log.getCoords(), log.getOffset(command), log.getPointCount(command),
+                    Color.WHITE, log.getThickness(command) + 2, canvas);
+        }
+        
+        float radius = radius();
+        
+        for (int id = 0; id < 32; id++) {
+            if ((mActive & (1 << id)) != 0)
+                canvas.drawCircle(mPositions[id * 2], mPositions[id * 2 + 1], radius, mCursorPaint);
+        }
+    }
+    
+    // The eraser never records strokes of its own
+    @Override
+    public void replay(float[] coords, int offset, int count, int color, int thickness, Canvas canvas) {
+    }
+    
+    private float radius() {
+        return mRadius + getThickness() / 2f;
+    }
+    
+    private void hit(int id, float x, float y) {
+        CommandLog log = getCommandLog();
+        int hits = log.hitTest(x, y, radius());
+        
+        for (int k = 0; k < hits; k++) {
+            int command = log.getHit(k);
+            
+            if (isPending(command))
+                continue;
+            
+            if (mPendingCount == mPending.length) {
+                mPending = Arrays.copyOf(mPending, mPendingCount * 2);
+                mPendingIds = Arrays.copyOf(mPendingIds, mPendingCount * 2);
+                mPendingBounds = Arrays.copyOf(mPendingBounds, mPendingCount * 8);
+            }
+            
+            // Marking the whole repainted area also saves it for undo before the stroke is erased
+            log.getEraseBounds(command, mBounds);
+            System.arraycopy(mBounds, 0, mPendingBounds, mPendingCount * 4, 4);
+            markDirty(mBounds[0], mBounds[1], mBounds[2], mBounds[3]);
+            
+            mPending[mPendingCount] = command;
+            mPendingIds[mPendingCount] = id;
+            mPendingCount++;
+        }
+    }
+    
+    private boolean isPending(int command) {
+        for (int i = 0; i < mPendingCount; i++) {
+            if (mPending[i] == command)
+                return true;
+        }
+        
+        return false;
+    }
+    
+    private void markCursor(int id) {
+        if ((mActive & (1 << id)) == 0)
+            return;
+        
+        float radius = radius() + 1;
+        markDirty(mPositions[id * 2] - radius, mPositions[id * 2 + 1] - radius,
+                mPositions[id * 2] + radius, mPositions[id * 2 + 1] + radius);
+    }
+}
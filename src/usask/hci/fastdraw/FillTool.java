@@ -0,0 +1,304 @@
+package usask.hci.fastdraw;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Paint.Style;
+import android.graphics.RectF;
+import android.util.Log;
+
+import usask.hci.fastdraw.core.ScanlineFill;
+import usask.hci.fastdraw.core.StrokeGeometry;
+
+// Fills the area of one color around where a finger lifts with the current color. The region is
+// found on a background thread from a snapshot of the part of the bitmap in view, while a ring
+// marks the pending fill, and is then painted in on the tool thread like any other stroke. Taps
+// made meanwhile wait their turn, since each fill has to see the ones before it. A fill is
+// recorded as its runs of pixels, so replaying, undoing and erasing it never has to search the
+// picture again.
+public class FillTool extends Tool {
+    private static final float mRingRadius = 16;
+    
+    private ScanlineFill mFill;
+    private ExecutorService mExecutor;
+    private Paint mPaint;
+    private Paint mRingPaint;
+    private int mActive; // bit n is set while pointer id n is down
+    private float[] mStarts; // x, y pairs indexed by pointer id
+    private float[] mQueue; // x, y pairs of the fills waiting for the current one
+    private int[] mQueueColors;
+    private int mQueued;
+    private boolean mRunning;
+    private float mRunningX;
+    private float mRunningY;
+    private int mRunningColor;
+    private int[] mPixels; // the snapshot, only used by the fill thread
+    private int mSnapshotLeft; // the canvas area the snapshot covers
+    private int mSnapshotTop;
+    private int mSnapshotWidth;
+    private int mSnapshotHeight;
+    private int mCanvasWidth; // the canvas' size when the snapshot was taken
+    private int mCanvasHeight;
+    private RectF mVisible;
+    private int mFilled;
+    private int[] mRow;
+    private float[] mSpans; // x1, y, x2, y pairs covering x1 <= x < x2 of row y
+    
+    public FillTool(DrawView drawView) {
+        super(drawView);
+        
+        mFill = new ScanlineFill(Runtime.getRuntime().availableProcessors());
+        mExecutor = Executors.newSingleThreadExecutor();
+        
+        mPaint = new Paint();
+        mPaint.setStyle(Style.FILL);
+        
+        mRingPaint = new Paint();
+        mRingPaint.setAntiAlias(true);
+        mRingPaint.setStyle(Style.STROKE);
+        mRingPaint.setStrokeWidth(3);
+        mRingPaint.setColor(Color.GRAY);
+        
+        mStarts = new float[64];
+        mQueue = new float[16 * 2];
+        mQueueColors = new int[16];
+        mRow = new int[0];
+        mSpans = new float[1024];
+        mVisible = new RectF();
+    }
+    
+    @Override
+    public void touchStart(int id, float x, float y) {
+        mActive |= 1 << id;
+        mStarts[id * 2] = x;
+        mStarts[id * 2 + 1] = y;
+    }
+    
+    @Override
+    public void touchMove(int id, float x, float y) {
+    }
+    
+    // Fills from where the finger went down, so a tap that slides a little still hits its target
+    @Override
+    public void touchStop(int id, float x, float y, Canvas canvas) {
+        if ((mActive & (1 << id)) == 0)
+            return;
+        
+        mActive &= ~(1 << id);
+        
+        if (mQueued == mQueueColors.length) {
+            mQueue = Arrays.copyOf(mQueue, mQueued * 4);
+            mQueueColors = Arrays.copyOf(mQueueColors, mQueued * 2);
+        }
+        
+        mQueue[mQueued * 2] = mStarts[id * 2];
+        mQueue[mQueued * 2 + 1] = mStarts[id * 2 + 1];
+        mQueueColors[mQueued] = getColor();
+        mQueued++;
+        markRing(mStarts[id * 2], mStarts[id * 2 + 1]);
+        
+        if (!mRunning)
+            startNext();
+    }
+    
+    // Fills already asked for still happen
+    @Override
+    public void clearFingers() {
+        mActive = 0;
+    }
+    
+    @Override
+    public void draw(Canvas canvas) {
+        if (mRunning)
+            canvas.drawCircle(mRunningX, mRunningY, mRingRadius, mRingPaint);
+        
+        for (int i = 0; i < mQueued; i++) {
+            canvas.drawCircle(mQueue[i * 2], mQueue[i * 2 + 1], mRingRadius, mRingPaint);
+        }
+    }
+    
+    @Override
+    public void replay(float[] coords, int offset, int count, int color, int thickness, Canvas canvas) {
+        mPaint.setColor(color);
+        
+        for (int i = 0; i + 1 < count; i += 2) {
+            int k = offset + i * 2;
+            canvas.drawRect(coords[k], coords[k + 1], coords[k + 2], coords[k + 1] + 1, mPaint);
+        }
+    }
+    
+    // One path of a one pixel high rectangle per span, as replay() fills them
+    @Override
+    public void writeSvg(float[] coords, int offset, int count, int color, int thickness, StringBuilder out) {
+        out.append("<path d=\"");
+        
+        for (int i = 0; i + 1 < count; i += 2) {
+            int k = offset + i * 2;
+            out.append('M');
+            SvgExporter.appendNumber(out, coords[k]);
+            out.append(' ');
+            SvgExporter.appendNumber(out, coords[k + 1]);
+            out.append('h');
+            SvgExporter.appendNumber(out, coords[k + 2] - coords[k]);
+            out.append("v1h");
+            SvgExporter.appendNumber(out, coords[k] - coords[k + 2]);
+            out.append('z');
+        }
+        
+        out.append('"');
+        SvgExporter.appendFill(out, color);
+        out.append(" shape-rendering=\"crispEdges\"/>");
+    }
+    
+    @Override
+    public float distance(float[] coords, int offset, int count, float x, float y) {
+        return StrokeGeometry.spans(coords, offset, count, x, y);
+    }
+    
+    @Override
+    public void getBounds(float[] coords, int offset, int count, float[] out) {
+        super.getBounds(coords, offset, count, out);
+        out[3] += 1;
+    }
+    
+    @Override
+    public void prepareCommit() {
+        markRing(mRunningX, mRunningY);
+        
+        if (mFilled > 0)
+            markDirty(mSnapshotLeft + mFill.getLeft(), mSnapshotTop + mFill.getTop(),
+                    mSnapshotLeft + mFill.getRight() + 1, mSnapshotTop + mFill.getBottom() + 1);
+    }
+    
+    // Paints the region where the pixels still have the color it was found with, so strokes
+    // finished while it was being found stay on top, and records exactly what was painted
+    @Override
+    public void commit(Canvas canvas) {
+        mRunning = false;
+        int count = 0;
+        
+        if (mFilled > 0 && getCanvasWidth() == mCanvasWidth && getCanvasHeight() == mCanvasHeight) {
+            int left = mFill.getLeft();
+            int right = mFill.getRight();
+            int target = mFill.getTarget();
+            
+            if (mRow.length < right - left + 1)
+                mRow = new int[right - left + 1];
+            
+            for (int y = mFill.getTop(); y <= mFill.getBottom(); y++) {
+                getPixels(mRow, 0, mRow.length, mSnapshotLeft + left, mSnapshotTop + y, right - left + 1, 1);
+                int x = left;
+                
+                while (x <= right) {
+                    if (!mFill.isFilled(x, y) || mRow[x - left] != target) {
+                        x++;
+                        continue;
+                    }
+                    
+                    int x1 = x;
+                    while (x <= right && mFill.isFilled(x, y) && mRow[x - left] == target)
+                        x++;
+                    
+                    if ((count + 2) * 2 > mSpans.length)
+                        mSpans = Arrays.copyOf(mSpans, mSpans.length * 2);
+                    
+                    mSpans[count * 2] = mSnapshotLeft + x1;
+                    mSpans[count * 2 + 1] = mSnapshotTop + y;
+                    mSpans[count * 2 + 2] = mSnapshotLeft + x;
+                    mSpans[count * 2 + 3] = mSnapshotTop + y;
+                    count += 2;
+                }
+            }
+        }
+        
+        if (count > 0) {
+            replay(mSpans, 0, count, mRunningColor, 0, canvas);
+            getCommandLog().appendStroke(this, mRunningColor, 0, mSpans, count);
+        }
+        
+        if (mQueued > 0)
+            startNext();
+    }
+    
+    public void shutdown() {
+        mExecutor.shutdown();
+        mFill.shutdown();
+    }
+    
+    private void startNext() {
+        mRunning = true;
+        mRunningX = mQueue[0];
+        mRunningY = mQueue[1];
+        mRunningColor = mQueueColors[0];
+        mQueued--;
+        System.arraycopy(mQueue, 2, mQueue, 0, mQueued * 2);
+        System.arraycopy(mQueueColors, 1, mQueueColors, 0, mQueued);
+        
+        final int x = (int) mRunningX;
+        final int y = (int) mRunningY;
+        final int color = mRunningColor;
+        
+        // Fills stop at the edges of the view, so the snapshot never has to hold more than a
+        // screenful of a canvas larger than the view
+        getVisibleBounds(mVisible);
+        final int left = (int) Math.floor(mVisible.left);
+        final int top = (int) Math.floor(mVisible.top);
+        final int right = (int) Math.ceil(mVisible.right);
+        final int bottom = (int) Math.ceil(mVisible.bottom);
+        
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // A fill that fails still commits, as nothing, so the tool goes on to the next one
+                mFilled = 0;
+                
+                try {
+                    find(x, y, color, left, top, right, bottom);
+                } catch (RuntimeException e) {
+                    mFilled = 0;
+                    Log.e("FillTool", "Could not fill", e);
+                } finally {
+                    requestCommit();
+                }
+            }
+        });
+    }
+    
+    // Runs on the fill thread, searching the area left, top, right, bottom of the canvas. The
+    // bitmap lock is only held to copy the pixels.
+    private void find(int x, int y, int color, int left, int top, int right, int bottom) {
+        synchronized (getBitmapLock()) {
+            mCanvasWidth = getCanvasWidth();
+            mCanvasHeight = getCanvasHeight();
+            mSnapshotLeft = Math.max(0, left);
+            mSnapshotTop = Math.max(0, top);
+            mSnapshotWidth = Math.min(mCanvasWidth, right) - mSnapshotLeft;
+            mSnapshotHeight = Math.min(mCanvasHeight, bottom) - mSnapshotTop;
+            
+            if (mSnapshotWidth <= 0 || mSnapshotHeight <= 0)
+                return;
+            
+            if (mPixels == null || mPixels.length < mSnapshotWidth * mSnapshotHeight)
+                mPixels = new int[mSnapshotWidth * mSnapshotHeight];
+            
+            getPixels(mPixels, 0, mSnapshotWidth, mSnapshotLeft, mSnapshotTop, mSnapshotWidth, mSnapshotHeight);
+        }
+        
+        x -= mSnapshotLeft;
+        y -= mSnapshotTop;
+        
+        if (x < 0 || y < 0 || x >= mSnapshotWidth || y >= mSnapshotHeight || mPixels[y * mSnapshotWidth + x] == color)
+            return;
+        
+        mFilled = mFill.fill(mPixels, mSnapshotWidth, mSnapshotHeight, x, y);
+    }
+    
+    private void markRing(float x, float y) {
+        float radius = mRingRadius + 2;
+        markDirty(x - radius, y - radius, x + radius, y + radius);
+    }
+}
@@ -0,0 +1,184 @@
+package usask.hci.fastdraw;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.os.Build;
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+// Times each part of drawing a frame and counts vsyncs the UI thread missed while it had frames to
+// draw. Timings go into histograms of 0.1 ms buckets covering one window of mWindow ms; when a
+// window ends its percentiles are logged and kept for the debug HUD, and a new window starts.
+// Frames may be drawn on the UI thread and on the render thread, so recording is synchronized.
+public class FrameStats {
+    public static final int BLIT = 0; // copying the bitmap to the screen
+    public static final int PREVIEW = 1; // the tool's strokes in progress
+    public static final int OVERLAY = 2; // everything else DrawView paints: wash, grid, icons, labels
+    public static final int FLASH = 3; // highlights of buttons just selected
+    private static final String[] mPhaseNames = LogFormat.FRAME_PHASES;
+    private static final int mBuckets = 250; // 0 to 24.9 ms; slower phases only count toward the max
+    private static final long mWindow = 5000;
+    
+    private StudyLogger mLog;
+    private int[][] mCounts;
+    private int[] mSamples;
+    private int[] mMax; // us
+    private int mFrames;
+    private int mMissed;
+    private long mWindowStart; // uptime ms
+    private int[][] mSummary; // the last window's p50, p95, p99 and max in us for each phase
+    private int mSummaryFrames;
+    private int mSummaryMissed;
+    private Paint mHudPaint;
+    private VsyncCounter mVsync; // null below API 16, which has no Choreographer
+    
+    // Counts vsyncs that went by without a frame callback while frames were being drawn. Only
+    // loaded on API 16 and up.
+    private class VsyncCounter implements Choreographer.FrameCallback {
+        private long mPeriod; // ns
+        private long mLastFrame;
+        private boolean mPosted;
+        private boolean mDrew; // a frame was drawn since the last callback
+        
+        public VsyncCounter(float refreshRate) {
+            mPeriod = (long) (1000000000 / refreshRate);
+        }
+        
+        public void frameDrawn() {
+            mDrew = true;
+            
+            if (!mPosted) {
+                mPosted = true;
+                Choreographer.getInstance().postFrameCallback(this);
+            }
+        }
+        
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mPosted = false;
+            
+            // Nothing was drawn for a whole vsync, so stop listening until something is
+            if (!mDrew) {
+                mLastFrame = 0;
+                return;
+            }
+            
+            mDrew = false;
+            
+            if (mLastFrame != 0) {
+                long skipped = (frameTimeNanos - mLastFrame + mPeriod / 2) / mPeriod - 1;
+                if (skipped > 0)
+                    vsyncsMissed((int) skipped);
+            }
+            
+            mLastFrame = frameTimeNanos;
+            mPosted = true;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+    
+    public FrameStats(StudyLogger log, float refreshRate) {
+        mLog = log;
+        mCounts = new int[mPhaseNames.length][mBuckets + 1];
+        mSamples = new int[mPhaseNames.length];
+        mMax = new int[mPhaseNames.length];
+        mSummary = new int[mPhaseNames.length][4];
+        mWindowStart = SystemClock.uptimeMillis();
+        mHudPaint = new Paint();
+        mHudPaint.setTextSize(18);
+        mHudPaint.setAntiAlias(true);
+        
+        if (Build.VERSION.SDK_INT >= 16)
+            mVsync = new VsyncCounter(refreshRate);
+    }
+    
+    public synchronized void record(int phase, long durationNs) {
+        int us = (int) (durationNs / 1000);
+        mCounts[phase][Math.min(us / 100, mBuckets)]++;
+        mSamples[phase]++;
+        mMax[phase] = Math.max(mMax[phase], us);
+    }
+    
+    // Ends a frame drawn on any thread. Returns true if this closed a window, so the HUD has
+    // new figures to show.
+    public synchronized boolean frameFinished() {
+        mFrames++;
+        
+        long now = SystemClock.uptimeMillis();
+        if (now - mWindowStart < mWindow)
+            return false;
+        
+        for (int phase = 0; phase < mPhaseNames.length; phase++) {
+            int[] summary = mSummary[phase];
+            summary[0] = percentile(phase, 50);
+            summary[1] = percentile(phase, 95);
+            summary[2] = percentile(phase, 99);
+            summary[3] = mMax[phase];
+            
+            if (mSamples[phase] > 0)
+                mLog.frameTime(phase, summary[0], summary[1], summary[2], summary[3]);
+            
+            for (int i = 0; i <= mBuckets; i++) {
+                mCounts[phase][i] = 0;
+            }
+            
+            mSamples[phase] = 0;
+            mMax[phase] = 0;
+        }
+        
+        mLog.frames(mFrames, mMissed);
+        mSummaryFrames = mFrames;
+        mSummaryMissed = mMissed;
+        mFrames = 0;
+        mMissed = 0;
+        mWindowStart = now;
+        return true;
+    }
+    
+    // Must be called on the UI thread after it draws a frame
+    public void watchVsync() {
+        if (mVsync != null)
+            mVsync.frameDrawn();
+    }
+    
+    private synchronized void vsyncsMissed(int count) {
+        mMissed += count;
+    }
+    
+    // Upper bound of the bucket holding the percentile, in us
+    private int percentile(int phase, int percent) {
+        long target = ((long) mSamples[phase] * percent + 99) / 100;
+        long seen = 0;
+        
+        for (int i = 0; i < mBuckets; i++) {
+            seen += mCounts[phase][i];
+            if (seen >= target && seen > 0)
+                return (i + 1) * 100;
+        }
+        
+        return mMax[phase];
+    }
+    
+    // Draws the last window's frame count and each phase's p50 / p95 / max
+    public synchronized void drawHud(Canvas canvas, float left, float top) {
+        float lineHeight = mHudPaint.getTextSize() + 4;
+        
+        mHudPaint.setColor(0xAA000000);
+        canvas.drawRect(left, top, left + 300, top + lineHeight * (mPhaseNames.length + 1) + 8, mHudPaint);
+        
+        mHudPaint.setColor(0xFFFFFFFF);
+        float y = top + lineHeight;
+        canvas.drawText(mSummaryFrames + " frames, " + mSummaryMissed + " vsyncs missed", left + 4, y, mHudPaint);
+        
+        for (int phase = 0; phase < mPhaseNames.length; phase++) {
+            int[] summary = mSummary[phase];
+            y += lineHeight;
+            canvas.drawText(mPhaseNames[phase] + ": " + ms(summary[0]) + " / " + ms(summary[1]) + " / "
+                    + ms(summary[3]) + " ms", left + 4, y, mHudPaint);
+        }
+    }
+    
+    private static String ms(int us) {
+        return us / 1000 + "." + us % 1000 / 100;
+    }
+}
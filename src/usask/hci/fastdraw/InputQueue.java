@@ -0,0 +1,119 @@
+package usask.hci.fastdraw;
+
+import java.util.concurrent.locks.LockSupport;
+
+// A ring of input commands passed from exactly one producer thread to exactly one consumer thread
+// without locks. Each side only writes its own index, and a volatile write of that index publishes
+// every slot before it to the other side. Commands are stored as parallel arrays so queueing one
+// allocates nothing.
+public class InputQueue {
+    public static final int START = 0; // id, x, y
+    public static final int MOVE = 1; // id, x, y, time in ms
+    public static final int STOP = 2; // id, x, y, time in ms
+    public static final int CLEAR_FINGERS = 3;
+    public static final int END_GESTURE = 4;
+    public static final int SELECT = 5; // id: the selection
+    public static final int REDRAW = 6;
+    public static final int QUIT = 7;
+    public static final int COMMIT = 8; // object: the tool
+    public static final int RECOVER = 9; // object: the journal file
+    
+    private static final int mCapacity = 4096; // a power of two
+    private static final int mMask = mCapacity - 1;
+    
+    private final byte[] mTypes = new byte[mCapacity];
+    private final int[] mIds = new int[mCapacity];
+    private final float[] mXs = new float[mCapacity];
+    private final float[] mYs = new float[mCapacity];
+    private final long[] mTimes = new long[mCapacity];
+    private final Object[] mObjects = new Object[mCapacity];
+    private volatile long mHead; // next command to read, written only by the consumer
+    private volatile long mTail; // next slot to write, written only by the producer
+    private volatile boolean mWaiting; // the consumer is parked, or about to be
+    private volatile Thread mConsumer;
+    
+    // Producer side. Never drops input; if the consumer has fallen a whole ring behind, the
+    // producer yields until a slot is free.
+    public void put(int type, int id, float x, float y, long time) {
+        put(type, id, x, y, time, null);
+    }
+    
+    private void put(int type, int id, float x, float y, long time, Object object) {
+        long tail = mTail;
+        
+        while (tail - mHead == mCapacity) {
+            Thread.yield();
+        }
+        
+        int i = (int) tail & mMask;
+        mTypes[i] = (byte) type;
+        mIds[i] = id;
+        mXs[i] = x;
+        mYs[i] = y;
+        mTimes[i] = time;
+        mObjects[i] = object;
+        mTail = tail + 1;
+        
+        // The consumer sets mWaiting before checking mTail again, so it either sees this command
+        // or is unparked here
+        if (mWaiting)
+            LockSupport.unpark(mConsumer);
+    }
+    
+    public void put(int type) {
+        put(type, -1, 0, 0, 0);
+    }
+    
+    // The object stays referenced by its slot until the slot is reused
+    public void put(int type, Object object) {
+        put(type, -1, 0, 0, 0, object);
+    }
+    
+    // Consumer side. Parks until at least one command is ready and returns how many are. They are
+    // read relative to the oldest, then released with remove().
+    public int await() {
+        mConsumer = Thread.currentThread();
+        
+        while (true) {
+            int count = (int) (mTail - mHead);
+            if (count > 0)
+                return count;
+            
+            mWaiting = true;
+            
+            if (mTail == mHead)
+                LockSupport.park(this);
+            
+            mWaiting = false;
+        }
+    }
+    
+    public int type(int k) {
+        return mTypes[(int) (mHead + k) & mMask];
+    }
+    
+    public int id(int k) {
+        return mIds[(int) (mHead + k) & mMask];
+    }
+    
+    public float x(int k) {
+        return mXs[(int) (mHead + k) & mMask];
+    }
+    
+    public float y(int k) {
+        return mYs[(int) (mHead + k) & mMask];
+    }
+    
+    public long time(int k) {
+        return mTimes[(int) (mHead + k) & mMask];
+    }
+    
+    public Object object(int k) {
+        return mObjects[(int) (mHead + k) & mMask];
+    }
+    
+    // Frees the oldest count commands for the producer to reuse
+    public void remove(int count) {
+        mHead += count;
+    }
+}
@@ -0,0 +1,128 @@
+package usask.hci.fastdraw;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+import android.view.MotionEvent;
+
+import usask.hci.fastdraw.core.InputRecording;
+
+// Records every touch event DrawView receives, with all of its batched samples, so the session can
+// be replayed through the same touch handling by InputReplayer. Events are encoded into a buffer on
+// the UI thread; each full buffer goes to a single worker thread to be written, and comes back to
+// be reused. See InputRecording for the format.
+public class InputRecorder {
+    private static final int mBufferSize = 64 * 1024;
+    
+    private FileOutputStream mOut;
+    private FileChannel mChannel;
+    private ThreadPoolExecutor mExecutor;
+    private ByteBuffer mBuffer;
+    private ArrayList<ByteBuffer> mSpares; // written buffers, guarded by itself
+    private int[] mIds;
+    private int[] mTimeDeltas;
+    private float[] mCoords;
+    
+    public InputRecorder(File file, int width, int height) throws IOException {
+        mOut = new FileOutputStream(file);
+        mChannel = mOut.getChannel();
+        mExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+        mSpares = new ArrayList<ByteBuffer>();
+        mBuffer = ByteBuffer.allocate(mBufferSize);
+        mIds = new int[32]; // Pointer ids are always below 32
+        mTimeDeltas = new int[16];
+        mCoords = new float[16 * 20];
+        
+        InputRecording.writeHeader(mBuffer, width, height);
+    }
+    
+    public void record(MotionEvent event) {
+        int pointers = event.getPointerCount();
+        int history = event.getHistorySize();
+        int samples = history + 1;
+        long time = event.getEventTime();
+        
+        if (samples > mTimeDeltas.length)
+            mTimeDeltas = new int[samples];
+        
+        if (samples * pointers * 2 > mCoords.length)
+            mCoords = new float[samples * pointers * 2];
+        
+        for (int i = 0; i < pointers; i++) {
+            mIds[i] = event.getPointerId(i);
+        }
+        
+        for (int h = 0; h < samples; h++) {
+            mTimeDeltas[h] = h < history ? (int) (time - event.getHistoricalEventTime(h)) : 0;
+            
+            for (int i = 0; i < pointers; i++) {
+                int k = (h * pointers + i) * 2;
+                mCoords[k] = h < history ? event.getHistoricalX(i, h) : event.getX(i);
+                mCoords[k + 1] = h < history ? event.getHistoricalY(i, h) : event.getY(i);
+            }
+        }
+        
+        int size = InputRecording.eventSize(pointers, samples);
+        
+        if (mBuffer.remaining() < size)
+            writeBuffer(size);
+        
+        InputRecording.writeEvent(mBuffer, event.getAction(), time, pointers, mIds, samples, mTimeDeltas, mCoords);
+    }
+    
+    // Writes out what has been recorded and closes the file
+    public void close() {
+        if (mBuffer.position() > 0)
+            writeBuffer(0);
+        
+        mExecutor.shutdown();
+        
+        try {
+            mExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        
+        try { mOut.close(); } catch (IOException e) {}
+    }
+    
+    // Hands the current buffer to the worker and takes one with room for at least size bytes
+    private void writeBuffer(int size) {
+        final ByteBuffer full = mBuffer;
+        full.flip();
+        
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (full.hasRemaining()) {
+                        mChannel.write(full);
+                    }
+                } catch (IOException e) {
+                    Log.e("InputRecorder", "Could not write the input recording", e);
+                }
+                
+                full.clear();
+                
+                synchronized (mSpares) {
+                    mSpares.add(full);
+                }
+            }
+        });
+        
+        synchronized (mSpares) {
+            mBuffer = mSpares.isEmpty() ? null : mSpares.remove(mSpares.size() - 1);
+        }
+        
+        if (mBuffer == null || mBuffer.capacity() < size)
+            mBuffer = ByteBuffer.allocate(Math.max(mBufferSize, size));
+    }
+}
@@ -0,0 +1,160 @@
+package usask.hci.fastdraw;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.InputDevice;
+import android.view.MotionEvent;
+
+import usask.hci.fastdraw.core.InputRecording;
+
+// Feeds a recording made by InputRecorder back through DrawView's touch handling, rebuilding each
+// MotionEvent with all of its batched samples. A replay runs either at the recorded pace, posted
+// to the UI thread's looper, or as fast as possible on the calling thread with DrawView's clock
+// following the recording, so chords, flashes and the overlay come out as they did for the
+// subject. Neither needs a screen, so replays also run headless, e.g. under Robolectric.
+// Coordinates are scaled if the view is not the size it was when the recording was made.
+public class InputReplayer {
+    private DrawView mView;
+    private InputRecording.Reader mReader;
+    private Handler mHandler;
+    private Runnable mNextTask;
+    private Runnable mOnFinished;
+    private int[] mIds;
+    private MotionEvent.PointerCoords[] mCoords;
+    private float mScaleX;
+    private float mScaleY;
+    private long mOffset; // ms added to the recorded times to make them this session's uptime
+    private long mDownTime;
+    private long mEvents;
+    
+    public InputReplayer(DrawView view, InputStream in) throws IOException {
+        mView = view;
+        mReader = new InputRecording.Reader(new BufferedInputStream(in, 65536));
+        mScaleX = mReader.getWidth() > 0 ? (float) view.getWidth() / mReader.getWidth() : 1;
+        mScaleY = mReader.getHeight() > 0 ? (float) view.getHeight() / mReader.getHeight() : 1;
+        mIds = new int[32]; // Pointer ids are always below 32
+        mCoords = new MotionEvent.PointerCoords[32];
+        
+        for (int i = 0; i < mCoords.length; i++) {
+            mCoords[i] = new MotionEvent.PointerCoords();
+            mCoords[i].pressure = 1;
+            mCoords[i].size = 1;
+        }
+    }
+    
+    // Replays the whole recording before returning, as fast as possible. Must be called on the UI
+    // thread. Returns the number of events replayed.
+    public long replayNow() throws IOException {
+        long start = System.nanoTime();
+        
+        try {
+            if (!mReader.next())
+                return 0;
+            
+            mOffset = SystemClock.uptimeMillis() - mReader.getEventTime();
+            
+            do {
+                mView.setReplayClock((mReader.getEventTime() + mOffset) * 1000000);
+                dispatch();
+            } while (mReader.next());
+        } finally {
+            mView.endReplayClock();
+            mReader.close();
+        }
+        
+        long elapsed = System.nanoTime() - start;
+        Log.i("InputReplayer", mEvents + " events in " + elapsed / 1000000 + " ms, "
+                + mEvents * 1000000000L / Math.max(elapsed, 1) + " events/s");
+        return mEvents;
+    }
+    
+    // Starts replaying at the recorded pace on the calling thread's looper. onFinished, if not
+    // null, runs there after the last event.
+    public void start(Runnable onFinished) {
+        mOnFinished = onFinished;
+        mHandler = new Handler();
+        mNextTask = new Runnable() {
+            @Override
+            public void run() {
+                dispatch();
+                scheduleNext();
+            }
+        };
+        
+        mOffset = Long.MIN_VALUE;
+        scheduleNext();
+    }
+    
+    // Stops a replay started with start, without running its onFinished
+    public void stop() {
+        if (mHandler != null)
+            mHandler.removeCallbacks(mNextTask);
+        
+        try { mReader.close(); } catch (IOException e) {}
+    }
+    
+    private void scheduleNext() {
+        boolean more;
+        
+        try {
+            more = mReader.next();
+        } catch (IOException e) {
+            Log.e("InputReplayer", "Could not read the input recording", e);
+            more = false;
+        }
+        
+        if (!more) {
+            stop();
+            Log.i("InputReplayer", mEvents + " events replayed");
+            
+            if (mOnFinished != null)
+                mOnFinished.run();
+            
+            return;
+        }
+        
+        if (mOffset == Long.MIN_VALUE)
+            mOffset = SystemClock.uptimeMillis() - mReader.getEventTime();
+        
+        mHandler.postAtTime(mNextTask, mReader.getEventTime() + mOffset);
+    }
+    
+    private void dispatch() {
+        int pointers = mReader.getPointerCount();
+        int samples = mReader.getSampleCount();
+        int action = mReader.getAction();
+        
+        if ((action & MotionEvent.ACTION_MASK) == MotionEvent.ACTION_DOWN)
+            mDownTime = mReader.getEventTime() + mOffset;
+        
+        for (int i = 0; i < pointers; i++) {
+            mIds[i] = mReader.getPointerId(i);
+        }
+        
+        // The oldest sample makes the event and the rest are added as Android batched them
+        setCoords(0, pointers);
+        MotionEvent event = MotionEvent.obtain(mDownTime, mReader.getSampleTime(0) + mOffset, action, pointers,
+                mIds, mCoords, 0, 1, 1, 0, 0, InputDevice.SOURCE_TOUCHSCREEN, 0);
+        
+        for (int h = 1; h < samples; h++) {
+            setCoords(h, pointers);
+            event.addBatch(mReader.getSampleTime(h) + mOffset, mCoords, 0);
+        }
+        
+        mView.onTouchEvent(event);
+        event.recycle();
+        mEvents++;
+    }
+    
+    private void setCoords(int sample, int pointers) {
+        for (int i = 0; i < pointers; i++) {
+            mCoords[i].x = mReader.getX(sample, i) * mScaleX;
+            mCoords[i].y = mReader.getY(sample, i) * mScaleY;
+        }
+    }
+}
@@ -0,0 +1,432 @@
+package usask.hci.fastdraw;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+// Autosaves the drawing as the command log's levels, so it survives the process being killed.
+// Each level closed, undone or redone is encoded on the tool thread into a pooled buffer, and a
+// writer thread appends it to a memory-mapped file, so the tool thread never waits on the disk.
+// A record only counts once the header's end offset has moved past it, and writes to the mapping
+// reach the file even if the process dies right after, so the journal always holds whole levels.
+// Undos, redos and levels that can no longer be redone pile up, so once they take up most of the
+// file it is compacted into a new one holding only the levels the log still has.
+//
+// The file is a header of magic, version, canvas width and height and end offset as ints,
+// followed by records that each start with their kind: GESTURE, then the number of commands and
+// for each its type and tool index as bytes, its color, thickness, target and point count as
+// ints and its x, y pairs as floats; or UNDO or REDO on their own.
+public class Journal {
+    private static final byte GESTURE = 0;
+    private static final byte UNDO = 1;
+    private static final byte REDO = 2;
+    private static final int mMagic = 0x46444A4C; // "FDJL"
+    private static final int mVersion = 1;
+    private static final int mEndOffset = 16;
+    private static final int mHeaderSize = 20;
+    private static final int mCommandSize = 18; // before its points
+    private static final int mInitialCapacity = 256 * 1024;
+    private static final int mCompactSize = 64 * 1024; // smaller files are never compacted
+    private static final int mMaxFreeRecords = 8;
+    
+    private File mFile;
+    private ExecutorService mExecutor;
+    private ArrayList<ByteBuffer> mFreeRecords;
+    
+    // Only used by the writer thread
+    private RandomAccessFile mOutput;
+    private MappedByteBuffer mMap;
+    private int mEnd;
+    private int[] mLevelOffsets; // where each level's record starts, like the log's levels
+    private int[] mLevelLengths;
+    private int mLevelCount;
+    private int mLevelTotal;
+    
+    public Journal(File file) {
+        mFile = file;
+        mExecutor = Executors.newSingleThreadExecutor();
+        mFreeRecords = new ArrayList<ByteBuffer>();
+        mLevelOffsets = new int[256];
+        mLevelLengths = new int[256];
+    }
+    
+    // Whether file is a journal that recorded anything
+    public static boolean hasContent(File file) {
+        if (!file.exists())
+            return false;
+        
+        try {
+            RandomAccessFile input = new RandomAccessFile(file, "r");
+            
+            try {
+                if (input.length() < mHeaderSize || input.readInt() != mMagic)
+                    return false;
+                
+                input.seek(mEndOffset);
+                return input.readInt() > mHeaderSize;
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+    
+    // Rebuilds the levels in file into log, which should have just been reset, leaving it at the
+    // level the journal was at with the levels after it still there to be redone. No checkpoints
+    // are taken and nothing is drawn. Returns whether there was anything to rebuild; if the
+    // journal turns out to be damaged, the levels before the damage are kept. A journal drawn on a
+    // canvas of another size than width by height is refused before anything is rebuilt, since its
+    // commands would land in the wrong places or be clipped.
+    public static boolean restore(File file, CommandLog log, int width, int height) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        
+        try {
+            MappedByteBuffer map = input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, input.length());
+            
+            if (map.capacity() < mHeaderSize || map.getInt(0) != mMagic || map.getInt(4) != mVersion)
+                throw new IOException("Not an autosave journal");
+            
+            int journalWidth = map.getInt(8);
+            int journalHeight = map.getInt(12);
+            
+            if (journalWidth != width || journalHeight != height)
+                throw new IOException("It was drawn on a " + journalWidth + " x " + journalHeight
+                        + " canvas, but the canvas is now " + width + " x " + height);
+            
+            int end = map.getInt(mEndOffset);
+            
+            if (end < mHeaderSize || end > map.capacity())
+                throw new IOException("The journal is damaged");
+            
+            map.limit(end);
+            map.position(mHeaderSize);
+            
+            float[] coords = new float[1024];
+            
+            while (map.hasRemaining()) {
+                switch (map.get()) {
+                    case GESTURE:
+                        int commands = map.getInt();
+                        
+                        for (int i = 0; i < commands; i++) {
+                            byte type = map.get();
+                            int tool = map.get();
+                            int color = map.getInt();
+                            int thickness = map.getInt();
+                            int target = map.getInt();
+                            int count = map.getInt();
+                            
+                            if (count < 0 || count > map.remaining() / 8)
+                                throw new IOException("The journal is damaged");
+                            
+                            if (count * 2 > coords.length)
+                                coords = Arrays.copyOf(coords, count * 2);
+                            
+                            for (int j = 0; j < count * 2; j++) {
+                                coords[j] = map.getFloat();
+                            }
+                            
+                            if (!log.restore(type, tool, color, thickness, target, coords, count))
+                                throw new IOException("The journal is damaged");
+                        }
+                        
+                        log.endGesture(null);
+                        break;
+                    
+                    case UNDO:
+                        log.undo(null);
+                        break;
+                    
+                    case REDO:
+                        log.redo(null);
+                        break;
+                    
+                    default:
+                        throw new IOException("The journal is damaged");
+                }
+            }
+            
+            return end > mHeaderSize;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("The journal is damaged");
+        } finally {
+            input.close();
+        }
+    }
+    
+    // These are called by the command log on the tool thread, with the bitmap lock held, and
+    // only queue work for the writer
+    
+    // Starts over with an empty journal for a canvas of the given size
+    public void reset(final int width, final int height) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    open(width, height);
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+        });
+    }
+    
+    // Records a closed level, commands start to end of log
+    public void gesture(CommandLog log, int start, int end) {
+        int size = 5;
+        for (int i = start; i < end; i++) {
+            size += mCommandSize + log.getPointCount(i) * 8;
+        }
+        
+        ByteBuffer record = takeRecord(size);
+        float[] coords = log.getCoords();
+        record.put(GESTURE);
+        record.putInt(end - start);
+        
+        for (int i = start; i < end; i++) {
+            int offset = log.getOffset(i);
+            int count = log.getPointCount(i);
+            
+            record.put(log.getType(i));
+            record.put((byte) log.getToolIndex(i));
+            record.putInt(log.getColor(i));
+            record.putInt(log.getThickness(i));
+            record.putInt(log.getTarget(i));
+            record.putInt(count);
+            
+            for (int j = 0; j < count * 2; j++) {
+                record.putFloat(coords[offset + j]);
+            }
+        }
+        
+        write(record);
+    }
+    
+    public void undo() {
+        ByteBuffer record = takeRecord(1);
+        record.put(UNDO);
+        write(record);
+    }
+    
+    public void redo() {
+        ByteBuffer record = takeRecord(1);
+        record.put(REDO);
+        write(record);
+    }
+    
+    // Pushes what has been written out to the disk, for when the device itself might go down
+    public void flush() {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mMap != null)
+                    mMap.force();
+            }
+        });
+    }
+    
+    // Finishes writing what is queued and closes the file, which is left for the next session
+    public void shutdown() {
+        flush();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                close();
+            }
+        });
+        mExecutor.shutdown();
+        
+        try {
+            mExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private ByteBuffer takeRecord(int size) {
+        ByteBuffer record = null;
+        
+        synchronized (mFreeRecords) {
+            if (!mFreeRecords.isEmpty())
+                record = mFreeRecords.remove(mFreeRecords.size() - 1);
+        }
+        
+        if (record == null || record.capacity() < size)
+            record = ByteBuffer.allocate(Math.max(size, 4096));
+        
+        record.clear();
+        return record;
+    }
+    
+    private void write(final ByteBuffer record) {
+        record.flip();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (mMap != null)
+                        append(record);
+                } catch (IOException e) {
+                    fail(e);
+                }
+                
+                synchronized (mFreeRecords) {
+                    if (mFreeRecords.size() < mMaxFreeRecords)
+                        mFreeRecords.add(record);
+                }
+            }
+        });
+    }
+    
+    // The rest runs on the writer thread
+    
+    private void open(int width, int height) throws IOException {
+        close();
+        mOutput = new RandomAccessFile(mFile, "rw");
+        mOutput.setLength(0);
+        mMap = mOutput.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mInitialCapacity);
+        mMap.putInt(0, mMagic);
+        mMap.putInt(4, mVersion);
+        mMap.putInt(8, width);
+        mMap.putInt(12, height);
+        mMap.putInt(mEndOffset, mHeaderSize);
+        mEnd = mHeaderSize;
+        mLevelCount = 0;
+        mLevelTotal = 0;
+    }
+    
+    private void append(ByteBuffer record) throws IOException {
+        int length = record.remaining();
+        
+        if (mEnd + length > mMap.capacity()) {
+            compact(length);
+            
+            if (mEnd + length > mMap.capacity())
+                mMap = mOutput.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Math.max(mMap.capacity() * 2, mEnd + length));
+        }
+        
+        int start = mEnd;
+        mMap.position(start);
+        mMap.put(record);
+        mEnd += length;
+        mMap.putInt(mEndOffset, mEnd);
+        
+        // Follows the log's levels, to know which records compaction keeps
+        switch (mMap.get(start)) {
+            case GESTURE:
+                if (mLevelCount == mLevelOffsets.length) {
+                    mLevelOffsets = Arrays.copyOf(mLevelOffsets, mLevelCount * 2);
+                    mLevelLengths = Arrays.copyOf(mLevelLengths, mLevelCount * 2);
+                }
+                
+                mLevelOffsets[mLevelCount] = start;
+                mLevelLengths[mLevelCount] = length;
+                mLevelCount++;
+                mLevelTotal = mLevelCount;
+                break;
+            
+            case UNDO:
+                if (mLevelCount > 0)
+                    mLevelCount--;
+                break;
+            
+            case REDO:
+                if (mLevelCount < mLevelTotal)
+                    mLevelCount++;
+                break;
+        }
+        
+        if (mEnd > mCompactSize && mEnd > liveSize() * 2)
+            compact(0);
+    }
+    
+    // The size of a compacted journal: the log's levels, then an UNDO for each one to be redone
+    private int liveSize() {
+        int size = mHeaderSize + mLevelTotal - mLevelCount;
+        for (int i = 0; i < mLevelTotal; i++) {
+            size += mLevelLengths[i];
+        }
+        
+        return size;
+    }
+    
+    // Writes a compacted copy, with room for spare more bytes, to a new file that then replaces
+    // this one, so the journal is whole at every moment
+    private void compact(int spare) throws IOException {
+        File temp = new File(mFile.getPath() + ".tmp");
+        int size = liveSize();
+        RandomAccessFile output = new RandomAccessFile(temp, "rw");
+        MappedByteBuffer map;
+        
+        try {
+            output.setLength(0);
+            map = output.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    Math.max(mInitialCapacity, (size + spare) * 2));
+        } catch (IOException e) {
+            output.close();
+            throw e;
+        }
+        
+        ByteBuffer source = mMap.duplicate();
+        source.limit(mHeaderSize);
+        source.position(0);
+        map.put(source);
+        
+        for (int i = 0; i < mLevelTotal; i++) {
+            int offset = mLevelOffsets[i];
+            mLevelOffsets[i] = map.position();
+            source.limit(offset + mLevelLengths[i]);
+            source.position(offset);
+            map.put(source);
+        }
+        
+        for (int i = mLevelCount; i < mLevelTotal; i++) {
+            map.put(UNDO);
+        }
+        
+        map.putInt(mEndOffset, map.position());
+        map.force();
+        
+        if (!temp.renameTo(mFile)) {
+            output.close();
+            throw new IOException("Could not replace the journal with its compacted copy");
+        }
+        
+        mOutput.close();
+        mOutput = output;
+        mMap = map;
+        mEnd = map.position();
+    }
+    
+    private void close() {
+        if (mOutput == null)
+            return;
+        
+        try {
+            mOutput.close();
+        } catch (IOException e) {
+            Log.e("Journal", "Could not close the autosave journal", e);
+        }
+        
+        mOutput = null;
+        mMap = null;
+    }
+    
+    // Stops autosaving until the next reset rather than leave a journal with a level missing
+    private void fail(IOException e) {
+        Log.e("Journal", "Could not write the autosave journal", e);
+        close();
+    }
+}
@@ -0,0 +1,58 @@
+package usask.hci.fastdraw;
+
+import android.os.SystemClock;
+
+// Measures input-to-frame latency: from the MotionEvent time of the oldest sample shown in a
+// frame to when that frame has been drawn and handed off for display, so the figures are a lower
+// bound on touch-to-photon latency. Keeps a fixed-size histogram of 1 ms buckets for the session.
+// Only the thread that draws may use it, so it needs no locking.
+public class LatencyMonitor {
+    private static final int mBuckets = 256; // 0 to 255 ms; slower frames only count toward the max
+    private int[] mCounts;
+    private long mFrames;
+    private int mMax;
+    private long mPending; // uptime ms of the oldest sample not drawn yet, or Long.MAX_VALUE
+    
+    public LatencyMonitor() {
+        mCounts = new int[mBuckets + 1];
+        mPending = Long.MAX_VALUE;
+    }
+    
+    // Stamps a sample that moved or finished a stroke, with its MotionEvent time
+    public void inputReceived(long eventTime) {
+        mPending = Math.min(mPending, eventTime);
+    }
+    
+    public void frameDrawn() {
+        if (mPending == Long.MAX_VALUE)
+            return;
+        
+        int latency = (int) Math.max(0, SystemClock.uptimeMillis() - mPending);
+        mPending = Long.MAX_VALUE;
+        mCounts[Math.min(latency, mBuckets)]++;
+        mMax = Math.max(mMax, latency);
+        mFrames++;
+    }
+    
+    // The latency in ms that percent of frames were at or below
+    public int percentile(int percent) {
+        long target = (mFrames * percent + 99) / 100;
+        long seen = 0;
+        
+        for (int i = 0; i < mBuckets; i++) {
+            seen += mCounts[i];
+            if (seen >= target && seen > 0)
+                return i;
+        }
+        
+        return mMax;
+    }
+    
+    // Writes the session's summary, if any frames were measured
+    public void report(StudyLogger log) {
+        if (mFrames == 0)
+            return;
+        
+        log.latency(mFrames, percentile(50), percentile(95), percentile(99), mMax);
+    }
+}
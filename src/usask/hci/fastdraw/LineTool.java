@@ -2,17 +2,17 @@ package usask.hci.fastdraw;
 
 import android.graphics.Canvas;
 import android.graphics.Paint;
-import android.graphics.PointF;
 import android.graphics.Paint.Cap;
 import android.graphics.Paint.Join;
 import android.graphics.Paint.Style;
-import android.util.SparseArray;
+
+import usask.hci.fastdraw.core.ShapeTracker;
 
 public class LineTool extends Tool {
     private Paint mPaint;
     private Paint mCirclePaint;
-    private SparseArray<PointF> mOrigins;
-    private SparseArray<PointF> mEnds;
+    private ShapeTracker mShapes;
+    private float[] mStroke;
 
     public LineTool(DrawView drawView) {
         super(drawView);
@@ -29,53 +29,95 @@ public class LineTool extends Tool {
         mCirclePaint.setDither(true);
         mCirclePaint.setStyle(Style.FILL);
 
-        mOrigins = new SparseArray<PointF>();
-        mEnds = new SparseArray<PointF>();
+        mShapes = new ShapeTracker();
+        mStroke = new float[4];
     }
 
     @Override
     public void touchStart(int id, float x, float y) {
-        mOrigins.put(id, new PointF(x, y));
+        mShapes.start(id, x, y);
     }
 
     @Override
     public void touchMove(int id, float x, float y) {
-        mEnds.put(id, new PointF(x, y));
+        markId(id);
+        mShapes.move(id, x, y);
+        markId(id);
+    }
+    
+    // Only the newest sample affects the shape
+    @Override
+    public void touchMoveBatch(int id, float[] xs, float[] ys, long[] times, int count) {
+        if (count > 0)
+            touchMove(id, xs[count - 1], ys[count - 1]);
     }
 
     @Override
     public void touchStop(int id, float x, float y, Canvas canvas) {
         drawId(id, canvas);
-        mOrigins.delete(id);
-        mEnds.delete(id);
+        
+        if (mShapes.isMoved(id)) {
+            mShapes.getCoords(id, mStroke);
+            record(mStroke, 2);
+        }
+        
+        mShapes.stop(id);
     }
 
     @Override
     public void clearFingers() {
-        mOrigins.clear();
-        mEnds.clear();
+        for (int id = 0; id < 32; id++) {
+            markId(id);
+        }
+        
+        mShapes.clear();
     }
 
     @Override
     public void draw(Canvas canvas) {
-        for (int i = 0; i < mOrigins.size(); i++) {
-            int id = mOrigins.keyAt(i);
+        for (int id = 0; id < 32; id++) {
             drawId(id, canvas);
         }
     }
     
     private void drawId(int id, Canvas canvas) {
-        PointF origin = mOrigins.get(id);
-        PointF end = mEnds.get(id);
-        
-        if (end != null) {
-            mPaint.setColor(getColor());
-            mPaint.setStrokeWidth(getThickness());
-            mCirclePaint.setColor(getColor());
+        if (mShapes.isMoved(id))
+            drawLine(mShapes.getOriginX(id), mShapes.getOriginY(id), mShapes.getEndX(id), mShapes.getEndY(id), getColor(), getThickness(), canvas);
+    }
             
-            canvas.drawLine(origin.x, origin.y, end.x, end.y, mPaint);
-            canvas.drawCircle(origin.x, origin.y, (float)getThickness() / 2, mCirclePaint);
-            canvas.drawCircle(end.x, end.y, (float)getThickness() / 2, mCirclePaint);
-        }
+    @Override
+    public void replay(float[] coords, int offset, int count, int color, int thickness, Canvas canvas) {
+        drawLine(coords[offset], coords[offset + 1], coords[offset + 2], coords[offset + 3], color, thickness, canvas);
+    }
+    
+    // Round caps cover the same dots drawLine puts on the ends
+    @Override
+    public void writeSvg(float[] coords, int offset, int count, int color, int thickness, StringBuilder out) {
+        out.append("<line x1=\"");
+        SvgExporter.appendNumber(out, coords[offset]);
+        out.append("\" y1=\"");
+        SvgExporter.appendNumber(out, coords[offset + 1]);
+        out.append("\" x2=\"");
+        SvgExporter.appendNumber(out, coords[offset + 2]);
+        out.append("\" y2=\"");
+        SvgExporter.appendNumber(out, coords[offset + 3]);
+        out.append('"');
+        SvgExporter.appendStroke(out, color, thickness);
+        out.append(" stroke-linecap=\"round\"/>");
+    }
+    
+    private void drawLine(float x1, float y1, float x2, float y2, int color, int thickness, Canvas canvas) {
+        mPaint.setColor(color);
+        mPaint.setStrokeWidth(thickness);
+        mCirclePaint.setColor(color);
+        
+        canvas.drawLine(x1, y1, x2, y2, mPaint);
+        canvas.drawCircle(x1, y1, (float)thickness / 2, mCirclePaint);
+        canvas.drawCircle(x2, y2, (float)thickness / 2, mCirclePaint);
+    }
+    
+    private void markId(int id) {
+        if (mShapes.isMoved(id))
+            markDirty(mShapes.getOriginX(id), mShapes.getOriginY(id), mShapes.getEndX(id), mShapes.getEndY(id));
     }
 }
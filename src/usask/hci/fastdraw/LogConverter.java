@@ -0,0 +1,54 @@
+package usask.hci.fastdraw;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+// Converts binary study logs back into the text format, one record at a time, so files of any
+// size can be converted. Runs on a desktop JVM:
+// java -cp bin/classes usask.hci.fastdraw.LogConverter <log.bin> [<log.txt>]
+public class LogConverter {
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: LogConverter <log.bin> [<log.txt>]");
+            System.exit(1);
+        }
+        
+        String output = args.length == 2 ? args[1] : args[0].replaceFirst("\\.bin$", "") + ".txt";
+        long count = convert(args[0], output);
+        System.out.println("Wrote " + count + " events to " + output);
+    }
+    
+    // Returns the number of events converted
+    public static long convert(String input, String output) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(input), 65536));
+        Writer out = null;
+        
+        try {
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output)), 65536);
+            
+            int[] subjectId = new int[1];
+            LogFormat format = LogFormat.readHeader(in, subjectId);
+            StringBuilder line = new StringBuilder();
+            long count = 0;
+            
+            while (format.readRecord(in, subjectId[0], line)) {
+                out.append(line);
+                line.setLength(0);
+                count++;
+            }
+            
+            return count;
+        } finally {
+            in.close();
+            
+            if (out != null)
+                out.close();
+        }
+    }
+}
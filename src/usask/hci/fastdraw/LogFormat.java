@@ -0,0 +1,221 @@
+package usask.hci.fastdraw;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+// Study log events and their two file formats. This class only uses plain Java so the
+// converter can run on a desktop.
+//
+// Text format, one line per event:
+// sid, timestamp in ms, event message
+//
+// Binary format, big-endian:
+// header: magic, version, sid, name count, then each selection's name and type name
+// record: timestamp in ns, type, pointer id, three selection indices, value (mRecordSize bytes)
+public class LogFormat {
+    public static final int TOUCH_DOWN = 0;
+    public static final int TOUCH_UP = 1;
+    public static final int TOOL_STARTED = 2; // selections: thickness, color, tool
+    public static final int TOOL_FINISHED = 3;
+    public static final int OVERLAY_SHOWN = 4; // value: us the overlay appeared after its deadline
+    public static final int OVERLAY_HIDDEN = 5; // value: ms the overlay was shown
+    public static final int TARGET_SELECTED = 6; // selection: the target
+    public static final int SESSION_STARTED = 7;
+    public static final int PICTURE_SAVED = 8;
+    public static final int EVENTS_DROPPED = 9; // value: events lost because the queue was full
+    public static final int LATENCY_FRAMES = 10; // value: frames measured by the session's latency summary
+    public static final int LATENCY = 11; // selections: p50, p95, p99 in ms; value: max in ms
+    public static final int FRAME_TIME = 12; // pointer id: phase; selections: p50, p95, p99 in us; value: max in us
+    public static final int FRAMES = 13; // selection: vsyncs missed; value: frames drawn, both since the last FRAMES
+    public static final int STROKE_SAMPLES = 14; // value: samples the session's paint strokes had
+    public static final int STROKE_VERTICES = 15; // selection: tolerance in hundredths of the thickness; value: samples drawn
+    public static final int SNAPSHOT_PIXELS = 16; // value: KB of pixels the session's undo and checkpoint snapshots held
+    public static final int SNAPSHOT_ENCODED = 17; // selection: compression ratio in tenths; value: KB they were encoded into
+    public static final int SNAPSHOT_TIME = 18; // selection: ms spent decoding snapshots; value: ms spent encoding them
+    
+    public static final String[] FRAME_PHASES = { "Blit", "Preview", "Overlay", "Flash" };
+    
+    public static final int mRecordSize = 20;
+    private static final int mMagic = 0x46444C47; // "FDLG"
+    private static final int mVersion = 1;
+    
+    private String[] mNames;
+    private String[] mTypeNames;
+    
+    // Selection names are indexed the same way as the grid; unused cells may be null
+    public LogFormat(String[] names, String[] typeNames) {
+        mNames = names;
+        mTypeNames = typeNames;
+    }
+    
+    public void writeHeader(DataOutputStream out, int subjectId) throws IOException {
+        out.writeInt(mMagic);
+        out.writeShort(mVersion);
+        out.writeInt(subjectId);
+        out.writeShort(mNames.length);
+        
+        for (int i = 0; i < mNames.length; i++) {
+            out.writeUTF(mNames[i] == null ? "" : mNames[i]);
+            out.writeUTF(mTypeNames[i] == null ? "" : mTypeNames[i]);
+        }
+    }
+    
+    // Reads a header written by writeHeader, returning its format and storing the sid in subjectId[0]
+    public static LogFormat readHeader(DataInputStream in, int[] subjectId) throws IOException {
+        if (in.readInt() != mMagic)
+            throw new IOException("Not a binary study log");
+        
+        int version = in.readUnsignedShort();
+        if (version != mVersion)
+            throw new IOException("Unsupported study log version " + version);
+        
+        subjectId[0] = in.readInt();
+        int count = in.readUnsignedShort();
+        String[] names = new String[count];
+        String[] typeNames = new String[count];
+        
+        for (int i = 0; i < count; i++) {
+            names[i] = in.readUTF();
+            typeNames[i] = in.readUTF();
+        }
+        
+        return new LogFormat(names, typeNames);
+    }
+    
+    public static void writeRecord(DataOutputStream out, long timeNs, int type, int pointerId,
+            int selection0, int selection1, int selection2, int value) throws IOException {
+        out.writeLong(timeNs);
+        out.writeByte(type);
+        out.writeByte(pointerId);
+        out.writeShort(selection0);
+        out.writeShort(selection1);
+        out.writeShort(selection2);
+        out.writeInt(value);
+    }
+    
+    // Reads one record and appends its text line, including the line break. Returns false at the
+    // end of the file, or at a record cut short because the app was killed while writing it.
+    public boolean readRecord(DataInputStream in, int subjectId, StringBuilder line) throws IOException {
+        long timeNs;
+        int type, pointerId, selection0, selection1, selection2, value;
+        
+        try {
+            timeNs = in.readLong();
+            type = in.readByte();
+            pointerId = in.readByte();
+            selection0 = in.readShort();
+            selection1 = in.readShort();
+            selection2 = in.readShort();
+            value = in.readInt();
+        } catch (EOFException e) {
+            return false;
+        }
+        
+        format(line, subjectId, timeNs, type, pointerId, selection0, selection1, selection2, value);
+        return true;
+    }
+    
+    // Appends an event's text line, including the line break
+    public void format(StringBuilder line, int subjectId, long timeNs, int type, int pointerId,
+            int selection0, int selection1, int selection2, int value) {
+        line.append(subjectId).append(',').append(timeNs / 1000000).append(',');
+        
+        switch (type) {
+            case TOUCH_DOWN:
+                line.append("Touch down: ").append(pointerId);
+                break;
+            
+            case TOUCH_UP:
+                line.append("Touch up: ").append(pointerId);
+                break;
+            
+            case TOOL_STARTED:
+            case TOOL_FINISHED:
+                line.append(type == TOOL_STARTED ? "Started using tool: " : "Finished using tool: ");
+                line.append(name(selection0)).append(' ').append(name(selection1)).append(' ').append(name(selection2));
+                line.append(", ").append(pointerId);
+                break;
+            
+            case OVERLAY_SHOWN:
+                line.append("Overlay shown");
+                break;
+            
+            case OVERLAY_HIDDEN:
+                line.append("Overlay hidden after ").append(value).append(" ms");
+                break;
+            
+            case TARGET_SELECTED:
+                line.append("Target selected: ").append(typeName(selection0)).append(" / ").append(name(selection0));
+                break;
+            
+            case SESSION_STARTED:
+                line.append("New session started");
+                break;
+            
+            case PICTURE_SAVED:
+                line.append("Saved picture");
+                break;
+            
+            case EVENTS_DROPPED:
+                line.append("Dropped ").append(value).append(" events");
+                break;
+            
+            case LATENCY_FRAMES:
+                line.append("Latency measured over ").append(value).append(" frames");
+                break;
+            
+            case LATENCY:
+                line.append("Latency p50: ").append(selection0).append(" ms, p95: ").append(selection1);
+                line.append(" ms, p99: ").append(selection2).append(" ms, max: ").append(value).append(" ms");
+                break;
+            
+            case FRAME_TIME:
+                line.append(pointerId >= 0 && pointerId < FRAME_PHASES.length ? FRAME_PHASES[pointerId] : "Unknown");
+                line.append(" time p50: ").append(selection0).append(" us, p95: ").append(selection1);
+                line.append(" us, p99: ").append(selection2).append(" us, max: ").append(value).append(" us");
+                break;
+            
+            case FRAMES:
+                line.append("Drew ").append(value).append(" frames, missed ").append(selection0).append(" vsyncs");
+                break;
+            
+            case STROKE_SAMPLES:
+                line.append("Paint strokes had ").append(value).append(" samples");
+                break;
+            
+            case STROKE_VERTICES:
+                line.append("Paint strokes drew ").append(value).append(" samples at tolerance ");
+                line.append(selection0 / 100).append('.').append(selection0 / 10 % 10).append(selection0 % 10);
+                break;
+            
+            case SNAPSHOT_PIXELS:
+                line.append("Snapshots held ").append(value).append(" KB of pixels");
+                break;
+            
+            case SNAPSHOT_ENCODED:
+                line.append("Snapshots encoded into ").append(value).append(" KB, ratio ");
+                line.append(selection0 / 10).append('.').append(selection0 % 10);
+                break;
+            
+            case SNAPSHOT_TIME:
+                line.append("Snapshot encoding took ").append(value).append(" ms, decoding ").append(selection0).append(" ms");
+                break;
+            
+            default:
+                line.append("Unknown event ").append(type);
+                break;
+        }
+        
+        line.append("\r\n");
+    }
+    
+    private String name(int selection) {
+        return selection >= 0 && selection < mNames.length ? mNames[selection] : "Unknown";
+    }
+    
+    private String typeName(int selection) {
+        return selection >= 0 && selection < mTypeNames.length ? mTypeNames[selection] : "Unknown";
+    }
+}
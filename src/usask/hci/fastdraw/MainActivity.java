@@ -1,15 +1,104 @@
 package usask.hci.fastdraw;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
 import android.app.Activity;
+import android.app.AlertDialog;
+import android.content.DialogInterface;
 import android.os.Bundle;
 
 public class MainActivity extends Activity {
     private DrawView mDrawView;
+    private InputReplayer mReplayer;
+    private File mRecoveryFile; // the journal the last session left, if it drew anything
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        
+        // Moved aside before this session starts its own journal in its place
+        File journal = getJournalFile();
+        mRecoveryFile = new File(getFilesDir(), "Recovery.journal");
+        
+        if (!Journal.hasContent(journal) || !journal.renameTo(mRecoveryFile))
+            mRecoveryFile = null;
+        
         mDrawView = new DrawView(this);
         setContentView(mDrawView);
+        
+        // Replays a raw input recording once the view is laid out, e.g.
+        // adb shell am start -n usask.hci.fastdraw/.MainActivity --es replay <file.rec> --ez fast true
+        final String replay = getIntent().getStringExtra("replay");
+        final boolean fast = getIntent().getBooleanExtra("fast", false);
+        
+        if (replay != null) {
+            mDrawView.post(new Runnable() {
+                @Override
+                public void run() {
+                    startReplay(replay, fast);
+                }
+            });
+        }
+    }
+    
+    @Override
+    protected void onPause() {
+        super.onPause();
+        mDrawView.pause();
+    }
+
+    @Override
+    protected void onDestroy() {
+        if (mReplayer != null)
+            mReplayer.stop();
+        
+        mDrawView.destroy();
+        super.onDestroy();
+    }
+    
+    // Where the drawing is autosaved, in case the process is killed
+    File getJournalFile() {
+        return new File(getFilesDir(), "Autosave.journal");
+    }
+    
+    // Called once the study is set up, so a recovered drawing is not replaced by a new canvas
+    void offerRecovery() {
+        if (mRecoveryFile == null)
+            return;
+        
+        final File journal = mRecoveryFile;
+        mRecoveryFile = null;
+        
+        new AlertDialog.Builder(this)
+            .setMessage("Recover the drawing from the last session?")
+            .setCancelable(false)
+            .setPositiveButton(android.R.string.yes, new DialogInterface.OnClickListener() {
+                public void onClick(DialogInterface dialog, int which) {
+                    mDrawView.recover(journal);
+                }
+            })
+            .setNegativeButton(android.R.string.no, new DialogInterface.OnClickListener() {
+                public void onClick(DialogInterface dialog, int which) {
+                    journal.delete();
+                }
+            })
+            .show();
+    }
+    
+    private void startReplay(String path, boolean fast) {
+        try {
+            mReplayer = new InputReplayer(mDrawView, new FileInputStream(path));
+            
+            if (fast) {
+                mReplayer.replayNow();
+                mReplayer = null;
+            } else {
+                mReplayer.start(null);
+            }
+        } catch (IOException e) {
+            mDrawView.alert("Could not replay " + path + ": " + e.getMessage());
+        }
     }
 }
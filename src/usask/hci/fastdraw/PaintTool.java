@@ -1,18 +1,55 @@
 package usask.hci.fastdraw;
 
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Path;
-import android.graphics.PointF;
+import android.graphics.PorterDuff;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.Region;
 import android.graphics.Paint.Cap;
 import android.graphics.Paint.Join;
 import android.graphics.Paint.Style;
-import android.util.SparseArray;
+
+import usask.hci.fastdraw.core.StrokeBuilder;
+import usask.hci.fastdraw.core.StrokeSimplifier;
 
 public class PaintTool extends Tool {
     private Paint mPaint;
-    private SparseArray<PointF> mPoints;
-    private SparseArray<Path> mPaths;
+    private int mActive; // bit n is set while pointer id n is drawing
+    private StrokeBuilder mStrokes;
+    private StrokeSimplifier mSimplifier;
+    private float[] mKeptXs; // the samples of one batch left after simplification
+    private float[] mKeptYs;
+    private float[] mSegments; // control x, y, end x, y of the segments from one batch
+    private Path[] mPaths; // per pointer id, reused between strokes
+    private RectF mBounds;
+    private boolean mIncremental;
+    private Path[] mSettled;
+    private Path[] mTails;
+    private RectF[] mStrokeBounds;
+    private int[] mTailCounts;
+    private float[][] mPieces; // per pointer id, the start x, y and segments of the piece to settle next
+    private int[] mPieceCounts;
+    private int mOverlapping; // bit n is set once pointer id n's pieces start one settled segment back
+    private Path mPiece;
+    private Path mOverlap;
+    private Path mOverlapOutline;
+    private Bitmap mLayer; // covers the canvas in view from mLayerLeft, mLayerTop
+    private Canvas mLayerCanvas;
+    private int mLayerLeft;
+    private int mLayerTop;
+    private RectF mLayerBounds;
+    private Rect mLayerRect;
+    private Rect mLayerSource;
+    private RectF mVisible;
+    private Path mReplayPath;
+    private float[] mReplaySegments;
+    private float[] mSvgSegments;
+    private float[] mMoveXs;
+    private float[] mMoveYs;
+    private static final int mUnsettledSegments = 4; // segments kept out of the layer so their joins stay exact
     
     public PaintTool(DrawView drawView) {
         super(drawView);
@@ -24,54 +61,393 @@ public class PaintTool extends Tool {
         mPaint.setStrokeJoin(Join.ROUND);
         mPaint.setStrokeCap(Cap.ROUND);
         
-        mPoints = new SparseArray<PointF>();
-        mPaths = new SparseArray<Path>();
+        mStrokes = new StrokeBuilder();
+        mSimplifier = new StrokeSimplifier(0);
+        mKeptXs = new float[17];
+        mKeptYs = new float[17];
+        mSegments = new float[64];
+        mPaths = new Path[32]; // Pointer ids are always below 32
+        mBounds = new RectF();
+        mIncremental = true;
+        mSettled = new Path[32];
+        mTails = new Path[32];
+        mStrokeBounds = new RectF[32];
+        mTailCounts = new int[32];
+        mPieces = new float[32][];
+        mPieceCounts = new int[32];
+        mPiece = new Path();
+        mOverlap = new Path();
+        mOverlapOutline = new Path();
+        mLayerBounds = new RectF();
+        mLayerRect = new Rect();
+        mLayerSource = new Rect();
+        mVisible = new RectF();
+        mReplayPath = new Path();
+        mReplaySegments = new float[64];
+        mSvgSegments = new float[64];
+        mMoveXs = new float[1];
+        mMoveYs = new float[1];
+    }
+    
+    // In incremental mode settled segments are rasterized into a layer as they are produced,
+    // so each frame only draws the layer and the last few segments instead of the whole path.
+    // Settling a piece costs the same however long the stroke is.
+    public void setIncremental(boolean incremental) {
+        clearFingers();
+        mIncremental = incremental;
+        
+        if (!incremental) {
+            mLayer = null;
+            mLayerCanvas = null;
+        }
+    }
+    
+    // Samples closer than tolerance times the thickness to the stroke without them are dropped,
+    // from the next stroke on. 0 keeps every sample.
+    public void setTolerance(float tolerance) {
+        mSimplifier.setTolerance(tolerance);
+    }
+    
+    // Writes how many samples the strokes so far had and how many were drawn
+    public void report(StudyLogger log) {
+        if (mSimplifier.getReceived() == 0)
+            return;
+        
+        log.strokeVertices(mSimplifier.getReceived(), mSimplifier.getVertices(), mSimplifier.getTolerance());
     }
     
     public void touchStart(int id, float x, float y) {
-        Path path = new Path();
-        path.moveTo(x, y);
+        mActive |= 1 << id;
+        startPath(mPaths, id, x, y);
+        mStrokes.start(id, x, y);
+        mSimplifier.start(id, x, y, getThickness());
         
-        mPaths.put(id, path);
-        mPoints.put(id, new PointF(x, y));
+        if (mIncremental) {
+            ensureLayer();
+            startPath(mSettled, id, x, y);
+            startPath(mTails, id, x, y);
+            
+            if (mStrokeBounds[id] == null)
+                mStrokeBounds[id] = new RectF();
+            
+            mStrokeBounds[id].setEmpty();
+            mTailCounts[id] = 0;
+            
+            if (mPieces[id] == null)
+                mPieces[id] = new float[2 + (mUnsettledSegments + 1) * 4];
+            
+            mPieces[id][0] = x;
+            mPieces[id][1] = y;
+            mPieceCounts[id] = 0;
+            mOverlapping &= ~(1 << id);
+        }
     }
 
+    // The per-pointer paths are only allocated the first time each pointer id is seen
+    private void startPath(Path[] paths, int id, float x, float y) {
+        if (paths[id] == null)
+            paths[id] = new Path();
+        
+        paths[id].reset();
+        paths[id].moveTo(x, y);
+    }
+    
     public void touchMove(int id, float x, float y) {
-        PointF point = mPoints.get(id);
-        Path path = mPaths.get(id);
+        mMoveXs[0] = x;
+        mMoveYs[0] = y;
+        touchMoveBatch(id, mMoveXs, mMoveYs, null, 1);
+    }
+    
+    @Override
+    public void touchMoveBatch(int id, float[] xs, float[] ys, long[] times, int count) {
+        if (count + 1 > mKeptXs.length) {
+            mKeptXs = new float[count + 1];
+            mKeptYs = new float[count + 1];
+        }
+        
+        int kept = mSimplifier.simplify(id, xs, ys, count, mKeptXs, mKeptYs);
+        extend(id, mKeptXs, mKeptYs, kept);
+    }
+    
+    // Extends the curve through all of the samples in one pass, marking their combined bounds dirty once
+    private void extend(int id, float[] xs, float[] ys, int count) {
+        if (count == 0)
+            return;
         
-        float midX = (point.x + x) / 2;
-        float midY = (point.y + y) / 2;
+        Path path = mPaths[id];
+        Path settled = mSettled[id];
+        Path tail = mTails[id];
         
-        path.quadTo(point.x, point.y, midX, midY);
+        if (count * 4 > mSegments.length)
+            mSegments = new float[count * 4];
         
-        point.x = x;
-        point.y = y;
+        float[] segments = mSegments;
+        mStrokes.extend(id, xs, ys, count, segments);
+        
+        if (mIncremental) {
+            mPaint.setColor(getColor());
+            mPaint.setStrokeWidth(getThickness());
+        }
+        
+        for (int i = 0; i < count; i++) {
+            float controlX = segments[i * 4];
+            float controlY = segments[i * 4 + 1];
+            float midX = segments[i * 4 + 2];
+            float midY = segments[i * 4 + 3];
+        
+            path.quadTo(controlX, controlY, midX, midY);
+        
+            if (mIncremental) {
+                settled.quadTo(controlX, controlY, midX, midY);
+                tail.quadTo(controlX, controlY, midX, midY);
+            
+                float[] piece = mPieces[id];
+                int offset = 2 + mPieceCounts[id]++ * 4;
+                piece[offset] = controlX;
+                piece[offset + 1] = controlY;
+                piece[offset + 2] = midX;
+                piece[offset + 3] = midY;
+                
+                if (++mTailCounts[id] >= mUnsettledSegments) {
+                    settle(id);
+                    tail.reset();
+                    tail.moveTo(midX, midY);
+                    mTailCounts[id] = 0;
+                }
+            }
+        }
+        
+        float[] bounds = mStrokes.getBounds();
+        markDirty(bounds[0], bounds[1], bounds[2], bounds[3]);
+            
+        if (mIncremental)
+            mStrokeBounds[id].union(bounds[0], bounds[1], bounds[2], bounds[3]);
     }
 
     public void touchStop(int id, float x, float y, Canvas canvas) {
-        Path path = mPaths.get(id);
+        if ((mActive & (1 << id)) == 0)
+            return;
+        
+        // Finish at the last sample if simplification dropped it
+        if (mSimplifier.finish(id, mKeptXs, mKeptYs))
+            extend(id, mKeptXs, mKeptYs, 1);
         
+        // The complete path is committed in one go, so the result is identical in either mode
         mPaint.setColor(getColor());
         mPaint.setStrokeWidth(getThickness());
-        canvas.drawPath(path, mPaint);
+        canvas.drawPath(mPaths[id], mPaint);
+        
+        if (mStrokes.getSampleCount(id) > 1)
+            record(mStrokes.getSamples(id), mStrokes.getSampleCount(id));
         
-        mPoints.delete(id);
-        mPaths.delete(id);
+        mActive &= ~(1 << id);
+        
+        if (mIncremental) {
+            RectF strokeBounds = mStrokeBounds[id];
+            
+            // The preview was drawn in pieces, so show the exact committed stroke
+            markDirty(strokeBounds.left, strokeBounds.top, strokeBounds.right, strokeBounds.bottom);
+            
+            if (mActive == 0) {
+                clearLayer(mLayerBounds);
+                mLayerBounds.setEmpty();
+            } else {
+                // Remove this stroke from the layer and repaint what overlapped it from the other fingers
+                redrawLayer(strokeBounds);
+            }
+        }
     }
     
     public void clearFingers() {
-        mPoints.clear();
-        mPaths.clear();
+        for (int i = 0; i < 32; i++) {
+            if ((mActive & (1 << i)) != 0) {
+                mPaths[i].computeBounds(mBounds, false);
+                markDirty(mBounds.left, mBounds.top, mBounds.right, mBounds.bottom);
+            }
+        }
+        
+        mActive = 0;
+        
+        if (mIncremental) {
+            clearLayer(mLayerBounds);
+            mLayerBounds.setEmpty();
+        }
     }
     
     public void draw(Canvas canvas) {
         mPaint.setColor(getColor());
         mPaint.setStrokeWidth(getThickness());
         
-        for (int i = 0; i < mPaths.size(); i++) {
-            Path path = mPaths.valueAt(i);
-            canvas.drawPath(path, mPaint);
+        if (mIncremental) {
+            if (!mLayerBounds.isEmpty()) {
+                layerRect(mLayerBounds);
+                mLayerSource.set(mLayerRect);
+                mLayerSource.offset(-mLayerLeft, -mLayerTop);
+                canvas.drawBitmap(mLayer, mLayerSource, mLayerRect, null);
+            }
+            
+            for (int i = 0; i < 32; i++) {
+                if ((mActive & (1 << i)) != 0)
+                    canvas.drawPath(mTails[i], mPaint);
+            }
+        } else {
+            for (int i = 0; i < 32; i++) {
+                if ((mActive & (1 << i)) != 0)
+                    canvas.drawPath(mPaths[i], mPaint);
+            }
         }
     }
+    
+    // Rebuilds the path the same way touchMove does
+    public void replay(float[] coords, int offset, int count, int color, int thickness, Canvas canvas) {
+        Path path = mReplayPath;
+        path.reset();
+        path.moveTo(coords[offset], coords[offset + 1]);
+        
+        if (count * 4 > mReplaySegments.length)
+            mReplaySegments = new float[count * 4];
+        
+        float[] segments = mReplaySegments;
+        int segmentCount = StrokeBuilder.segments(coords, offset, count, segments);
+            
+        for (int i = 0; i < segmentCount; i++) {
+            path.quadTo(segments[i * 4], segments[i * 4 + 1], segments[i * 4 + 2], segments[i * 4 + 3]);
+        }
+        
+        mPaint.setColor(color);
+        mPaint.setStrokeWidth(thickness);
+        canvas.drawPath(path, mPaint);
+    }
+
+    // The same quadratic segments replay() draws
+    @Override
+    public void writeSvg(float[] coords, int offset, int count, int color, int thickness, StringBuilder out) {
+        if (count * 4 > mSvgSegments.length)
+            mSvgSegments = new float[count * 4];
+        
+        int segmentCount = StrokeBuilder.segments(coords, offset, count, mSvgSegments);
+        
+        out.append("<path d=\"M");
+        SvgExporter.appendNumber(out, coords[offset]);
+        out.append(' ');
+        SvgExporter.appendNumber(out, coords[offset + 1]);
+        
+        for (int i = 0; i < segmentCount * 4; i += 4) {
+            out.append(i == 0 ? "Q" : " ");
+            SvgExporter.appendNumber(out, mSvgSegments[i]);
+            out.append(' ');
+            SvgExporter.appendNumber(out, mSvgSegments[i + 1]);
+            out.append(' ');
+            SvgExporter.appendNumber(out, mSvgSegments[i + 2]);
+            out.append(' ');
+            SvgExporter.appendNumber(out, mSvgSegments[i + 3]);
+        }
+        
+        out.append('"');
+        SvgExporter.appendStroke(out, color, thickness);
+        out.append(" stroke-linecap=\"round\" stroke-linejoin=\"round\"/>");
+    }
+    
+    // The layer only has to cover the canvas in view, since strokes cannot leave it. It moves
+    // with the view, which can only happen while no stroke is in it.
+    private void ensureLayer() {
+        getVisibleBounds(mVisible);
+        int left = (int) Math.floor(mVisible.left);
+        int top = (int) Math.floor(mVisible.top);
+        int width = (int) Math.ceil(mVisible.right) - left;
+        int height = (int) Math.ceil(mVisible.bottom) - top;
+        
+        if (mLayer == null || mLayer.getWidth() != width || mLayer.getHeight() != height) {
+            mLayer = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            mLayerCanvas = null;
+            mLayerBounds.setEmpty();
+        }
+        
+        if (mLayerCanvas == null || (mLayerBounds.isEmpty() && (left != mLayerLeft || top != mLayerTop))) {
+            mLayerCanvas = new Canvas(mLayer);
+            mLayerCanvas.translate(-left, -top);
+            mLayerLeft = left;
+            mLayerTop = top;
+        }
+    }
+    
+    // Sets mLayerRect to bounds, padded for the stroke width and clamped to the layer, in canvas
+    // coordinates
+    private void layerRect(RectF bounds) {
+        float pad = (float)getThickness() / 2 + 2;
+        
+        mLayerRect.set((int) Math.max(mLayerLeft, bounds.left - pad), (int) Math.max(mLayerTop, bounds.top - pad),
+                (int) Math.min(mLayerLeft + mLayer.getWidth(), Math.ceil(bounds.right + pad)),
+                (int) Math.min(mLayerTop + mLayer.getHeight(), Math.ceil(bounds.bottom + pad)));
+    }
+    
+    // Draws the pointer's next piece into the layer. The piece starts one settled segment back, so
+    // its first join is stroked as it is in the whole path, and is clipped to leave the pixels of
+    // that segment as they were, so the seam is not blended twice. Only the piece is stroked.
+    private void settle(int id) {
+        float[] piece = mPieces[id];
+        int count = mPieceCounts[id];
+        
+        mPiece.reset();
+        mPiece.moveTo(piece[0], piece[1]);
+        
+        for (int i = 2; i < 2 + count * 4; i += 4) {
+            mPiece.quadTo(piece[i], piece[i + 1], piece[i + 2], piece[i + 3]);
+        }
+        
+        // Padded by the stroke width, so a straight piece does not have empty bounds
+        mPiece.computeBounds(mBounds, false);
+        mBounds.inset(-(float) getThickness() / 2, -(float) getThickness() / 2);
+        mLayerBounds.union(mBounds);
+        
+        mLayerCanvas.save();
+        
+        if ((mOverlapping & (1 << id)) != 0) {
+            mOverlap.reset();
+            mOverlap.moveTo(piece[0], piece[1]);
+            mOverlap.quadTo(piece[2], piece[3], piece[4], piece[5]);
+            mPaint.getFillPath(mOverlap, mOverlapOutline);
+            mLayerCanvas.clipPath(mOverlapOutline, Region.Op.DIFFERENCE);
+        }
+        
+        mLayerCanvas.drawPath(mPiece, mPaint);
+        mLayerCanvas.restore();
+        
+        // The last segment starts the next piece
+        int last = 2 + (count - 1) * 4;
+        piece[0] = piece[last - 2];
+        piece[1] = piece[last - 1];
+        System.arraycopy(piece, last, piece, 2, 4);
+        mPieceCounts[id] = 1;
+        mOverlapping |= 1 << id;
+    }
+    
+    // Clears the layer within bounds and draws the settled part of every active stroke there again,
+    // each in one pass, so the pieces of a stroke meet in joins rather than overlapping caps
+    private void redrawLayer(RectF bounds) {
+        if (bounds.isEmpty())
+            return;
+        
+        clearLayer(bounds); // Leaves mLayerRect set to the cleared area
+        
+        mLayerCanvas.save();
+        mLayerCanvas.clipRect(mLayerRect);
+        for (int i = 0; i < 32; i++) {
+            if ((mActive & (1 << i)) != 0)
+                mLayerCanvas.drawPath(mSettled[i], mPaint);
+        }
+        mLayerCanvas.restore();
+    }
+    
+    private void clearLayer(RectF bounds) {
+        if (mLayer == null || bounds.isEmpty())
+            return;
+        
+        layerRect(bounds);
+        
+        mLayerCanvas.save();
+        mLayerCanvas.clipRect(mLayerRect);
+        mLayerCanvas.drawColor(0, PorterDuff.Mode.CLEAR);
+        mLayerCanvas.restore();
+    }
 }
@@ -0,0 +1,121 @@
+package usask.hci.fastdraw;
+
+import java.util.Arrays;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+import usask.hci.fastdraw.core.PaletteIndex;
+
+// The committed picture at one byte per pixel, as indices into the drawing's palette. Android
+// cannot draw into indexed pixels, so drawing goes through a band of ARGB rows: each band of the
+// area is expanded into it, drawn on, and quantized back. Only the rows being drawn or displayed
+// are ever expanded. Must be used with the bitmap lock held, like the bitmap it replaces.
+public class PaletteCanvas {
+    private static final int mBandRows = 64;
+    
+    private int mWidth;
+    private int mHeight;
+    private PaletteIndex mPalette;
+    private byte[] mIndices;
+    private int[] mRows; // ARGB of up to a band of rows
+    private Bitmap mBand;
+    private Canvas mBandCanvas;
+    
+    // Draws into the area of one band, with the canvas clipped to it
+    public interface Painter {
+        void paint(Canvas canvas, float left, float top, float right, float bottom);
+    }
+    
+    public PaletteCanvas(int width, int height, int[] palette) {
+        mWidth = width;
+        mHeight = height;
+        mPalette = new PaletteIndex(palette);
+        mIndices = new byte[width * height];
+        mRows = new int[width * mBandRows];
+        mBand = Bitmap.createBitmap(width, mBandRows, Bitmap.Config.ARGB_8888);
+        mBandCanvas = new Canvas(mBand);
+    }
+    
+    public int getWidth() {
+        return mWidth;
+    }
+    
+    public int getHeight() {
+        return mHeight;
+    }
+    
+    public void clear() {
+        Arrays.fill(mIndices, (byte) 0);
+    }
+    
+    // Reads the pixels of an area as ARGB, like Bitmap.getPixels
+    public void getPixels(int[] pixels, int offset, int stride, int x, int y, int width, int height) {
+        for (int row = 0; row < height; row++) {
+            mPalette.expand(mIndices, (y + row) * mWidth + x, pixels, offset + row * stride, width);
+        }
+    }
+    
+    // Copies the indices of an area, for saving and restoring it
+    public void getIndices(byte[] indices, int offset, int stride, int x, int y, int width, int height) {
+        for (int row = 0; row < height; row++) {
+            System.arraycopy(mIndices, (y + row) * mWidth + x, indices, offset + row * stride, width);
+        }
+    }
+    
+    public void setIndices(byte[] indices, int offset, int stride, int x, int y, int width, int height) {
+        for (int row = 0; row < height; row++) {
+            System.arraycopy(indices, offset + row * stride, mIndices, (y + row) * mWidth + x, width);
+        }
+    }
+    
+    // Draws the pixels within clip at their place on canvas
+    public void draw(Canvas canvas, Rect clip, Paint paint) {
+        int left = Math.max(0, clip.left);
+        int right = Math.min(mWidth, clip.right);
+        int width = right - left;
+        
+        if (width <= 0)
+            return;
+        
+        int rows = mRows.length / width;
+        
+        for (int top = Math.max(0, clip.top); top < Math.min(mHeight, clip.bottom); top += rows) {
+            int height = Math.min(rows, Math.min(mHeight, clip.bottom) - top);
+            getPixels(mRows, 0, width, left, top, width, height);
+            canvas.drawBitmap(mRows, 0, width, left, top, width, height, false, paint);
+        }
+    }
+    
+    // Has painter draw over the area, left, top, right, bottom, a band at a time
+    public void render(float left, float top, float right, float bottom, Painter painter) {
+        int x = Math.max(0, (int) Math.floor(left));
+        int width = Math.min(mWidth, (int) Math.ceil(right)) - x;
+        int start = Math.max(0, (int) Math.floor(top));
+        int end = Math.min(mHeight, (int) Math.ceil(bottom));
+        
+        if (width <= 0)
+            return;
+        
+        for (int y = start; y < end; y += mBandRows) {
+            int height = Math.min(mBandRows, end - y);
+            
+            getPixels(mRows, 0, width, x, y, width, height);
+            mBand.setPixels(mRows, 0, width, x, 0, width, height);
+            
+            mBandCanvas.save();
+            mBandCanvas.translate(0, -y);
+            mBandCanvas.clipRect(x, y, x + width, y + height);
+            painter.paint(mBandCanvas, x, y, x + width, y + height);
+            mBandCanvas.restore();
+            
+            mBand.getPixels(mRows, 0, width, x, 0, width, height);
+            
+            for (int row = 0; row < height; row++) {
+                mPalette.quantize(mRows, row * width, mIndices, (y + row) * mWidth + x, width);
+            }
+        }
+    }
+}
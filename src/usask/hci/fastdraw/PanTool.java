@@ -0,0 +1,118 @@
+package usask.hci.fastdraw;
+
+import android.graphics.Canvas;
+
+import usask.hci.fastdraw.core.Viewport;
+
+// Moves the view over the canvas: one finger drags it, two pinch to zoom about their midpoint.
+// Each finger keeps the canvas point it went down on under it. Input arrives in canvas
+// coordinates as of when it was applied, so it is turned back into view coordinates at once,
+// before the viewport moves under it. Draws and records nothing.
+public class PanTool extends Tool {
+    private int mActive; // bit n is set while pointer id n is down
+    private float[] mGrabbed; // x, y canvas pairs indexed by pointer id
+    private float[] mPositions; // x, y view pairs indexed by pointer id
+    
+    public PanTool(DrawView drawView) {
+        super(drawView);
+        
+        mGrabbed = new float[64];
+        mPositions = new float[64];
+    }
+    
+    @Override
+    public void touchStart(int id, float x, float y) {
+        mActive |= 1 << id;
+        mPositions[id * 2] = getViewport().toViewX(x);
+        mPositions[id * 2 + 1] = getViewport().toViewY(y);
+        regrab();
+    }
+    
+    @Override
+    public void touchMove(int id, float x, float y) {
+        if ((mActive & (1 << id)) == 0)
+            return;
+        
+        mPositions[id * 2] = getViewport().toViewX(x);
+        mPositions[id * 2 + 1] = getViewport().toViewY(y);
+        move();
+    }
+    
+    // Each batch moves the view once
+    @Override
+    public void touchMoveBatch(int id, float[] xs, float[] ys, long[] times, int count) {
+        touchMove(id, xs[count - 1], ys[count - 1]);
+    }
+    
+    @Override
+    public void touchStop(int id, float x, float y, Canvas canvas) {
+        mActive &= ~(1 << id);
+        regrab();
+    }
+    
+    @Override
+    public void clearFingers() {
+        mActive = 0;
+    }
+    
+    @Override
+    public void draw(Canvas canvas) {
+    }
+    
+    @Override
+    public void replay(float[] coords, int offset, int count, int color, int thickness, Canvas canvas) {
+    }
+    
+    private void move() {
+        int first = first(mActive);
+        
+        if (first == -1)
+            return;
+        
+        Viewport viewport = getViewport();
+        int second = first(mActive & ~(1 << first));
+        boolean changed;
+        
+        if (second == -1) {
+            changed = viewport.place(mGrabbed[first * 2], mGrabbed[first * 2 + 1],
+                    mPositions[first * 2], mPositions[first * 2 + 1], viewport.getScale());
+        } else {
+            float grabbed = distance(mGrabbed, first, second);
+            float apart = distance(mPositions, first, second);
+            
+            if (grabbed == 0)
+                return;
+            
+            changed = viewport.place((mGrabbed[first * 2] + mGrabbed[second * 2]) / 2,
+                    (mGrabbed[first * 2 + 1] + mGrabbed[second * 2 + 1]) / 2,
+                    (mPositions[first * 2] + mPositions[second * 2]) / 2,
+                    (mPositions[first * 2 + 1] + mPositions[second * 2 + 1]) / 2, apart / grabbed);
+        }
+        
+        if (changed)
+            viewportChanged();
+    }
+    
+    // When the fingers change, those left down take hold of the canvas points now under them, since
+    // the view may not have been able to follow them exactly
+    private void regrab() {
+        Viewport viewport = getViewport();
+        
+        for (int i = 0; i < 32; i++) {
+            if ((mActive & (1 << i)) != 0) {
+                mGrabbed[i * 2] = viewport.toCanvasX(mPositions[i * 2]);
+                mGrabbed[i * 2 + 1] = viewport.toCanvasY(mPositions[i * 2 + 1]);
+            }
+        }
+    }
+    
+    private static int first(int bits) {
+        return bits == 0 ? -1 : Integer.numberOfTrailingZeros(bits);
+    }
+    
+    private static float distance(float[] pairs, int a, int b) {
+        float dx = pairs[a * 2] - pairs[b * 2];
+        float dy = pairs[a * 2 + 1] - pairs[b * 2 + 1];
+        return (float) Math.sqrt(dx * dx + dy * dy);
+    }
+}
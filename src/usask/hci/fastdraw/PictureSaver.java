@@ -0,0 +1,245 @@
+package usask.hci.fastdraw;
+
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+
+// Saves pictures without holding the bitmap lock while they are encoded. A save only copies the
+// bitmap into a pooled snapshot under the lock, and a single worker thread encodes it. Palette and
+// tiled canvases are expanded into the snapshot a band of rows at a time, never as a whole. A save
+// requested while another is still waiting for the worker replaces that one's snapshot, so a
+// burst of saves writes only the newest picture and at most one encode is ever queued.
+public class PictureSaver {
+    private static final int mBandRows = 64;
+    
+    private StudyLogger mLog;
+    private Object mBitmapLock;
+    private ThreadPoolExecutor mExecutor;
+    private Runnable mEncodeTask;
+    private Format mFormat;
+    private Bitmap mPending; // snapshot waiting for the worker, or null
+    private long mPendingTime; // when the pending save was requested, which names its file
+    private Format mPendingFormat;
+    private Bitmap mSpare; // snapshot not in use by either side, reused by the next save
+    private Canvas mSnapshotCanvas;
+    private int[] mBand; // ARGB of up to a band of rows, only used under the bitmap lock
+    private ByteBuffer mRawBuffer; // only used by the worker
+    
+    public enum Format {
+        // Lossless, slowest to encode
+        PNG("png") {
+            void encode(PictureSaver saver, Bitmap bitmap, FileOutputStream out) throws IOException {
+                if (!bitmap.compress(Bitmap.CompressFormat.PNG, 100, out))
+                    throw new IOException("Could not encode the picture as PNG");
+            }
+        },
+        
+        // Smaller files than PNG. At quality 100 this API level's encoder is near-lossless
+        // rather than strictly lossless.
+        WEBP("webp") {
+            void encode(PictureSaver saver, Bitmap bitmap, FileOutputStream out) throws IOException {
+                if (!bitmap.compress(Bitmap.CompressFormat.WEBP, 100, out))
+                    throw new IOException("Could not encode the picture as WebP");
+            }
+        },
+        
+        // Width and height, then the ARGB_8888 pixels as they are in memory. Costs almost no CPU.
+        RAW("raw") {
+            void encode(PictureSaver saver, Bitmap bitmap, FileOutputStream out) throws IOException {
+                DataOutputStream header = new DataOutputStream(out);
+                header.writeInt(bitmap.getWidth());
+                header.writeInt(bitmap.getHeight());
+                header.flush();
+                
+                ByteBuffer buffer = saver.rawBuffer(bitmap.getRowBytes() * bitmap.getHeight());
+                bitmap.copyPixelsToBuffer(buffer);
+                buffer.flip();
+                
+                while (buffer.hasRemaining()) {
+                    out.getChannel().write(buffer);
+                }
+            }
+        };
+        
+        private String mExtension;
+        
+        private Format(String extension) {
+            mExtension = extension;
+        }
+        
+        public String getExtension() {
+            return mExtension;
+        }
+        
+        abstract void encode(PictureSaver saver, Bitmap bitmap, FileOutputStream out) throws IOException;
+    }
+    
+    public PictureSaver(StudyLogger log, Object bitmapLock) {
+        mLog = log;
+        mBitmapLock = bitmapLock;
+        mFormat = Format.PNG;
+        
+        // With coalescing there is never more than one encode waiting behind the running one
+        mExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(1));
+        
+        mEncodeTask = new Runnable() {
+            @Override
+            public void run() {
+                encodePending();
+            }
+        };
+    }
+    
+    public synchronized void setFormat(Format format) {
+        mFormat = format;
+    }
+    
+    // Snapshots the bitmap and returns as soon as the bitmap lock is released
+    public void save(Bitmap bitmap) {
+        mLog.event(LogFormat.PICTURE_SAVED);
+        
+        synchronized (mBitmapLock) {
+            synchronized (this) {
+                boolean queued = takeSnapshot(bitmap.getWidth(), bitmap.getHeight());
+                
+                if (mSnapshotCanvas == null)
+                    mSnapshotCanvas = new Canvas();
+                
+                mSnapshotCanvas.setBitmap(mPending);
+                mSnapshotCanvas.drawBitmap(bitmap, 0, 0, null);
+                mSnapshotCanvas.setBitmap(null);
+                queueSnapshot(queued);
+            }
+        }
+    }
+    
+    public void save(PaletteCanvas palette) {
+        mLog.event(LogFormat.PICTURE_SAVED);
+        
+        synchronized (mBitmapLock) {
+            synchronized (this) {
+                int width = palette.getWidth();
+                int height = palette.getHeight();
+                boolean queued = takeSnapshot(width, height);
+                int[] band = band(width);
+                
+                for (int y = 0; y < height; y += mBandRows) {
+                    int rows = Math.min(mBandRows, height - y);
+                    palette.getPixels(band, 0, width, 0, y, width, rows);
+                    mPending.setPixels(band, 0, width, 0, y, width, rows);
+                }
+                
+                queueSnapshot(queued);
+            }
+        }
+    }
+    
+    public void save(TiledCanvas tiles) {
+        mLog.event(LogFormat.PICTURE_SAVED);
+        
+        synchronized (mBitmapLock) {
+            synchronized (this) {
+                int width = tiles.getWidth();
+                int height = tiles.getHeight();
+                boolean queued = takeSnapshot(width, height);
+                int[] band = band(width);
+                
+                for (int y = 0; y < height; y += mBandRows) {
+                    int rows = Math.min(mBandRows, height - y);
+                    tiles.getPixels(band, 0, width, 0, y, width, rows);
+                    mPending.setPixels(band, 0, width, 0, y, width, rows);
+                }
+                
+                queueSnapshot(queued);
+            }
+        }
+    }
+    
+    // Waits for the pending save, if any, to be written
+    public void shutdown() {
+        mExecutor.shutdown();
+        
+        try {
+            mExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private void encodePending() {
+        Bitmap snapshot;
+        long time;
+        Format format;
+        
+        synchronized (this) {
+            snapshot = mPending;
+            time = mPendingTime;
+            format = mPendingFormat;
+            mPending = null;
+        }
+        
+        FileOutputStream out = null;
+        
+        try {
+            out = new FileOutputStream(mLog.getPictureFile(time, format.getExtension()));
+            format.encode(this, snapshot, out);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (out != null) {
+                try { out.close(); } catch (IOException e) {}
+            }
+        }
+        
+        synchronized (this) {
+            mSpare = snapshot;
+        }
+    }
+    
+    // Makes mPending a snapshot of the given size, reusing the one waiting for the worker or the
+    // spare. Returns whether one was already waiting, in which case it is replaced.
+    private boolean takeSnapshot(int width, int height) {
+        boolean queued = mPending != null;
+        
+        if (!queued) {
+            mPending = mSpare;
+            mSpare = null;
+        }
+        
+        if (mPending == null || mPending.getWidth() != width || mPending.getHeight() != height)
+            mPending = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        
+        return queued;
+    }
+    
+    private int[] band(int width) {
+        if (mBand == null || mBand.length < width * mBandRows)
+            mBand = new int[width * mBandRows];
+        
+        return mBand;
+    }
+    
+    private void queueSnapshot(boolean queued) {
+        mPendingTime = System.currentTimeMillis();
+        mPendingFormat = mFormat;
+        
+        if (!queued)
+            mExecutor.execute(mEncodeTask);
+    }
+    
+    private ByteBuffer rawBuffer(int size) {
+        if (mRawBuffer == null || mRawBuffer.capacity() < size)
+            mRawBuffer = ByteBuffer.allocateDirect(size);
+        
+        mRawBuffer.clear();
+        mRawBuffer.limit(size);
+        return mRawBuffer;
+    }
+}
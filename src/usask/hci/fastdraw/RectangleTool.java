@@ -3,13 +3,16 @@ package usask.hci.fastdraw;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Paint.Style;
-import android.graphics.PointF;
-import android.util.SparseArray;
+
+import usask.hci.fastdraw.core.ShapeTracker;
+import usask.hci.fastdraw.core.StrokeGeometry;
 
 public class RectangleTool extends Tool {
     private Paint mPaint;
-    private SparseArray<PointF> mOrigins;
-    private SparseArray<PointF> mEnds;
+    private ShapeTracker mShapes;
+    private float[] mStroke;
+    private float[] mRect; // left, top, right, bottom
+    private float[] mSvgRect;
     
     public RectangleTool(DrawView drawView) {
         super(drawView);
@@ -19,68 +22,104 @@ public class RectangleTool extends Tool {
         mPaint.setDither(true);
         mPaint.setStyle(Style.STROKE);
         
-        mOrigins = new SparseArray<PointF>();
-        mEnds = new SparseArray<PointF>();
+        mShapes = new ShapeTracker();
+        mStroke = new float[4];
+        mRect = new float[4];
+        mSvgRect = new float[4];
     }
 
     @Override
     public void touchStart(int id, float x, float y) {
-        mOrigins.put(id, new PointF(x, y));
+        mShapes.start(id, x, y);
     }
 
     @Override
     public void touchMove(int id, float x, float y) {
-        mEnds.put(id, new PointF(x, y));
+        markId(id);
+        mShapes.move(id, x, y);
+        markId(id);
+    }
+    
+    // Only the newest sample affects the shape
+    @Override
+    public void touchMoveBatch(int id, float[] xs, float[] ys, long[] times, int count) {
+        if (count > 0)
+            touchMove(id, xs[count - 1], ys[count - 1]);
     }
 
     @Override
     public void touchStop(int id, float x, float y, Canvas canvas) {
         drawId(id, canvas);
-        mOrigins.delete(id);
-        mEnds.delete(id);
+        
+        if (mShapes.isMoved(id)) {
+            mShapes.getCoords(id, mStroke);
+            record(mStroke, 2);
+        }
+        
+        mShapes.stop(id);
     }
 
     @Override
     public void clearFingers() {
-        mOrigins.clear();
-        mEnds.clear();
+        for (int id = 0; id < 32; id++) {
+            markId(id);
+        }
+        
+        mShapes.clear();
     }
 
     @Override
     public void draw(Canvas canvas) {
-        for (int i = 0; i < mOrigins.size(); i++) {
-            int id = mOrigins.keyAt(i);
+        for (int id = 0; id < 32; id++) {
             drawId(id, canvas);
         }
     }
     
     private void drawId(int id, Canvas canvas) {
-        PointF origin = mOrigins.get(id);
-        PointF end = mEnds.get(id);
+        if (mShapes.isMoved(id))
+            drawRect(mShapes.getOriginX(id), mShapes.getOriginY(id), mShapes.getEndX(id), mShapes.getEndY(id), getColor(), getThickness(), canvas);
+    }
+    
+    @Override
+    public void replay(float[] coords, int offset, int count, int color, int thickness, Canvas canvas) {
+        drawRect(coords[offset], coords[offset + 1], coords[offset + 2], coords[offset + 3], color, thickness, canvas);
+    }
+    
+    // The outline is not the line between the stroke's two points, so distance is overridden. The
+    // points are opposite corners, though, so the default getBounds already fits it.
+    @Override
+    public float distance(float[] coords, int offset, int count, float x, float y) {
+        ShapeTracker.rect(coords[offset], coords[offset + 1], coords[offset + 2], coords[offset + 3], mRect);
+        return StrokeGeometry.rect(mRect[0], mRect[1], mRect[2], mRect[3], x, y);
+    }
+    
+    @Override
+    public void writeSvg(float[] coords, int offset, int count, int color, int thickness, StringBuilder out) {
+        ShapeTracker.rect(coords[offset], coords[offset + 1], coords[offset + 2], coords[offset + 3], mSvgRect);
         
-        if (end != null) {
-            mPaint.setColor(getColor());
-            mPaint.setStrokeWidth(getThickness());
-            
-            float left, top, right, bottom;
-            
-            if (origin.x <= end.x) {
-                left = origin.x;
-                right = end.x;
-            } else {
-                left = end.x;
-                right = origin.x;
-            }
-            
-            if (origin.y <= end.y) {
-                top = origin.y;
-                bottom = end.y;
-            } else {
-                top = end.y;
-                bottom = origin.y;
-            }
+        out.append("<rect x=\"");
+        SvgExporter.appendNumber(out, mSvgRect[0]);
+        out.append("\" y=\"");
+        SvgExporter.appendNumber(out, mSvgRect[1]);
+        out.append("\" width=\"");
+        SvgExporter.appendNumber(out, mSvgRect[2] - mSvgRect[0]);
+        out.append("\" height=\"");
+        SvgExporter.appendNumber(out, mSvgRect[3] - mSvgRect[1]);
+        out.append('"');
+        SvgExporter.appendStroke(out, color, thickness);
+        out.append("/>");
+    }
+    
+    private void drawRect(float x1, float y1, float x2, float y2, int color, int thickness, Canvas canvas) {
+        mPaint.setColor(color);
+        mPaint.setStrokeWidth(thickness);
             
-            canvas.drawRect(left, top, right, bottom, mPaint);
-        }
+        ShapeTracker.rect(x1, y1, x2, y2, mRect);
+        canvas.drawRect(mRect[0], mRect[1], mRect[2], mRect[3], mPaint);
+    }
+    
+    private void markId(int id) {
+        if (mShapes.isMoved(id))
+            markDirty(mShapes.getOriginX(id), mShapes.getOriginY(id), mShapes.getEndX(id), mShapes.getEndY(id));
     }
 }
@@ -0,0 +1,223 @@
+package usask.hci.fastdraw;
+
+import java.io.File;
+
+import android.graphics.Canvas;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.view.SurfaceHolder;
+
+// Runs the tools and draws the picture onto a SurfaceView, so input dispatch on the UI thread and
+// rasterization never wait on each other. The UI thread only hit-tests the grid and queues the
+// tool's input here; from then on this thread is the only one that draws into the bitmap.
+public class RenderThread extends Thread implements SurfaceHolder.Callback {
+    private DrawView mDrawView;
+    private SurfaceHolder mHolder;
+    private InputQueue mQueue;
+    private LatencyMonitor mLatency;
+    private Object mSurfaceLock;
+    private boolean mSurfaceValid;
+    private RectF mDirty;
+    private Rect mDirtyBounds;
+    private float[] mBatchXs;
+    private float[] mBatchYs;
+    private long[] mBatchTimes;
+    
+    public RenderThread(DrawView drawView, SurfaceHolder holder, LatencyMonitor latency) {
+        super("RenderThread");
+        mDrawView = drawView;
+        mHolder = holder;
+        mLatency = latency;
+        mQueue = new InputQueue();
+        mSurfaceLock = new Object();
+        mDirty = new RectF();
+        mDirtyBounds = new Rect();
+        mBatchXs = new float[64];
+        mBatchYs = new float[64];
+        mBatchTimes = new long[64];
+        
+        holder.setFormat(PixelFormat.RGBX_8888);
+        holder.addCallback(this);
+    }
+    
+    // These queue input for the tool and may only be called from the UI thread
+    public void touchStart(int id, float x, float y) {
+        mQueue.put(InputQueue.START, id, x, y, 0);
+    }
+    
+    public void touchMove(int id, float x, float y, long time) {
+        mQueue.put(InputQueue.MOVE, id, x, y, time);
+    }
+    
+    public void touchStop(int id, float x, float y, long time) {
+        mQueue.put(InputQueue.STOP, id, x, y, time);
+    }
+    
+    public void clearFingers() {
+        mQueue.put(InputQueue.CLEAR_FINGERS);
+    }
+    
+    public void endGesture() {
+        mQueue.put(InputQueue.END_GESTURE);
+    }
+    
+    public void select(int selection) {
+        mQueue.put(InputQueue.SELECT, selection, 0, 0, 0);
+    }
+    
+    public void redraw() {
+        mQueue.put(InputQueue.REDRAW);
+    }
+    
+    public void commit(Tool tool) {
+        mQueue.put(InputQueue.COMMIT, tool);
+    }
+    
+    public void recover(File journal) {
+        mQueue.put(InputQueue.RECOVER, journal);
+    }
+    
+    // Lets the thread finish what is already queued, then waits for it to stop
+    public void quit() {
+        mQueue.put(InputQueue.QUIT);
+        
+        try {
+            join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    @Override
+    public void run() {
+        while (true) {
+            int count = mQueue.await();
+            
+            for (int k = 0; k < count; k++) {
+                switch (mQueue.type(k)) {
+                    case InputQueue.START:
+                        mDrawView.applyStart(mQueue.id(k), mQueue.x(k), mQueue.y(k));
+                        break;
+                    
+                    case InputQueue.MOVE:
+                        k = moveBatch(k, count) - 1;
+                        break;
+                    
+                    case InputQueue.STOP:
+                        mDrawView.applyStop(mQueue.id(k), mQueue.x(k), mQueue.y(k), mDirty);
+                        mLatency.inputReceived(mQueue.time(k));
+                        break;
+                    
+                    case InputQueue.CLEAR_FINGERS:
+                        mDrawView.applyClearFingers(mDirty);
+                        break;
+                    
+                    case InputQueue.END_GESTURE:
+                        mDrawView.endGesture();
+                        break;
+                    
+                    case InputQueue.SELECT:
+                        mDrawView.applySelection(mQueue.id(k), mDirty);
+                        break;
+                    
+                    case InputQueue.REDRAW:
+                        mDirty.set(0, 0, mDrawView.getWidth(), mDrawView.getHeight());
+                        break;
+                    
+                    case InputQueue.COMMIT:
+                        mDrawView.applyCommit((Tool) mQueue.object(k), mDirty);
+                        break;
+                    
+                    case InputQueue.RECOVER:
+                        mDrawView.applyRecover((File) mQueue.object(k), mDirty);
+                        break;
+                    
+                    case InputQueue.QUIT:
+                        return;
+                }
+            }
+            
+            mQueue.remove(count);
+            mDrawView.collectToolDirty(mDirty);
+            draw();
+        }
+    }
+    
+    // Hands a run of queued moves by the same pointer to the tool in one call, as the View path
+    // does with a MotionEvent's batched samples. Returns the index after the run.
+    private int moveBatch(int start, int count) {
+        int id = mQueue.id(start);
+        int end = start;
+        
+        while (end < count && mQueue.type(end) == InputQueue.MOVE && mQueue.id(end) == id) {
+            end++;
+        }
+        
+        if (end - start > mBatchXs.length) {
+            mBatchXs = new float[end - start];
+            mBatchYs = new float[end - start];
+            mBatchTimes = new long[end - start];
+        }
+        
+        for (int k = start; k < end; k++) {
+            mBatchXs[k - start] = mQueue.x(k);
+            mBatchYs[k - start] = mQueue.y(k);
+            mBatchTimes[k - start] = mQueue.time(k);
+        }
+        
+        mDrawView.applyMoveBatch(id, mBatchXs, mBatchYs, mBatchTimes, end - start);
+        mLatency.inputReceived(mBatchTimes[0]);
+        return end;
+    }
+    
+    // Redraws the area changed since the last frame. lockCanvas waits for a free buffer, so
+    // input that arrives meanwhile is applied together in the next pass.
+    private void draw() {
+        if (mDirty.isEmpty())
+            return;
+        
+        synchronized (mSurfaceLock) {
+            if (!mSurfaceValid)
+                return; // Redrawn in full once the surface is back
+            
+            mDirty.roundOut(mDirtyBounds);
+            mDirty.setEmpty();
+            
+            // The surface may grow the dirty area to what its back buffer is missing
+            Canvas canvas = mHolder.lockCanvas(mDirtyBounds);
+            if (canvas == null)
+                return;
+            
+            try {
+                mDrawView.drawPicture(canvas, mDirtyBounds);
+            } finally {
+                mHolder.unlockCanvasAndPost(canvas);
+            }
+            
+            mLatency.frameDrawn();
+            mDrawView.frameFinished();
+        }
+    }
+    
+    @Override
+    public void surfaceCreated(SurfaceHolder holder) {
+    }
+    
+    @Override
+    public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+        synchronized (mSurfaceLock) {
+            mSurfaceValid = true;
+        }
+        
+        redraw();
+    }
+    
+    // Blocks until a frame in progress is posted, since the surface is gone once this returns
+    @Override
+    public void surfaceDestroyed(SurfaceHolder holder) {
+        synchronized (mSurfaceLock) {
+            mSurfaceValid = false;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package usask.hci.fastdraw;
+
+// Totals for the session's run-length encoded snapshots, the undo history's tiles and the command
+// log's checkpoints, so the memory they save can be weighed against the time spent encoding and
+// decoding them. Used from the tool thread and the background capture threads alike.
+public class SnapshotStats {
+    private long mRawBytes;
+    private long mEncodedBytes;
+    private long mEncodeNs;
+    private long mDecodeNs;
+    
+    public synchronized void encoded(int rawBytes, int encodedBytes, long ns) {
+        mRawBytes += rawBytes;
+        mEncodedBytes += encodedBytes;
+        mEncodeNs += ns;
+    }
+    
+    public synchronized void decoded(long ns) {
+        mDecodeNs += ns;
+    }
+    
+    public synchronized void report(StudyLogger log) {
+        if (mRawBytes == 0)
+            return;
+        
+        log.snapshots(mRawBytes, mEncodedBytes, mEncodeNs / 1000000, mDecodeNs / 1000000);
+    }
+}
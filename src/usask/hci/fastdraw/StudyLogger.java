@@ -1,104 +1,396 @@
 package usask.hci.fastdraw;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.io.Writer;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
 
 import android.app.AlertDialog;
 import android.content.Context;
-import android.graphics.Bitmap;
 import android.os.Environment;
+import android.os.Handler;
 import android.util.Log;
 
+// Events are only queued on the calling thread, as a handful of numbers. A writer thread keeps
+// the log file open, formats them and writes them out in batches, once enough have queued up or
+// the oldest has waited long enough. See LogFormat for the text and binary file formats.
 public class StudyLogger {
     private File mLogDir;
     private Context mContext;
-    private int mSubjectId;
+    private Handler mHandler;
+    private volatile int mSubjectId; // these are set on the UI thread and read by the writer
+    private volatile boolean mBinary;
+    private volatile boolean mLogcat;
+    private LogFormat mFormat;
     private Date mStart;
+    private String mStartName;
+    private Object mLock;
+    private Queue mQueue;
+    private int mDropped;
+    private long mWritten;
+    private long mQueued;
+    private long mFlushRequested;
+    private boolean mShutdown;
+    private Thread mWriter;
+    private static final String mType = "Event";
+    private static final int mCapacity = 4096;
+    private static final int mBatchSize = 64; // events queued before the writer wakes up early
+    private static final long mBatchDelay = 500; // ms an event may wait before being written
+    
+    // Events stored as parallel arrays, so queueing one allocates nothing
+    private static class Queue {
+        public long[] times = new long[mCapacity];
+        public int[] subjects = new int[mCapacity];
+        public byte[] types = new byte[mCapacity];
+        public byte[] pointerIds = new byte[mCapacity];
+        public short[] selections = new short[mCapacity * 3];
+        public int[] values = new int[mCapacity];
+        public int head;
+        public int count;
+        
+        // Moves the events at the front of this ring that share a subject to the end of to
+        public void moveTo(Queue to) {
+            while (count > 0 && (to.count == 0 || subjects[head] == to.subjects[to.count - 1])) {
+                int i = to.count++;
+                to.times[i] = times[head];
+                to.subjects[i] = subjects[head];
+                to.types[i] = types[head];
+                to.pointerIds[i] = pointerIds[head];
+                System.arraycopy(selections, head * 3, to.selections, i * 3, 3);
+                to.values[i] = values[head];
+                
+                head = (head + 1) % mCapacity;
+                count--;
+            }
+        }
+    }
     
     public StudyLogger(Context c) {
         mContext = c;
+        mHandler = new Handler();
         mStart = new Date();
+        mStartName = new SimpleDateFormat("yyyy.MM.dd HH.mm.ss", Locale.US).format(mStart);
         mSubjectId = -1;
         mLogDir = new File(Environment.getExternalStorageDirectory() + "/Fast Draw");
+        mLock = new Object();
+        mQueue = new Queue();
+        mFormat = new LogFormat(new String[0], new String[0]);
+        
+        mWriter = new Thread("StudyLogger") {
+            public void run() {
+                writeLoop();
+            }
+        };
+        mWriter.start();
     }
 
     public void setSubjectId(int subjectId) {
         mSubjectId = subjectId;
     }
 
-    // Log format:
-    // sid, timestamp, event message
-    public void event(String message) {
-        long timeMs = System.nanoTime() / 1000000;
-        log("Event", mSubjectId + "," + timeMs + "," + message);
+    // Chooses between the text log and the compact binary one. Set before the subject id.
+    public void setBinary(boolean binary) {
+        mBinary = binary;
     }
     
-    public void savePicture(Bitmap bmp) {
-        event("Saved picture");
-
-        SimpleDateFormat formatter = new SimpleDateFormat("yyyy.MM.dd HH.mm.ss", Locale.US);
-        File dir = new File(mLogDir, mSubjectId + " - " + formatter.format(mStart));
-        dir.mkdirs();
-        
-        formatter = new SimpleDateFormat("yyyy.MM.dd HH.mm.ss", Locale.US);
-        File file = new File(dir, mSubjectId + " - " + formatter.format(new Date()) + ".png");
-        
-        try {
-            FileOutputStream out = new FileOutputStream(file);
-            bmp.compress(Bitmap.CompressFormat.PNG, 90, out);
-        } catch (Exception e) {
-            e.printStackTrace();
+    // Also prints every event to logcat, which costs the writer a string per event
+    public void setLogcat(boolean logcat) {
+        mLogcat = logcat;
+    }
+    
+    // The names that selection indices in events refer to, written into each binary log's header
+    public void setSelectionNames(String[] names, String[] typeNames) {
+        synchronized (mLock) {
+            mFormat = new LogFormat(names, typeNames);
         }
     }
-
-    private void log(String type, String message) {
+    
+    public void event(int type) {
+        event(type, -1, -1, -1, -1, 0);
+    }
+    
+    public void touchEvent(int type, int pointerId) {
+        event(type, pointerId, -1, -1, -1, 0);
+    }
+    
+    public void toolEvent(int type, int pointerId, int thickness, int color, int tool) {
+        event(type, pointerId, thickness, color, tool, 0);
+    }
+    
+    public void targetSelected(int selection) {
+        event(LogFormat.TARGET_SELECTED, -1, selection, -1, -1, 0);
+    }
+    
+    public void overlayShown(long latenessUs) {
+        event(LogFormat.OVERLAY_SHOWN, -1, -1, -1, -1, (int) latenessUs);
+    }
+    
+    public void overlayHidden(long durationMs) {
+        event(LogFormat.OVERLAY_HIDDEN, -1, -1, -1, -1, (int) durationMs);
+    }
+    
+    public void latency(long frames, int p50, int p95, int p99, int max) {
+        event(LogFormat.LATENCY_FRAMES, -1, -1, -1, -1, (int) Math.min(frames, Integer.MAX_VALUE));
+        event(LogFormat.LATENCY, -1, p50, p95, p99, max);
+    }
+    
+    public void frameTime(int phase, int p50Us, int p95Us, int p99Us, int maxUs) {
+        event(LogFormat.FRAME_TIME, phase, Math.min(p50Us, Short.MAX_VALUE), Math.min(p95Us, Short.MAX_VALUE),
+                Math.min(p99Us, Short.MAX_VALUE), maxUs);
+    }
+    
+    public void frames(int frames, int vsyncsMissed) {
+        event(LogFormat.FRAMES, -1, Math.min(vsyncsMissed, Short.MAX_VALUE), -1, -1, frames);
+    }
+    
+    public void strokeVertices(long samples, long vertices, float tolerance) {
+        event(LogFormat.STROKE_SAMPLES, -1, -1, -1, -1, (int) Math.min(samples, Integer.MAX_VALUE));
+        event(LogFormat.STROKE_VERTICES, -1, Math.round(tolerance * 100), -1, -1, (int) Math.min(vertices, Integer.MAX_VALUE));
+    }
+    
+    public void snapshots(long rawBytes, long encodedBytes, long encodeMs, long decodeMs) {
+        int ratio = (int) Math.min(rawBytes * 10 / Math.max(1, encodedBytes), Short.MAX_VALUE);
+        event(LogFormat.SNAPSHOT_PIXELS, -1, -1, -1, -1, (int) Math.min(rawBytes / 1024, Integer.MAX_VALUE));
+        event(LogFormat.SNAPSHOT_ENCODED, -1, ratio, -1, -1, (int) Math.min(encodedBytes / 1024, Integer.MAX_VALUE));
+        event(LogFormat.SNAPSHOT_TIME, -1, (int) Math.min(decodeMs, Short.MAX_VALUE), -1, -1, (int) Math.min(encodeMs, Integer.MAX_VALUE));
+    }
+    
+    private void event(int type, int pointerId, int selection0, int selection1, int selection2, int value) {
         if (mSubjectId == -1)
             return;
         
-        Log.i("FastDraw" + type, message);
+        long timeNs = System.nanoTime();
+        
+        synchronized (mLock) {
+            if (mShutdown)
+                return;
+            
+            // Never block the caller; if the writer has fallen this far behind, count what is lost
+            Queue queue = mQueue;
+            if (queue.count == mCapacity) {
+                mDropped++;
+                return;
+            }
+            
+            int i = (queue.head + queue.count) % mCapacity;
+            queue.times[i] = timeNs;
+            queue.subjects[i] = mSubjectId;
+            queue.types[i] = (byte) type;
+            queue.pointerIds[i] = (byte) pointerId;
+            queue.selections[i * 3] = (short) selection0;
+            queue.selections[i * 3 + 1] = (short) selection1;
+            queue.selections[i * 3 + 2] = (short) selection2;
+            queue.values[i] = value;
+            queue.count++;
+            mQueued++;
+            
+            // Wake the writer to start its batch timer, or early when the batch is full
+            if (queue.count == 1 || queue.count == mBatchSize)
+                mLock.notify();
+        }
+    }
+    
+    // Blocks until every event queued so far is written and flushed to storage
+    public void flush() {
+        synchronized (mLock) {
+            if (mShutdown)
+                return;
+            
+            long target = mQueued;
+            mFlushRequested = Math.max(mFlushRequested, target);
+            mLock.notify();
+            
+            while (mWritten < target && mWriter.isAlive()) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+    
+    // Writes out everything queued, closes the log file and stops the writer thread
+    public void shutdown() {
+        flush();
+        
+        synchronized (mLock) {
+            mShutdown = true;
+            mLock.notify();
+        }
+        
+        try {
+            mWriter.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    // Where a picture saved at timeMs goes, next to the subject's log
+    public File getPictureFile(long timeMs, String extension) {
+        File dir = new File(mLogDir, mSubjectId + " - " + mStartName);
+        dir.mkdirs();
         
         SimpleDateFormat formatter = new SimpleDateFormat("yyyy.MM.dd HH.mm.ss", Locale.US);
-        File dir = new File(mLogDir, mSubjectId + " - " + formatter.format(mStart));
+        return new File(dir, mSubjectId + " - " + formatter.format(new Date(timeMs)) + "." + extension);
+    }
+
+    // Where the raw input recording goes, next to the subject's log
+    public File getInputFile() {
+        File dir = new File(mLogDir, mSubjectId + " - " + mStartName);
         dir.mkdirs();
         
-        formatter = new SimpleDateFormat("yyyy.MM.dd HH.mm.ss", Locale.US);
-        File file = new File(dir, mSubjectId + " - " + type + " - " + formatter.format(mStart) + ".txt");
+        return new File(dir, mSubjectId + " - Input - " + mStartName + ".rec");
+    }
+    
+    private void writeLoop() {
+        Queue batch = new Queue(); // Filled from index 0, never wrapped
+        StringBuilder line = new StringBuilder();
+        DataOutputStream out = null;
+        int outSubject = -1;
+        boolean outBinary = false;
+        
+        while (true) {
+            long flushTarget;
+            boolean shutdown;
+            LogFormat format;
+            int dropped;
+        
+            synchronized (mLock) {
+                while (mQueue.count < mBatchSize && mFlushRequested <= mWritten && !mShutdown) {
+                    long delay = 0;
+                    
+                    if (mQueue.count > 0) {
+                        delay = (mQueue.times[mQueue.head] - System.nanoTime()) / 1000000 + mBatchDelay;
+                        if (delay <= 0)
+                            break;
+                    }
+        
+                    try {
+                        mLock.wait(delay);
+                    } catch (InterruptedException e) {
+                        mShutdown = true;
+                    }
+                }
 
-        Writer s;
-        try {
-            s = new OutputStreamWriter(new FileOutputStream(file, true));
-        } catch (FileNotFoundException e) {
-            notifyError(e);
-            return;
-        }
+                flushTarget = mFlushRequested;
+                shutdown = mShutdown;
+                format = mFormat;
+                dropped = mDropped;
+                mDropped = 0;
+                
+                // Take the queued events for one subject; a change of subject starts a new file
+                batch.count = 0;
+                mQueue.moveTo(batch);
+            }
+                
+            if (batch.count > 0 || dropped > 0) {
+                int subject = batch.count > 0 ? batch.subjects[0] : outSubject == -1 ? mSubjectId : outSubject;
 
-        try {
-            s.write(message + "\r\n");
-            s.flush();
-        } catch (IOException e) {
-            notifyError(e);
-        } finally {
-            try { s.close(); } catch (IOException e) {}
+                try {
+                    if (out == null || subject != outSubject || mBinary != outBinary) {
+                        close(out);
+                        out = null;
+                        outBinary = mBinary;
+                        out = open(subject, outBinary, format);
+                        outSubject = subject;
+                    }
+                    
+                    if (dropped > 0)
+                        write(out, outBinary, format, line, subject, System.nanoTime(), LogFormat.EVENTS_DROPPED, -1, -1, -1, -1, dropped);
+                    
+                    for (int i = 0; i < batch.count; i++) {
+                        write(out, outBinary, format, line, subject, batch.times[i], batch.types[i], batch.pointerIds[i],
+                                batch.selections[i * 3], batch.selections[i * 3 + 1], batch.selections[i * 3 + 2], batch.values[i]);
+                    }
+                    
+                    out.flush();
+                } catch (IOException e) {
+                    notifyError(e);
+                    close(out);
+                    out = null;
+                }
+            }
+            
+            synchronized (mLock) {
+                mWritten = mQueued - mQueue.count;
+                
+                if (mWritten >= flushTarget)
+                    mLock.notifyAll();
+                
+                if (shutdown && mQueue.count == 0) {
+                    close(out);
+                    mLock.notifyAll();
+                    return;
+                }
+            }
+        }
+    }
+    
+    private void write(DataOutputStream out, boolean binary, LogFormat format, StringBuilder line, int subject, long timeNs,
+            int type, int pointerId, int selection0, int selection1, int selection2, int value) throws IOException {
+        boolean logcat = mLogcat;
+        
+        if (!binary || logcat) {
+            line.setLength(0);
+            format.format(line, subject, timeNs, type, pointerId, selection0, selection1, selection2, value);
+        }
+        
+        if (logcat)
+            Log.i("FastDraw" + mType, line.substring(0, line.length() - 2));
+        
+        if (binary) {
+            LogFormat.writeRecord(out, timeNs, type, pointerId, selection0, selection1, selection2, value);
+        } else {
+            // Log lines are plain ASCII
+            for (int i = 0; i < line.length(); i++) {
+                out.write(line.charAt(i));
+            }
         }
     }
     
-    private void notifyError(Exception e) {
-        StringWriter sw = new StringWriter();
-        e.printStackTrace(new PrintWriter(sw));
+    // Opens the subject's log for appending, starting a new binary log with its header
+    private DataOutputStream open(int subject, boolean binary, LogFormat format) throws IOException {
+        File dir = new File(mLogDir, subject + " - " + mStartName);
+        dir.mkdirs();
+        
+        File file = new File(dir, subject + " - " + mType + " - " + mStartName + (binary ? ".bin" : ".txt"));
+        boolean empty = file.length() == 0;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), 8192));
+        
+        if (binary && empty)
+            format.writeHeader(out, subject);
+        
+        return out;
+    }
+    
+    private void close(DataOutputStream out) {
+        if (out == null)
+            return;
+        
+        try { out.close(); } catch (IOException e) {}
+    }
+    
+    private void notifyError(final Exception e) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                StringWriter sw = new StringWriter();
+                e.printStackTrace(new PrintWriter(sw));
         
-        new AlertDialog.Builder(mContext)
-            .setTitle(R.string.dialog_logging_error)
-            .setMessage(sw.toString())
-            .setPositiveButton(android.R.string.ok, null)
-            .show();
+                new AlertDialog.Builder(mContext)
+                    .setTitle(R.string.dialog_logging_error)
+                    .setMessage(sw.toString())
+                    .setPositiveButton(android.R.string.ok, null)
+                    .show();
+            }
+        });
     }
 }
@@ -0,0 +1,154 @@
+package usask.hci.fastdraw;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Saves pictures as SVG, written straight from the command log's strokes so nothing is
+// rasterized. A worker thread reads the strokes a batch at a time, holding the bitmap lock only
+// while it formats one batch into a reused buffer and writing that out after releasing it, so
+// memory use does not grow with the drawing and the tool thread waits at most one batch. Each
+// tool writes its own strokes, with the same shapes, colors and thicknesses replay() draws.
+public class SvgExporter {
+    private static final int mBatchSize = 256; // commands formatted per hold of the bitmap lock
+    
+    private StudyLogger mLog;
+    private Object mBitmapLock;
+    private ExecutorService mExecutor;
+    private StringBuilder mBatch; // only used by the worker
+    
+    public SvgExporter(StudyLogger log, Object bitmapLock) {
+        mLog = log;
+        mBitmapLock = bitmapLock;
+        mExecutor = Executors.newSingleThreadExecutor();
+        mBatch = new StringBuilder();
+    }
+    
+    // Saves the picture as it is at the log's current level, for a canvas of the given size. Must
+    // be called with the bitmap lock held, and returns without reading any strokes.
+    public void export(final CommandLog commandLog, final int width, final int height) {
+        mLog.event(LogFormat.PICTURE_SAVED);
+        
+        final long time = System.currentTimeMillis();
+        final int end = commandLog.size();
+        final int rewrites = commandLog.getRewrites();
+        
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write(commandLog, end, rewrites, width, height, time);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+    
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+    
+    private void write(CommandLog commandLog, int end, int rewrites, int width, int height, long time) throws IOException {
+        File file = mLog.getPictureFile(time, "svg");
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"), 64 * 1024);
+        boolean written = false;
+        
+        try {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            out.write("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"" + width + "\" height=\"" + height
+                    + "\" viewBox=\"0 0 " + width + " " + height + "\">\n");
+            out.write("<rect width=\"100%\" height=\"100%\" fill=\"#FFFFFF\"/>\n");
+            
+            int i;
+            
+            synchronized (mBitmapLock) {
+                if (commandLog.getRewrites() != rewrites)
+                    throw new IOException("The drawing was undone before it could be saved");
+                
+                i = commandLog.firstVisible(end);
+            }
+            
+            while (i < end) {
+                mBatch.setLength(0);
+                
+                synchronized (mBitmapLock) {
+                    if (commandLog.getRewrites() != rewrites)
+                        throw new IOException("The drawing was undone before it could be saved");
+                    
+                    float[] coords = commandLog.getCoords();
+                    
+                    for (int stop = Math.min(end, i + mBatchSize); i < stop; i++) {
+                        if (commandLog.getType(i) != CommandLog.STROKE || commandLog.isErased(i, end))
+                            continue;
+                        
+                        commandLog.getTool(i).writeSvg(coords, commandLog.getOffset(i), commandLog.getPointCount(i),
+                                commandLog.getColor(i), commandLog.getThickness(i), mBatch);
+                        mBatch.append('\n');
+                    }
+                }
+                
+                out.append(mBatch);
+            }
+            
+            out.write("</svg>\n");
+            written = true;
+        } finally {
+            out.close();
+            
+            // A picture cut short is not left behind looking like a whole one
+            if (!written)
+                file.delete();
+        }
+    }
+    
+    // These are for the tools writing their strokes
+    
+    // Appends a coordinate to two decimal places, without the garbage String.format makes
+    public static void appendNumber(StringBuilder out, float value) {
+        int hundredths = Math.round(value * 100);
+        
+        if (hundredths < 0) {
+            out.append('-');
+            hundredths = -hundredths;
+        }
+        
+        out.append(hundredths / 100);
+        
+        if (hundredths % 100 != 0) {
+            out.append('.');
+            out.append(hundredths % 100 / 10);
+            
+            if (hundredths % 10 != 0)
+                out.append(hundredths % 10);
+        }
+    }
+    
+    // Appends the attributes of an unfilled outline of the given color and thickness
+    public static void appendStroke(StringBuilder out, int color, int thickness) {
+        out.append(" fill=\"none\" stroke=\"");
+        appendColor(out, color);
+        out.append("\" stroke-width=\"").append(thickness).append('"');
+    }
+    
+    // Appends the attributes of a filled area with no outline
+    public static void appendFill(StringBuilder out, int color) {
+        out.append(" fill=\"");
+        appendColor(out, color);
+        out.append('"');
+    }
+    
+    // The colors that can be selected are all opaque
+    private static void appendColor(StringBuilder out, int color) {
+        out.append('#');
+        
+        for (int shift = 20; shift >= 0; shift -= 4) {
+            out.append(Character.forDigit((color >> shift) & 0xF, 16));
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package usask.hci.fastdraw;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+import usask.hci.fastdraw.core.TileStore;
+
+// The committed picture of a canvas larger than the view, in fixed-size tiles. Only the tiles in
+// view are kept as bitmaps: trim() moves the others into a store of compressed tiles off the
+// Java heap, and tiles never drawn on are not kept at all. When the store is over its ceiling it
+// drops tiles, which are repainted from the command log when they are next needed. Like the
+// palette canvas, drawing goes through a Painter for each tile in the area. Must be used with the
+// bitmap lock held.
+public class TiledCanvas {
+    public static final int TILE_SIZE = 256;
+    private static final int mMaxFreeBitmaps = 8;
+    
+    private int mWidth;
+    private int mHeight;
+    private int mCols;
+    private int mRows;
+    private Bitmap[] mBitmaps; // the resident tiles, null for the others
+    private boolean[] mDrawn; // tiles drawn on since the canvas was cleared; the others are white
+    private boolean[] mStale; // resident tiles the store has no copy of
+    private TileStore mStore;
+    private PaletteCanvas.Painter mRepainter;
+    private SnapshotStats mStats;
+    private ArrayList<Bitmap> mFreeBitmaps;
+    private Canvas mCanvas;
+    private int[] mPixels; // one tile
+    
+    // repainter redraws an area from the command log, for tiles the store dropped
+    public TiledCanvas(int width, int height, long storeCeiling, PaletteCanvas.Painter repainter, SnapshotStats stats) {
+        mWidth = width;
+        mHeight = height;
+        mCols = (width + TILE_SIZE - 1) / TILE_SIZE;
+        mRows = (height + TILE_SIZE - 1) / TILE_SIZE;
+        mBitmaps = new Bitmap[mCols * mRows];
+        mDrawn = new boolean[mCols * mRows];
+        mStale = new boolean[mCols * mRows];
+        mStore = new TileStore(TILE_SIZE, storeCeiling);
+        mRepainter = repainter;
+        mStats = stats;
+        mFreeBitmaps = new ArrayList<Bitmap>();
+        mCanvas = new Canvas();
+        mPixels = new int[TILE_SIZE * TILE_SIZE];
+    }
+    
+    public int getWidth() {
+        return mWidth;
+    }
+    
+    public int getHeight() {
+        return mHeight;
+    }
+    
+    public void setStoreCeiling(long ceiling) {
+        mStore.setCeiling(ceiling);
+    }
+    
+    public void clear() {
+        for (int i = 0; i < mBitmaps.length; i++) {
+            free(i);
+            mDrawn[i] = false;
+        }
+        
+        mStore.clear();
+    }
+    
+    // Drops every tile, to be repainted from the command log as it is needed, for when the log
+    // has been moved to another level without restoring the pixels
+    public void repaintAll() {
+        for (int i = 0; i < mBitmaps.length; i++) {
+            free(i);
+            mDrawn[i] = true;
+        }
+        
+        mStore.clear();
+    }
+    
+    // Draws the tiles within clip at their place on canvas
+    public void draw(Canvas canvas, Rect clip, Paint paint) {
+        for (int row = firstTile(clip.top); row <= lastTile(clip.bottom, mRows); row++) {
+            for (int col = firstTile(clip.left); col <= lastTile(clip.right, mCols); col++) {
+                canvas.drawBitmap(resident(row * mCols + col), col * TILE_SIZE, row * TILE_SIZE, paint);
+            }
+        }
+    }
+    
+    // Has painter draw over the area, left, top, right, bottom, a tile at a time
+    public void render(float left, float top, float right, float bottom, PaletteCanvas.Painter painter) {
+        for (int row = firstTile(top); row <= lastTile(bottom, mRows); row++) {
+            for (int col = firstTile(left); col <= lastTile(right, mCols); col++) {
+                int index = row * mCols + col;
+                int x = col * TILE_SIZE;
+                int y = row * TILE_SIZE;
+                
+                paint(resident(index), x, y, painter);
+                mDrawn[index] = true;
+                mStale[index] = true;
+            }
+        }
+    }
+    
+    // Stores away the resident tiles outside visible, the area of the canvas in view
+    public void trim(Rect visible) {
+        int left = firstTile(visible.left);
+        int top = firstTile(visible.top);
+        int right = lastTile(visible.right, mCols);
+        int bottom = lastTile(visible.bottom, mRows);
+        
+        for (int i = 0; i < mBitmaps.length; i++) {
+            int row = i / mCols;
+            int col = i % mCols;
+            
+            if (mBitmaps[i] == null || (col >= left && col <= right && row >= top && row <= bottom))
+                continue;
+            
+            if (mStale[i]) {
+                mBitmaps[i].getPixels(mPixels, 0, TILE_SIZE, 0, 0, TILE_SIZE, TILE_SIZE);
+                
+                long start = System.nanoTime();
+                int size = mStore.put(i, mPixels);
+                mStats.encoded(mPixels.length * 4, size, System.nanoTime() - start);
+            }
+            
+            free(i);
+        }
+    }
+    
+    // Reads the pixels of an area, like Bitmap.getPixels. Tiles out of view are read from the
+    // store without making them resident.
+    public void getPixels(int[] pixels, int offset, int stride, int x, int y, int width, int height) {
+        for (int row = firstTile(y); row <= lastTile(y + height, mRows); row++) {
+            for (int col = firstTile(x); col <= lastTile(x + width, mCols); col++) {
+                int index = row * mCols + col;
+                int left = Math.max(x, col * TILE_SIZE);
+                int top = Math.max(y, row * TILE_SIZE);
+                int right = Math.min(x + width, (col + 1) * TILE_SIZE);
+                int bottom = Math.min(y + height, (row + 1) * TILE_SIZE);
+                int start = offset + (top - y) * stride + left - x;
+                
+                if (mBitmaps[index] == null && !mDrawn[index]) {
+                    for (int r = 0; r < bottom - top; r++) {
+                        Arrays.fill(pixels, start + r * stride, start + r * stride + right - left, Color.WHITE);
+                    }
+                } else if (mBitmaps[index] == null && load(index, mPixels)) {
+                    for (int r = 0; r < bottom - top; r++) {
+                        int from = (top - row * TILE_SIZE + r) * TILE_SIZE + left - col * TILE_SIZE;
+                        System.arraycopy(mPixels, from, pixels, start + r * stride, right - left);
+                    }
+                } else {
+                    resident(index).getPixels(pixels, start, stride, left - col * TILE_SIZE, top - row * TILE_SIZE,
+                            right - left, bottom - top);
+                }
+            }
+        }
+    }
+    
+    public void setPixels(int[] pixels, int offset, int stride, int x, int y, int width, int height) {
+        for (int row = firstTile(y); row <= lastTile(y + height, mRows); row++) {
+            for (int col = firstTile(x); col <= lastTile(x + width, mCols); col++) {
+                int index = row * mCols + col;
+                int left = Math.max(x, col * TILE_SIZE);
+                int top = Math.max(y, row * TILE_SIZE);
+                int right = Math.min(x + width, (col + 1) * TILE_SIZE);
+                int bottom = Math.min(y + height, (row + 1) * TILE_SIZE);
+                
+                resident(index).setPixels(pixels, offset + (top - y) * stride + left - x, stride,
+                        left - col * TILE_SIZE, top - row * TILE_SIZE, right - left, bottom - top);
+                mDrawn[index] = true;
+                mStale[index] = true;
+            }
+        }
+    }
+    
+    // The tile as a bitmap, loaded from the store or repainted if it is not resident
+    private Bitmap resident(int index) {
+        Bitmap bitmap = mBitmaps[index];
+        
+        if (bitmap != null)
+            return bitmap;
+        
+        if (mFreeBitmaps.isEmpty())
+            bitmap = Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+        else
+            bitmap = mFreeBitmaps.remove(mFreeBitmaps.size() - 1);
+        
+        mBitmaps[index] = bitmap;
+        mStale[index] = false;
+        
+        if (!mDrawn[index]) {
+            bitmap.eraseColor(Color.WHITE);
+        } else if (load(index, mPixels)) {
+            bitmap.setPixels(mPixels, 0, TILE_SIZE, 0, 0, TILE_SIZE, TILE_SIZE);
+        } else {
+            paint(bitmap, (index % mCols) * TILE_SIZE, (index / mCols) * TILE_SIZE, mRepainter);
+            mStale[index] = true;
+        }
+        
+        return bitmap;
+    }
+    
+    private boolean load(int index, int[] pixels) {
+        long start = System.nanoTime();
+        
+        if (!mStore.get(index, pixels))
+            return false;
+        
+        mStats.decoded(System.nanoTime() - start);
+        return true;
+    }
+    
+    // Has painter draw into the tile at x, y, with the canvas translated to canvas coordinates
+    private void paint(Bitmap bitmap, int x, int y, PaletteCanvas.Painter painter) {
+        mCanvas.setBitmap(bitmap);
+        mCanvas.save();
+        mCanvas.translate(-x, -y);
+        mCanvas.clipRect(x, y, x + TILE_SIZE, y + TILE_SIZE);
+        painter.paint(mCanvas, x, y, x + TILE_SIZE, y + TILE_SIZE);
+        mCanvas.restore();
+    }
+    
+    private void free(int index) {
+        if (mBitmaps[index] == null)
+            return;
+        
+        if (mFreeBitmaps.size() < mMaxFreeBitmaps)
+            mFreeBitmaps.add(mBitmaps[index]);
+        
+        mBitmaps[index] = null;
+    }
+    
+    private static int firstTile(float coordinate) {
+        return Math.max(0, (int) Math.floor(coordinate) / TILE_SIZE);
+    }
+    
+    // The tile holding the last pixel before end
+    private static int lastTile(float end, int count) {
+        return Math.min(count - 1, ((int) Math.ceil(end) - 1) / TILE_SIZE);
+    }
+}
@@ -1,12 +1,18 @@
 package usask.hci.fastdraw;
 
 import android.graphics.Canvas;
+import android.graphics.RectF;
+
+import usask.hci.fastdraw.core.StrokeGeometry;
+import usask.hci.fastdraw.core.Viewport;
 
 public abstract class Tool {
     private DrawView mDrawView;
+    private RectF mDirty;
     
     public Tool(DrawView drawView) {
         mDrawView = drawView;
+        mDirty = new RectF();
     }
     
     public int getColor() {
@@ -17,9 +23,131 @@ public abstract class Tool {
         return mDrawView.getThickness();
     }
     
+    public int getWidth() {
+        return mDrawView.getWidth();
+    }
+    
+    public int getHeight() {
+        return mDrawView.getHeight();
+    }
+    
+    // Tools get their input in canvas coordinates, which only match the view's at full size with
+    // the canvas' corner in the view's. Called on the tool thread.
+    protected Viewport getViewport() {
+        return mDrawView.getViewport();
+    }
+    
+    // Writes the area of the canvas in view as left, top, right, bottom
+    protected void getVisibleBounds(RectF out) {
+        mDrawView.getVisibleBounds(out);
+    }
+    
+    // For tools that move the viewport: the whole view is redrawn with the next frame
+    protected void viewportChanged() {
+        mDrawView.viewportChanged();
+    }
+    
+    // Grows the area changed since the last frame, padded for the stroke width and anti-aliasing
+    protected void markDirty(float left, float top, float right, float bottom) {
+        float pad = (float)getThickness() / 2 + 2;
+        
+        mDirty.union(Math.min(left, right) - pad, Math.min(top, bottom) - pad,
+                Math.max(left, right) + pad, Math.max(top, bottom) + pad);
+    }
+    
+    // Merges the area changed since the last call into dirty
+    public void takeDirty(RectF dirty) {
+        dirty.union(mDirty);
+        mDirty.setEmpty();
+    }
+    
+    // Adds a committed stroke of count packed x, y pairs to the drawing's command log
+    protected void record(float[] coords, int count) {
+        mDrawView.getCommandLog().appendStroke(this, getColor(), getThickness(), coords, count);
+    }
+    
+    protected CommandLog getCommandLog() {
+        return mDrawView.getCommandLog();
+    }
+    
+    // The committed picture may only be read with the bitmap lock held, and is replaced when the
+    // view changes size
+    protected Object getBitmapLock() {
+        return mDrawView.getBitmapLock();
+    }
+    
+    protected int getCanvasWidth() {
+        return mDrawView.getCanvasWidth();
+    }
+    
+    protected int getCanvasHeight() {
+        return mDrawView.getCanvasHeight();
+    }
+    
+    protected void getPixels(int[] pixels, int offset, int stride, int x, int y, int width, int height) {
+        mDrawView.getPixels(pixels, offset, stride, x, y, width, height);
+    }
+    
+    // For tools that finish strokes in the background: asks, from any thread, for prepareCommit()
+    // and commit() to be called on the tool thread
+    protected void requestCommit() {
+        mDrawView.requestCommit(this);
+    }
+    
+    // Marks the area the coming commit() changes, so it is saved for undo first
+    public void prepareCommit() {
+    }
+    
+    // Draws a stroke finished in the background onto the canvas, with the bitmap lock held
+    public void commit(Canvas canvas) {
+    }
+    
     public abstract void touchStart(int id, float x, float y);
     public abstract void touchMove(int id, float x, float y);
     public abstract void touchStop(int id, float x, float y, Canvas canvas);
     public abstract void clearFingers();
     public abstract void draw(Canvas canvas);
+    
+    // Moves a pointer through count samples at once, oldest first, with times in ms or null. Tools
+    // that can handle the samples together should override this instead of taking them one at a time.
+    public void touchMoveBatch(int id, float[] xs, float[] ys, long[] times, int count) {
+        for (int i = 0; i < count; i++) {
+            touchMove(id, xs[i], ys[i]);
+        }
+    }
+    
+    // Draws a stroke saved by record() exactly as touchStop drew it
+    public abstract void replay(float[] coords, int offset, int count, int color, int thickness, Canvas canvas);
+    
+    // Distance from x, y to the center line of a stroke saved by record(). Tools whose strokes
+    // are not the polyline through their points override this and getBounds.
+    public float distance(float[] coords, int offset, int count, float x, float y) {
+        return StrokeGeometry.polyline(coords, offset, count, x, y);
+    }
+
+    // Writes the bounds of a stroke saved by record(), not counting its thickness, as left, top,
+    // right, bottom
+    public void getBounds(float[] coords, int offset, int count, float[] out) {
+        StrokeGeometry.bounds(coords, offset, count, out);
+    }
+    
+    // Appends a stroke saved by record() as an SVG element of the shape replay() draws. Called on
+    // the exporter's thread with the bitmap lock held, so it must not share scratch space with
+    // input handling.
+    public void writeSvg(float[] coords, int offset, int count, int color, int thickness, StringBuilder out) {
+        out.append("<polyline points=\"");
+        
+        for (int i = 0; i < count; i++) {
+            if (i > 0)
+                out.append(' ');
+            
+            SvgExporter.appendNumber(out, coords[offset + i * 2]);
+            out.append(',');
+            SvgExporter.appendNumber(out, coords[offset + i * 2 + 1]);
+        }
+
+        out.append('"');
+        SvgExporter.appendStroke(out, color, thickness);
+        out.append(" stroke-linecap=\"round\" stroke-linejoin=\"round\"/>");
+    }
 }
@@ -0,0 +1,467 @@
+package usask.hci.fastdraw;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+import android.graphics.Bitmap;
+import android.graphics.RectF;
+
+import usask.hci.fastdraw.core.RunLengthCodec;
+
+// Keeps multiple undo levels as copies of only the tiles each gesture touched. The tiles come
+// from either the bitmap or the tiled canvas, run-length encoded into direct buffers each level
+// owns, or, in palette mode, the palette canvas at a quarter of the size. A level's buffers start
+// small and double, so a level of a few mostly blank tiles takes a few KB, and are pooled once
+// the level is dropped.
+public class UndoHistory {
+    private Bitmap mBitmap;
+    private PaletteCanvas mPalette;
+    private TiledCanvas mTiles;
+    private Object mBitmapLock;
+    private int mCols;
+    private int mRows;
+    private int mBudget;
+    private int mUsed;
+    private LinkedList<Level> mUndo;
+    private LinkedList<Level> mRedo;
+    private Level mPending;
+    private boolean[] mMarked;
+    private boolean[] mCaptured;
+    private int mMarkedCount;
+    private int[] mScratch;
+    private int[] mRestored;
+    private byte[] mScratchIndices;
+    private ByteBuffer mEncoded; // a tile's encoding, before it is copied into its level's buffers
+    private ArrayList<ByteBuffer> mFreeChunks;
+    private ArrayList<Tile> mFreeTiles; // with their index buffers in palette mode
+    private SnapshotStats mStats;
+    private Thread mCapturer; // waits on this for mCaptureQueued, so queueing a capture allocates nothing
+    private boolean mCaptureQueued;
+    private int[] mCaptureIndices; // the tiles mCapturer is copying, outside the monitor
+    private Tile[] mCaptureTiles;
+    private static final int mTileSize = 64;
+    private static final int mMinChunk = 4 * 1024;
+    private static final int mMaxChunk = 64 * 1024;
+    private static final int mMaxFreeChunks = 32;
+    private static final int mMaxFreeTiles = 256;
+    
+    private static class Tile {
+        public int index;
+        public ByteBuffer pixels; // run-length encoded, within one of its level's chunks
+        public byte[] indices; // instead of pixels in palette mode
+        
+        public Tile(int index, ByteBuffer pixels, byte[] indices) {
+            this.index = index;
+            this.pixels = pixels;
+            this.indices = indices;
+        }
+    }
+    
+    private static class Level {
+        public ArrayList<Tile> tiles = new ArrayList<Tile>();
+        public ArrayList<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+        public boolean committed;
+        public int id;
+        
+        public int bytes() {
+            int bytes = 0;
+            for (ByteBuffer chunk : chunks) {
+                bytes += chunk.capacity();
+            }
+            for (Tile tile : tiles) {
+                if (tile.indices != null)
+                    bytes += tile.indices.length;
+            }
+            return bytes;
+        }
+    }
+    
+    public UndoHistory(Object bitmapLock, int budget, SnapshotStats stats) {
+        mBitmapLock = bitmapLock;
+        mBudget = budget;
+        mStats = stats;
+        mUndo = new LinkedList<Level>();
+        mRedo = new LinkedList<Level>();
+        mPending = new Level();
+        mScratch = new int[mTileSize * mTileSize];
+        mRestored = new int[mTileSize * mTileSize];
+        mScratchIndices = new byte[mTileSize * mTileSize];
+        mEncoded = ByteBuffer.allocate(RunLengthCodec.maxEncodedSize(mTileSize, mTileSize));
+        mFreeChunks = new ArrayList<ByteBuffer>();
+        mFreeTiles = new ArrayList<Tile>();
+        
+        mCapturer = new Thread("UndoHistory") {
+            public void run() {
+                captureLoop();
+            }
+        };
+        mCapturer.setDaemon(true);
+        mCapturer.start();
+    }
+    
+    // Starts over with a new bitmap, dropping all levels
+    public synchronized void reset(Bitmap bitmap) {
+        mBitmap = bitmap;
+        mPalette = null;
+        mTiles = null;
+        reset(bitmap.getWidth(), bitmap.getHeight());
+    }
+    
+    public synchronized void reset(PaletteCanvas palette) {
+        mBitmap = null;
+        mPalette = palette;
+        mTiles = null;
+        reset(palette.getWidth(), palette.getHeight());
+    }
+    
+    public synchronized void reset(TiledCanvas tiles) {
+        mBitmap = null;
+        mPalette = null;
+        mTiles = tiles;
+        reset(tiles.getWidth(), tiles.getHeight());
+    }
+    
+    private void reset(int width, int height) {
+        mCols = (width + mTileSize - 1) / mTileSize;
+        mRows = (height + mTileSize - 1) / mTileSize;
+        mMarked = new boolean[mCols * mRows];
+        mCaptured = new boolean[mCols * mRows];
+        mCaptureIndices = new int[mCols * mRows];
+        mCaptureTiles = new Tile[mCols * mRows];
+        mMarkedCount = 0;
+        
+        for (Level level : mUndo) {
+            release(level);
+        }
+        for (Level level : mRedo) {
+            release(level);
+        }
+        
+        release(mPending);
+        mUndo.clear();
+        mRedo.clear();
+        mPending = new Level();
+        mUsed = 0;
+    }
+    
+    public synchronized void setBudget(int budget) {
+        mBudget = budget;
+        evict();
+    }
+    
+    // Marks the tiles under bounds as about to be changed by the current level. They are copied
+    // on the background thread while the gesture continues, and at the latest by capture().
+    public synchronized void markDirty(RectF bounds) {
+        if (mMarked == null || bounds.isEmpty())
+            return;
+        
+        int left = Math.max(0, (int) Math.floor(bounds.left) / mTileSize);
+        int top = Math.max(0, (int) Math.floor(bounds.top) / mTileSize);
+        int right = Math.min(mCols - 1, ((int) Math.ceil(bounds.right) - 1) / mTileSize);
+        int bottom = Math.min(mRows - 1, ((int) Math.ceil(bounds.bottom) - 1) / mTileSize);
+        int count = mMarkedCount;
+        
+        for (int row = top; row <= bottom; row++) {
+            for (int col = left; col <= right; col++) {
+                int index = row * mCols + col;
+                
+                if (!mMarked[index]) {
+                    mMarked[index] = true;
+                    mMarkedCount++;
+                }
+            }
+        }
+        
+        if (mMarkedCount != count && !mCaptureQueued) {
+            mCaptureQueued = true;
+            notify();
+        }
+    }
+    
+    // Runs on mCapturer, copying the marked tiles each time markDirty wakes it. The tiles are
+    // listed and published under the monitor, but read and encoded with only the bitmap lock held,
+    // so markDirty never waits for an encode. Everything else that touches the pending level's
+    // buffers holds the bitmap lock.
+    private void captureLoop() {
+        while (true) {
+            synchronized (this) {
+                while (!mCaptureQueued) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+            
+            synchronized (mBitmapLock) {
+                int count = 0;
+                
+                synchronized (this) {
+                    mCaptureQueued = false;
+                    
+                    for (int i = 0; i < mMarked.length; i++) {
+                        if (mMarked[i] && !mCaptured[i])
+                            mCaptureIndices[count++] = i;
+                    }
+                }
+                
+                for (int i = 0; i < count; i++) {
+                    mCaptureTiles[i] = captureTile(mCaptureIndices[i]);
+                }
+                
+                synchronized (this) {
+                    for (int i = 0; i < count; i++) {
+                        mPending.tiles.add(mCaptureTiles[i]);
+                        mCaptured[mCaptureIndices[i]] = true;
+                        mCaptureTiles[i] = null;
+                    }
+                }
+            }
+        }
+    }
+    
+    // Copies every marked tile that has not been copied yet. Must be called with the bitmap lock
+    // held, before drawing into the bitmap.
+    public synchronized void capture() {
+        captureMarked();
+        mPending.committed = true;
+    }
+    
+    private void captureMarked() {
+        for (int i = 0; i < mMarked.length && mMarkedCount > 0; i++) {
+            if (mMarked[i] && !mCaptured[i]) {
+                mPending.tiles.add(captureTile(i));
+                mCaptured[i] = true;
+            }
+        }
+    }
+    
+    // Copies one tile for the pending level. Must be called with the bitmap lock held.
+    private Tile captureTile(int index) {
+        Tile tile = mFreeTiles.isEmpty() ? new Tile(index, null, null) : mFreeTiles.remove(mFreeTiles.size() - 1);
+        tile.index = index;
+        
+        if (mPalette != null) {
+            if (tile.indices == null)
+                tile.indices = new byte[mTileSize * mTileSize];
+            
+            copyTile(index, null, tile.indices, false);
+        } else {
+            copyTile(index, mScratch, null, false);
+            tile.pixels = encode(mPending, mScratch);
+            tile.indices = null;
+        }
+        
+        return tile;
+    }
+    
+    // Marks and copies the whole bitmap, for changes such as clearing the canvas
+    public synchronized void captureAll() {
+        for (int i = 0; i < mMarked.length; i++) {
+            mMarked[i] = true;
+        }
+        
+        mMarkedCount = mMarked.length;
+        capture();
+    }
+    
+    // Closes the current level under the given id, keeping it only if it captured anything.
+    // An id of -1 discards it.
+    public synchronized void endLevel(int id) {
+        // A new level can never be followed by the ones undone before it, even if it captured nothing
+        if (id != -1) {
+            for (Level level : mRedo) {
+                mUsed -= level.bytes();
+                release(level);
+            }
+            
+            mRedo.clear();
+        }
+        
+        if (mMarked == null || mMarkedCount == 0)
+            return;
+        
+        if (id != -1 && mPending.committed && !mPending.tiles.isEmpty()) {
+            mPending.id = id;
+            mUndo.addLast(mPending);
+            mUsed += mPending.bytes();
+            evict();
+        } else {
+            release(mPending);
+        }
+        
+        mPending = new Level();
+        
+        for (int i = 0; i < mMarked.length; i++) {
+            mMarked[i] = false;
+            mCaptured[i] = false;
+        }
+        
+        mMarkedCount = 0;
+    }
+    
+    // Restores the level with the given id if it is the next one to undo and has not been
+    // evicted. Must be called with the bitmap lock held.
+    public synchronized boolean undo(int id) {
+        if (mUndo.isEmpty() || mUndo.getLast().id != id)
+            return false;
+        
+        Level level = mUndo.removeLast();
+        swap(level);
+        mRedo.addLast(level);
+        evict();
+        return true;
+    }
+    
+    // Reapplies the level with the given id if it is the next one to redo. Must be called with
+    // the bitmap lock held.
+    public synchronized boolean redo(int id) {
+        if (mRedo.isEmpty() || mRedo.getLast().id != id)
+            return false;
+        
+        Level level = mRedo.removeLast();
+        swap(level);
+        mUndo.addLast(level);
+        evict();
+        return true;
+    }
+    
+    // Exchanges the level's saved tiles with the bitmap's, so the same level can be redone. The
+    // bitmap's tiles are encoded into new chunks, since they may not fit where the old ones were.
+    private void swap(Level level) {
+        ArrayList<ByteBuffer> chunks = level.chunks;
+        mUsed -= level.bytes();
+        level.chunks = new ArrayList<ByteBuffer>();
+        
+        for (Tile tile : level.tiles) {
+            if (tile.indices != null) {
+                copyTile(tile.index, null, mScratchIndices, false);
+                copyTile(tile.index, null, tile.indices, true);
+                
+                byte[] temp = tile.indices;
+                tile.indices = mScratchIndices;
+                mScratchIndices = temp;
+            } else {
+                copyTile(tile.index, mScratch, null, false);
+            
+                long start = System.nanoTime();
+                tile.pixels.rewind();
+                RunLengthCodec.decode(tile.pixels, mRestored, 0, mTileSize, mTileSize, mTileSize);
+                mStats.decoded(System.nanoTime() - start);
+                
+                copyTile(tile.index, mRestored, null, true);
+                tile.pixels = encode(level, mScratch);
+            }
+        }
+        
+        for (ByteBuffer chunk : chunks) {
+            free(chunk);
+        }
+        
+        mUsed += level.bytes();
+    }
+    
+    // Encodes a tile of pixels into the level's chunks, returning where it was put
+    private ByteBuffer encode(Level level, int[] pixels) {
+        long start = System.nanoTime();
+        mEncoded.clear();
+        RunLengthCodec.encode(pixels, 0, mTileSize, mTileSize, mTileSize, mEncoded);
+        mEncoded.flip();
+        mStats.encoded(pixels.length * 4, mEncoded.remaining(), System.nanoTime() - start);
+        
+        ByteBuffer chunk = level.chunks.isEmpty() ? null : level.chunks.get(level.chunks.size() - 1);
+        
+        if (chunk == null || chunk.remaining() < mEncoded.remaining()) {
+            int size = chunk == null ? mMinChunk : Math.min(mMaxChunk, chunk.capacity() * 2);
+            while (size < mEncoded.remaining())
+                size *= 2;
+            
+            chunk = allocate(size);
+            level.chunks.add(chunk);
+        }
+        
+        ByteBuffer tile = chunk.slice();
+        tile.limit(mEncoded.remaining());
+        chunk.put(mEncoded);
+        return tile;
+    }
+    
+    // A direct buffer of the given size, from the pool if it has one
+    private ByteBuffer allocate(int size) {
+        for (int i = mFreeChunks.size() - 1; i >= 0; i--) {
+            if (mFreeChunks.get(i).capacity() == size) {
+                ByteBuffer chunk = mFreeChunks.remove(i);
+                chunk.clear();
+                return chunk;
+            }
+        }
+        
+        return ByteBuffer.allocateDirect(size);
+    }
+    
+    private void free(ByteBuffer chunk) {
+        if (mFreeChunks.size() < mMaxFreeChunks)
+            mFreeChunks.add(chunk);
+    }
+    
+    // Returns a dropped level's chunks and tiles to the pools
+    private void release(Level level) {
+        for (ByteBuffer chunk : level.chunks) {
+            free(chunk);
+        }
+        
+        for (Tile tile : level.tiles) {
+            tile.pixels = null;
+            
+            if (mFreeTiles.size() < mMaxFreeTiles)
+                mFreeTiles.add(tile);
+        }
+        
+        level.chunks.clear();
+        level.tiles.clear();
+    }
+    
+    // Copies a tile of either pixels or palette indices, whichever is not null. Pixels come from
+    // the tiled canvas when there is one.
+    private void copyTile(int index, int[] pixels, byte[] indices, boolean toBitmap) {
+        int x = (index % mCols) * mTileSize;
+        int y = (index / mCols) * mTileSize;
+        
+        if (indices != null) {
+            int width = Math.min(mTileSize, mPalette.getWidth() - x);
+            int height = Math.min(mTileSize, mPalette.getHeight() - y);
+            
+            if (toBitmap)
+                mPalette.setIndices(indices, 0, mTileSize, x, y, width, height);
+            else
+                mPalette.getIndices(indices, 0, mTileSize, x, y, width, height);
+        } else if (mTiles != null) {
+            int width = Math.min(mTileSize, mTiles.getWidth() - x);
+            int height = Math.min(mTileSize, mTiles.getHeight() - y);
+            
+            if (toBitmap)
+                mTiles.setPixels(pixels, 0, mTileSize, x, y, width, height);
+            else
+                mTiles.getPixels(pixels, 0, mTileSize, x, y, width, height);
+        } else {
+            int width = Math.min(mTileSize, mBitmap.getWidth() - x);
+            int height = Math.min(mTileSize, mBitmap.getHeight() - y);
+        
+            if (toBitmap)
+                mBitmap.setPixels(pixels, 0, mTileSize, x, y, width, height);
+            else
+                mBitmap.getPixels(pixels, 0, mTileSize, x, y, width, height);
+        }
+    }
+    
+    // Drops the least recently used levels, oldest undo first, but always keeps the newest one
+    private void evict() {
+        while (mUsed > mBudget && mUndo.size() + mRedo.size() > 1) {
+            Level level = mUndo.isEmpty() ? mRedo.removeFirst() : mUndo.removeFirst();
+            mUsed -= level.bytes();
+            release(level);
+        }
+    }
+}
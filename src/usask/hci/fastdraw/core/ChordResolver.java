@@ -0,0 +1,84 @@
+package usask.hci.fastdraw.core;
+
+// Maps touches to the cells of the button grid and decides which recently touched cells were
+// selected. A cell counts if it was touched within the chord delay of the overlay button being
+// pressed, on either side, or at any time while the overlay is shown.
+public class ChordResolver {
+    private int mCols;
+    private int mRows;
+    private float mColWidth;
+    private float mRowHeight;
+    private boolean mLeftHanded;
+    private long mChordDelay; // ns
+    private long[] mTouchTimes; // indexed by cell; the grid has fewer than 32 cells
+    private int mRecent;
+    
+    public ChordResolver(int cols, int rows, long chordDelayNs) {
+        mCols = cols;
+        mRows = rows;
+        mChordDelay = chordDelayNs;
+        mTouchTimes = new long[cols * rows];
+    }
+    
+    public void setSize(float width, float height) {
+        mColWidth = width / mCols;
+        mRowHeight = height / mRows;
+    }
+    
+    // Mirrors the grid horizontally
+    public void setLeftHanded(boolean leftHanded) {
+        mLeftHanded = leftHanded;
+    }
+    
+    // The column on screen of the cell at index
+    public int getColumn(int index) {
+        int col = index % mCols;
+        return mLeftHanded ? mCols - col - 1 : col;
+    }
+    
+    public int getRow(int index) {
+        return index / mCols;
+    }
+    
+    public int cellAt(float x, float y) {
+        int col = (int) (x / mColWidth);
+        int row = (int) (y / mRowHeight);
+        
+        if (mLeftHanded)
+            col = mCols - col - 1;
+        
+        return row * mCols + col;
+    }
+    
+    public void cellTouched(int cell, long timeNs) {
+        mTouchTimes[cell] = timeNs;
+        mRecent |= 1 << cell;
+    }
+    
+    // Forgets every touch not yet resolved
+    public void reset() {
+        mRecent = 0;
+    }
+    
+    // Returns the cells selected as of now as a bitmask, and forgets them along with any touches
+    // too old to still join a chord
+    public int resolve(long nowNs, long overlayPressNs, boolean overlayShown) {
+        int selected = 0;
+        
+        for (int cell = 0; cell < mTouchTimes.length; cell++) {
+            if ((mRecent & (1 << cell)) == 0)
+                continue;
+            
+            long time = mTouchTimes[cell];
+            
+            if ((nowNs - time < mChordDelay && nowNs - overlayPressNs < mChordDelay) || overlayShown) {
+                selected |= 1 << cell;
+                mRecent &= ~(1 << cell);
+            } else if (nowNs - time > mChordDelay) {
+                mRecent &= ~(1 << cell);
+            }
+        }
+        
+        return selected;
+    }
+}
@@ -0,0 +1,163 @@
+package usask.hci.fastdraw.core;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+// The raw input recording format: every touch event the drawing view received, with all the
+// samples Android batched into it, so a session can be fed back through the same touch handling.
+// Big-endian, as DataInputStream and ByteBuffer both default to.
+//
+// Header: int magic, int version, int view width, int view height
+// Event: short action (with the pointer index, as MotionEvent.getAction returns it),
+//        byte pointer count, short sample count, long event time in uptime ms,
+//        one byte id per pointer, then for each sample from oldest to newest:
+//        int ms before the event time, and an x, y float pair per pointer
+//
+// The newest sample is the event's own position, so the sample count is always at least one.
+public class InputRecording {
+    public static final int MAGIC = 0x46444952; // "FDIR"
+    public static final int VERSION = 1;
+    
+    public static void writeHeader(ByteBuffer out, int width, int height) {
+        out.putInt(MAGIC);
+        out.putInt(VERSION);
+        out.putInt(width);
+        out.putInt(height);
+    }
+    
+    public static int eventSize(int pointerCount, int sampleCount) {
+        return 13 + pointerCount + sampleCount * (4 + pointerCount * 8);
+    }
+    
+    // coords holds the samples as packed x, y pairs, pointer by pointer within each sample
+    public static void writeEvent(ByteBuffer out, int action, long eventTime, int pointerCount, int[] ids,
+            int sampleCount, int[] timeDeltas, float[] coords) {
+        out.putShort((short) action);
+        out.put((byte) pointerCount);
+        out.putShort((short) sampleCount);
+        out.putLong(eventTime);
+        
+        for (int i = 0; i < pointerCount; i++) {
+            out.put((byte) ids[i]);
+        }
+        
+        for (int h = 0; h < sampleCount; h++) {
+            out.putInt(timeDeltas[h]);
+            
+            for (int i = 0; i < pointerCount * 2; i++) {
+                out.putFloat(coords[h * pointerCount * 2 + i]);
+            }
+        }
+    }
+    
+    // Reads a recording one event at a time into reused arrays
+    public static class Reader {
+        private DataInputStream mIn;
+        private int mWidth;
+        private int mHeight;
+        private int mAction;
+        private long mEventTime;
+        private int mPointerCount;
+        private int mSampleCount;
+        private int[] mIds;
+        private long[] mTimes;
+        private float[] mCoords;
+        
+        public Reader(InputStream in) throws IOException {
+            mIn = new DataInputStream(in);
+            
+            if (mIn.readInt() != MAGIC)
+                throw new IOException("Not an input recording");
+            
+            int version = mIn.readInt();
+            if (version != VERSION)
+                throw new IOException("Unsupported input recording version " + version);
+            
+            mWidth = mIn.readInt();
+            mHeight = mIn.readInt();
+            mIds = new int[32];
+            mTimes = new long[16];
+            mCoords = new float[16 * 20];
+        }
+        
+        public int getWidth() {
+            return mWidth;
+        }
+        
+        public int getHeight() {
+            return mHeight;
+        }
+        
+        // Reads the next event, returning false at the end of the recording. A recording cut off
+        // partway through an event, as when the app was killed, ends before that event.
+        public boolean next() throws IOException {
+            try {
+                mAction = mIn.readShort();
+                mPointerCount = mIn.readUnsignedByte();
+                mSampleCount = mIn.readUnsignedShort();
+                mEventTime = mIn.readLong();
+                
+                for (int i = 0; i < mPointerCount; i++) {
+                    mIds[i] = mIn.readUnsignedByte();
+                }
+                
+                if (mSampleCount > mTimes.length)
+                    mTimes = new long[mSampleCount];
+                
+                if (mSampleCount * mPointerCount * 2 > mCoords.length)
+                    mCoords = new float[mSampleCount * mPointerCount * 2];
+                
+                for (int h = 0; h < mSampleCount; h++) {
+                    mTimes[h] = mEventTime - mIn.readInt();
+                    
+                    for (int i = 0; i < mPointerCount * 2; i++) {
+                        mCoords[h * mPointerCount * 2 + i] = mIn.readFloat();
+                    }
+                }
+                
+                return true;
+            } catch (EOFException e) {
+                return false;
+            }
+        }
+        
+        public int getAction() {
+            return mAction;
+        }
+        
+        public long getEventTime() {
+            return mEventTime;
+        }
+        
+        public int getPointerCount() {
+            return mPointerCount;
+        }
+        
+        public int getPointerId(int index) {
+            return mIds[index];
+        }
+        
+        public int getSampleCount() {
+            return mSampleCount;
+        }
+        
+        public long getSampleTime(int sample) {
+            return mTimes[sample];
+        }
+        
+        public float getX(int sample, int index) {
+            return mCoords[(sample * mPointerCount + index) * 2];
+        }
+        
+        public float getY(int sample, int index) {
+            return mCoords[(sample * mPointerCount + index) * 2 + 1];
+        }
+        
+        public void close() throws IOException {
+            mIn.close();
+        }
+    }
+}
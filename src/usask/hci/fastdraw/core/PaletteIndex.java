@@ -0,0 +1,111 @@
+package usask.hci.fastdraw.core;
+
+// Maps colors to one byte per pixel for a drawing made with a few fixed colors on white. The top
+// three bits of an index pick a palette color and the low five bits its coverage, in 32 levels
+// from white to the full color, so anti-aliased edges over the background are kept. Coverage 0 is
+// white whatever the color. Colors that are not one of these blends, such as the edge of a stroke
+// over another color, become the nearest one. Lookups go through a table of every color at five
+// bits per channel, built once.
+public class PaletteIndex {
+    public static final int MAX_COLORS = 8;
+    private static final int mLevels = 32;
+    
+    private int[] mColors; // ARGB of each of the 256 indices
+    private byte[] mNearest; // index of each color at five bits per channel
+    
+    // White is the background, so it never needs a palette entry of its own and is skipped
+    public PaletteIndex(int[] palette) {
+        int[] colors = new int[MAX_COLORS];
+        int count = 0;
+        
+        for (int i = 0; i < palette.length && count < MAX_COLORS; i++) {
+            if ((palette[i] & 0xFFFFFF) != 0xFFFFFF)
+                colors[count++] = palette[i];
+        }
+        
+        mColors = new int[256];
+        
+        for (int i = 0; i < 256; i++) {
+            int color = i >> 5;
+            int level = i & (mLevels - 1);
+            mColors[i] = color < count ? blend(colors[color], level) : 0xFFFFFFFF;
+        }
+        
+        mNearest = new byte[1 << 15];
+        
+        for (int rgb = 0; rgb < mNearest.length; rgb++) {
+            mNearest[rgb] = nearest(colors, count, widen(rgb >> 10), widen((rgb >> 5) & 31), widen(rgb & 31));
+        }
+    }
+    
+    public int expand(int index) {
+        return mColors[index & 0xFF];
+    }
+    
+    public byte quantize(int color) {
+        return mNearest[(color >> 9) & 0x7C00 | (color >> 6) & 0x3E0 | (color >> 3) & 0x1F];
+    }
+    
+    public void expand(byte[] indices, int offset, int[] colors, int colorOffset, int count) {
+        for (int i = 0; i < count; i++) {
+            colors[colorOffset + i] = mColors[indices[offset + i] & 0xFF];
+        }
+    }
+    
+    public void quantize(int[] colors, int colorOffset, byte[] indices, int offset, int count) {
+        for (int i = 0; i < count; i++) {
+            int color = colors[colorOffset + i];
+            indices[offset + i] = mNearest[(color >> 9) & 0x7C00 | (color >> 6) & 0x3E0 | (color >> 3) & 0x1F];
+        }
+    }
+    
+    // The blend of white and color closest to r, g, b, from the coverage that best fits each color
+    private static byte nearest(int[] colors, int count, int r, int g, int b) {
+        int best = 0;
+        int bestError = error(0xFFFFFFFF, r, g, b);
+        
+        for (int c = 0; c < count; c++) {
+            // Each channel is 255 - t * (255 - channel); solve for t by least squares
+            float dr = 255 - ((colors[c] >> 16) & 0xFF);
+            float dg = 255 - ((colors[c] >> 8) & 0xFF);
+            float db = 255 - (colors[c] & 0xFF);
+            float length = dr*dr + dg*dg + db*db;
+            
+            if (length == 0)
+                continue;
+            
+            float t = ((255 - r) * dr + (255 - g) * dg + (255 - b) * db) / length;
+            int level = Math.max(1, Math.min(mLevels - 1, Math.round(t * (mLevels - 1))));
+            
+            for (int l = Math.max(1, level - 1); l <= Math.min(mLevels - 1, level + 1); l++) {
+                int error = error(blend(colors[c], l), r, g, b);
+                
+                if (error < bestError) {
+                    bestError = error;
+                    best = c << 5 | l;
+                }
+            }
+        }
+        
+        return (byte) best;
+    }
+    
+    private static int blend(int color, int level) {
+        int r = 255 - (255 - ((color >> 16) & 0xFF)) * level / (mLevels - 1);
+        int g = 255 - (255 - ((color >> 8) & 0xFF)) * level / (mLevels - 1);
+        int b = 255 - (255 - (color & 0xFF)) * level / (mLevels - 1);
+        return 0xFF000000 | r << 16 | g << 8 | b;
+    }
+    
+    private static int error(int color, int r, int g, int b) {
+        int dr = ((color >> 16) & 0xFF) - r;
+        int dg = ((color >> 8) & 0xFF) - g;
+        int db = (color & 0xFF) - b;
+        return dr*dr + dg*dg + db*db;
+    }
+    
+    // Five bits of a channel to eight
+    private static int widen(int channel) {
+        return channel << 3 | channel >> 2;
+    }
+}
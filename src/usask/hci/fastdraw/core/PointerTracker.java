@@ -0,0 +1,82 @@
+package usask.hci.fastdraw.core;
+
+// Which pointers are down, which are ignored until they lift, and which have not yet moved far
+// enough from where they went down to start the tool. Pointer ids are always below 32, so each
+// set is a bitmask.
+public class PointerTracker {
+    private float mThreshold;
+    private int mDown;
+    private int mIgnored;
+    private int mPending; // bit n is set until pointer id n first moves past the threshold
+    private float[] mOriginXs;
+    private float[] mOriginYs;
+    
+    // threshold is the distance in pixels a pointer must move before the tool sees it
+    public PointerTracker(float threshold) {
+        mThreshold = threshold;
+        mOriginXs = new float[32];
+        mOriginYs = new float[32];
+    }
+    
+    public void down(int id) {
+        mDown |= 1 << id;
+    }
+    
+    // Holds the pointer's moves back from the tool until it is mThreshold away from x, y
+    public void arm(int id, float x, float y) {
+        mOriginXs[id] = x;
+        mOriginYs[id] = y;
+        mPending |= 1 << id;
+    }
+    
+    public void ignore(int id) {
+        mIgnored |= 1 << id;
+    }
+    
+    // Ignores every pointer that is down until it lifts, for when the selection changes under it
+    public void ignoreAllDown() {
+        mIgnored |= mDown;
+        mPending = 0;
+    }
+    
+    public boolean anyDown() {
+        return mDown != 0;
+    }
+    
+    public boolean isIgnored(int id) {
+        return (mIgnored & (1 << id)) != 0;
+    }
+    
+    public boolean isPending(int id) {
+        return (mPending & (1 << id)) != 0;
+    }
+    
+    // Returns the index of the first of count samples the tool should see: 0 once the pointer has
+    // moved past the threshold, the first sample beyond it while it is crossing, or -1 if it is
+    // still within it
+    public int passThreshold(int id, float[] xs, float[] ys, int count) {
+        if ((mPending & (1 << id)) == 0)
+            return 0;
+        
+        for (int i = 0; i < count; i++) {
+            float dx = mOriginXs[id] - xs[i];
+            float dy = mOriginYs[id] - ys[i];
+            
+            if (Math.sqrt(dx*dx + dy*dy) > mThreshold) {
+                mPending &= ~(1 << id);
+                return i;
+            }
+        }
+        
+        return -1;
+    }
+    
+    // Releases the pointer, returning true if it was being ignored
+    public boolean up(int id) {
+        boolean ignored = isIgnored(id);
+        mDown &= ~(1 << id);
+        mIgnored &= ~(1 << id);
+        mPending &= ~(1 << id);
+        return ignored;
+    }
+}
@@ -0,0 +1,85 @@
+package usask.hci.fastdraw.core;
+
+import java.nio.ByteBuffer;
+
+// Run-length encodes rows of ARGB pixels, which suits drawings of a few strokes on white: a blank
+// row of any width takes six bytes. Each row is a sequence of runs, never crossing into the next
+// row. A run starts with a short: a count n below 0x8000 means one int color repeated n times, and
+// 0x8000 | n means n ints of differing colors follow. Runs of one pixel go into the literal runs,
+// so no picture encodes to more than its raw size plus two bytes a row.
+public class RunLengthCodec {
+    private static final int mMaxRun = 0x7FFF;
+    
+    // The most bytes encoding an area of this size can take
+    public static int maxEncodedSize(int width, int height) {
+        return height * (width * 4 + 2 * (width / mMaxRun + 1));
+    }
+    
+    // Encodes the area of pixels starting at offset, with rows stride apart, at out's position
+    public static void encode(int[] pixels, int offset, int stride, int width, int height, ByteBuffer out) {
+        for (int row = 0; row < height; row++) {
+            int start = offset + row * stride;
+            int end = start + width;
+            int literal = start; // first pixel not yet written
+            int i = start;
+            
+            while (i < end) {
+                int color = pixels[i];
+                int run = i + 1;
+                
+                while (run < end && pixels[run] == color && run - i < mMaxRun)
+                    run++;
+                
+                if (run - i < 2) {
+                    i = run;
+                    continue;
+                }
+                
+                writeLiteral(pixels, literal, i, out);
+                out.putShort((short) (run - i));
+                out.putInt(color);
+                i = run;
+                literal = run;
+            }
+            
+            writeLiteral(pixels, literal, end, out);
+        }
+    }
+    
+    // Decodes an area encoded by encode from in's position into pixels
+    public static void decode(ByteBuffer in, int[] pixels, int offset, int stride, int width, int height) {
+        for (int row = 0; row < height; row++) {
+            int i = offset + row * stride;
+            int end = i + width;
+            
+            while (i < end) {
+                int header = in.getShort() & 0xFFFF;
+                
+                if ((header & 0x8000) != 0) {
+                    for (int k = header & mMaxRun; k > 0; k--) {
+                        pixels[i++] = in.getInt();
+                    }
+                } else {
+                    int color = in.getInt();
+                    
+                    for (int k = header; k > 0; k--) {
+                        pixels[i++] = color;
+                    }
+                }
+            }
+        }
+    }
+    
+    private static void writeLiteral(int[] pixels, int start, int end, ByteBuffer out) {
+        while (start < end) {
+            int count = Math.min(mMaxRun, end - start);
+            out.putShort((short) (0x8000 | count));
+            
+            for (int k = 0; k < count; k++) {
+                out.putInt(pixels[start + k]);
+            }
+            
+            start += count;
+        }
+    }
+}
@@ -0,0 +1,424 @@
+package usask.hci.fastdraw.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Finds the 4-connected region of pixels the same color as a seed pixel. The region is marked in
+// a bit mask rather than written into the pixels, so the pixels can be a snapshot read by several
+// threads at once and the caller decides what to paint. Each run of matching pixels found in a row
+// is marked whole, and the rows above and below it are queued as spans to scan. The span stack has
+// a fixed size: spans pushed while it is full are dropped, and once it empties the marked rows are
+// rescanned for the neighbors still left, so memory stays bounded however ragged the region is.
+// A fill that grows past mParallelPixels is split into horizontal bands, one per thread. Each band
+// only marks its own rows and passes spans crossing its edges to its neighbors between rounds.
+public class ScanlineFill {
+    private static final int mStackSpans = 4096;
+    private static final int mParallelPixels = 256 * 1024;
+    
+    private int[] mPixels;
+    private int mWidth;
+    private int mHeight;
+    private int mTarget;
+    private long[] mMask; // rows start on a word boundary, so bands never share a word
+    private int mWordsPerRow;
+    private Band mWhole;
+    private Band[] mBands;
+    private ExecutorService mExecutor;
+    private List<Callable<Void>> mTasks;
+    private int mCount;
+    private int mLeft;
+    private int mTop;
+    private int mRight;
+    private int mBottom;
+    
+    // threads is the most bands a large fill is split into
+    public ScanlineFill(int threads) {
+        mBands = new Band[Math.max(1, threads)];
+        mTasks = new ArrayList<Callable<Void>>();
+        
+        if (mBands.length > 1)
+            mExecutor = Executors.newFixedThreadPool(mBands.length);
+    }
+    
+    // Marks the region around x, y in pixels, width * height packed rows, and returns how many
+    // pixels it has. pixels must not change until this returns.
+    public int fill(int[] pixels, int width, int height, int x, int y) {
+        if (width != mWidth || height != mHeight) {
+            mWidth = width;
+            mHeight = height;
+            mWordsPerRow = (width + 63) / 64;
+            mMask = new long[mWordsPerRow * height];
+            mWhole = new Band();
+            
+            for (int i = 0; i < mBands.length; i++) {
+                mBands[i] = new Band();
+            }
+        } else {
+            Arrays.fill(mMask, 0);
+        }
+        
+        mPixels = pixels;
+        mTarget = pixels[y * width + x];
+        
+        // Most fills are small enough that handing work between threads would cost more than it saves
+        mWhole.reset(0, height, null, null);
+        mWhole.push(x, x, y);
+        boolean done = mWhole.process(mParallelPixels);
+        
+        // With one thread there are no bands to hand the rest to
+        if (!done && mExecutor == null)
+            done = mWhole.process(Long.MAX_VALUE);
+        
+        mCount = mWhole.mCount;
+        mLeft = mWhole.mLeft;
+        mTop = mWhole.mTop;
+        mRight = mWhole.mRight;
+        mBottom = mWhole.mBottom;
+        
+        if (!done)
+            fillBands();
+        
+        mPixels = null;
+        return mCount;
+    }
+    
+    public boolean isFilled(int x, int y) {
+        return (mMask[y * mWordsPerRow + (x >> 6)] & (1L << x)) != 0;
+    }
+    
+    // The color of the filled pixels
+    public int getTarget() {
+        return mTarget;
+    }
+    
+    public int getCount() {
+        return mCount;
+    }
+    
+    // The bounds of the filled pixels, inclusive, when there are any
+    public int getLeft() {
+        return mLeft;
+    }
+    
+    public int getTop() {
+        return mTop;
+    }
+    
+    public int getRight() {
+        return mRight;
+    }
+    
+    public int getBottom() {
+        return mBottom;
+    }
+    
+    public void shutdown() {
+        if (mExecutor != null)
+            mExecutor.shutdown();
+    }
+    
+    // Carries on from the single band in rounds of all bands at once until no band has work left
+    private void fillBands() {
+        int count = mBands.length;
+        
+        for (int i = 0; i < count; i++) {
+            mBands[i].reset(mHeight * i / count, mHeight * (i + 1) / count,
+                    i > 0 ? mBands[i - 1] : null, i < count - 1 ? mBands[i + 1] : null);
+            mBands[i].mOverflow = mWhole.mOverflow;
+        }
+        
+        // Every band holds a stack as large as the whole one, so these always fit
+        for (int k = 0; k < mWhole.mStackSize * 3; k += 3) {
+            int y = mWhole.mStack[k + 2];
+            mBands[bandOf(y)].push(mWhole.mStack[k], mWhole.mStack[k + 1], y);
+        }
+        
+        while (true) {
+            mTasks.clear();
+            
+            for (int i = 0; i < count; i++) {
+                if (mBands[i].hasWork())
+                    mTasks.add(mBands[i]);
+            }
+            
+            if (mTasks.isEmpty())
+                break;
+            
+            try {
+                for (Future<Void> result : mExecutor.invokeAll(mTasks)) {
+                    result.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+            
+            for (int i = 0; i < count; i++) {
+                mBands[i].swapInboxes();
+            }
+        }
+        
+        for (int i = 0; i < count; i++) {
+            Band band = mBands[i];
+            
+            if (band.mCount == 0)
+                continue;
+            
+            mLeft = Math.min(mLeft, band.mLeft);
+            mTop = Math.min(mTop, band.mTop);
+            mRight = Math.max(mRight, band.mRight);
+            mBottom = Math.max(mBottom, band.mBottom);
+            mCount += band.mCount;
+        }
+    }
+    
+    private int bandOf(int y) {
+        for (int i = 0; i < mBands.length; i++) {
+            if (y < mBands[i].mEnd)
+                return i;
+        }
+        
+        return mBands.length - 1;
+    }
+    
+    // The rows from mStart to mEnd, with the work queued for them
+    private class Band implements Callable<Void> {
+        private int mStart;
+        private int mEnd;
+        private Band mAbove;
+        private Band mBelow;
+        private int[] mStack; // x1, x2, y of each span
+        private int mStackSize;
+        private boolean mOverflow; // spans were dropped since the last rescan
+        private boolean[] mFromAbove; // columns of mStart the band above reached, to scan this round
+        private boolean[] mFromBelow; // columns of mEnd - 1 the band below reached
+        private boolean[] mNextFromAbove; // and those reached during this round, for the next
+        private boolean[] mNextFromBelow;
+        private boolean mInbox;
+        private boolean mNextInbox;
+        private int mCount;
+        private int mLeft;
+        private int mTop;
+        private int mRight;
+        private int mBottom;
+        
+        public Band() {
+            mStack = new int[mStackSpans * 3];
+            mFromAbove = new boolean[mWidth];
+            mFromBelow = new boolean[mWidth];
+            mNextFromAbove = new boolean[mWidth];
+            mNextFromBelow = new boolean[mWidth];
+        }
+        
+        public void reset(int start, int end, Band above, Band below) {
+            mStart = start;
+            mEnd = end;
+            mAbove = above;
+            mBelow = below;
+            mStackSize = 0;
+            mOverflow = false;
+            mInbox = false;
+            mNextInbox = false;
+            Arrays.fill(mFromAbove, false);
+            Arrays.fill(mFromBelow, false);
+            Arrays.fill(mNextFromAbove, false);
+            Arrays.fill(mNextFromBelow, false);
+            mCount = 0;
+            mLeft = Integer.MAX_VALUE;
+            mTop = Integer.MAX_VALUE;
+            mRight = Integer.MIN_VALUE;
+            mBottom = Integer.MIN_VALUE;
+        }
+        
+        public boolean hasWork() {
+            return mStackSize > 0 || mOverflow || mInbox;
+        }
+        
+        // Called between rounds, when no band is running
+        public void swapInboxes() {
+            boolean[] fromAbove = mFromAbove;
+            mFromAbove = mNextFromAbove;
+            mNextFromAbove = fromAbove;
+            
+            boolean[] fromBelow = mFromBelow;
+            mFromBelow = mNextFromBelow;
+            mNextFromBelow = fromBelow;
+            
+            mInbox = mNextInbox;
+            mNextInbox = false;
+        }
+        
+        @Override
+        public Void call() {
+            if (mInbox) {
+                mInbox = false;
+                takeInbox(mFromAbove, mStart);
+                takeInbox(mFromBelow, mEnd - 1);
+            }
+            
+            process(Long.MAX_VALUE);
+            return null;
+        }
+        
+        // Pushes the runs of columns a neighbor reached in row y. These spans cannot be found again
+        // by a rescan, so room is made for them rather than dropping them.
+        private void takeInbox(boolean[] columns, int y) {
+            int x = 0;
+            
+            while (x < mWidth) {
+                if (!columns[x]) {
+                    x++;
+                    continue;
+                }
+                
+                int x1 = x;
+                while (x < mWidth && columns[x]) {
+                    columns[x] = false;
+                    x++;
+                }
+                
+                while (!push(x1, x - 1, y)) {
+                    process(Long.MAX_VALUE);
+                }
+            }
+        }
+        
+        public boolean push(int x1, int x2, int y) {
+            if (mStackSize == mStackSpans)
+                return false;
+            
+            int k = mStackSize * 3;
+            mStack[k] = x1;
+            mStack[k + 1] = x2;
+            mStack[k + 2] = y;
+            mStackSize++;
+            return true;
+        }
+        
+        // Scans queued spans until there are none left, or stops early once more than budget
+        // pixels are marked. Returns whether it finished.
+        public boolean process(long budget) {
+            while (true) {
+                while (mStackSize > 0) {
+                    if (mCount > budget)
+                        return false;
+                    
+                    mStackSize--;
+                    int k = mStackSize * 3;
+                    scan(mStack[k], mStack[k + 1], mStack[k + 2]);
+                }
+                
+                if (!mOverflow)
+                    return true;
+                
+                mOverflow = false;
+                rescan();
+            }
+        }
+        
+        // Marks every run of fillable pixels in row y that overlaps x1 to x2
+        private void scan(int x1, int x2, int y) {
+            int row = y * mWidth;
+            int x = x1;
+            
+            while (x <= x2) {
+                if (!fillable(row, x, y)) {
+                    x++;
+                    continue;
+                }
+                
+                int left = x;
+                while (left > 0 && fillable(row, left - 1, y))
+                    left--;
+                
+                int right = x;
+                while (right < mWidth - 1 && fillable(row, right + 1, y))
+                    right++;
+                
+                mark(left, right, y);
+                seed(left, right, y - 1);
+                seed(left, right, y + 1);
+                x = right + 2; // right + 1 is not fillable
+            }
+        }
+        
+        private void seed(int x1, int x2, int y) {
+            if (y < 0 || y >= mHeight)
+                return;
+            
+            if (y < mStart) {
+                Arrays.fill(mAbove.mNextFromBelow, x1, x2 + 1, true);
+                mAbove.mNextInbox = true;
+            } else if (y >= mEnd) {
+                Arrays.fill(mBelow.mNextFromAbove, x1, x2 + 1, true);
+                mBelow.mNextInbox = true;
+            } else if (!push(x1, x2, y)) {
+                mOverflow = true;
+            }
+        }
+        
+        // Queues the spans next to marked runs that still have fillable pixels. Whether a
+        // neighbor's pixels are marked is only known to it, so rows across an edge are passed on
+        // whenever they have pixels of the right color.
+        private void rescan() {
+            for (int y = mStart; y < mEnd; y++) {
+                int x = 0;
+                
+                while (x < mWidth) {
+                    if (!isFilled(x, y)) {
+                        x++;
+                        continue;
+                    }
+                    
+                    int x1 = x;
+                    while (x < mWidth && isFilled(x, y))
+                        x++;
+                    
+                    rescanRow(x1, x - 1, y - 1);
+                    rescanRow(x1, x - 1, y + 1);
+                }
+            }
+        }
+        
+        private void rescanRow(int x1, int x2, int y) {
+            if (y < 0 || y >= mHeight)
+                return;
+            
+            int row = y * mWidth;
+            boolean inside = y >= mStart && y < mEnd;
+            
+            for (int x = x1; x <= x2; x++) {
+                if (inside ? fillable(row, x, y) : mPixels[row + x] == mTarget) {
+                    seed(x1, x2, y);
+                    return;
+                }
+            }
+        }
+        
+        private boolean fillable(int row, int x, int y) {
+            return mPixels[row + x] == mTarget && !isFilled(x, y);
+        }
+        
+        private void mark(int x1, int x2, int y) {
+            int word = y * mWordsPerRow;
+            
+            for (int x = x1; x <= x2; x++) {
+                mMask[word + (x >> 6)] |= 1L << x;
+            }
+            
+            mCount += x2 - x1 + 1;
+            mLeft = Math.min(mLeft, x1);
+            mRight = Math.max(mRight, x2);
+            mTop = Math.min(mTop, y);
+            mBottom = Math.max(mBottom, y);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package usask.hci.fastdraw.core;
+
+// The two points each pointer's shape spans: where it went down and where it is now. Shared by
+// the line, circle and rectangle tools, which only differ in how they draw the two points.
+// Pointer ids are always below 32.
+public class ShapeTracker {
+    private float[] mOrigins; // x, y pairs indexed by pointer id
+    private float[] mEnds;
+    private int mMoved; // bit n is set once pointer id n has an end point
+    
+    public ShapeTracker() {
+        mOrigins = new float[64];
+        mEnds = new float[64];
+    }
+    
+    public void start(int id, float x, float y) {
+        mOrigins[id * 2] = x;
+        mOrigins[id * 2 + 1] = y;
+        mMoved &= ~(1 << id);
+    }
+    
+    public void move(int id, float x, float y) {
+        mEnds[id * 2] = x;
+        mEnds[id * 2 + 1] = y;
+        mMoved |= 1 << id;
+    }
+    
+    public void stop(int id) {
+        mMoved &= ~(1 << id);
+    }
+    
+    public void clear() {
+        mMoved = 0;
+    }
+    
+    public boolean isMoved(int id) {
+        return (mMoved & (1 << id)) != 0;
+    }
+    
+    public float getOriginX(int id) {
+        return mOrigins[id * 2];
+    }
+    
+    public float getOriginY(int id) {
+        return mOrigins[id * 2 + 1];
+    }
+    
+    public float getEndX(int id) {
+        return mEnds[id * 2];
+    }
+    
+    public float getEndY(int id) {
+        return mEnds[id * 2 + 1];
+    }
+    
+    // Writes the shape as two packed x, y pairs, as the command log stores it
+    public void getCoords(int id, float[] out) {
+        out[0] = mOrigins[id * 2];
+        out[1] = mOrigins[id * 2 + 1];
+        out[2] = mEnds[id * 2];
+        out[3] = mEnds[id * 2 + 1];
+    }
+    
+    // Writes the circle with the two points as opposite ends of its diameter: center x, y and radius
+    public static void circle(float x1, float y1, float x2, float y2, float[] out) {
+        float dx = x1 - x2;
+        float dy = y1 - y2;
+        
+        out[0] = (x1 + x2) / 2;
+        out[1] = (y1 + y2) / 2;
+        out[2] = (float)Math.sqrt(dx*dx + dy*dy) / 2;
+    }
+    
+    // Writes the rectangle with the two points as opposite corners: left, top, right, bottom
+    public static void rect(float x1, float y1, float x2, float y2, float[] out) {
+        out[0] = Math.min(x1, x2);
+        out[1] = Math.min(y1, y2);
+        out[2] = Math.max(x1, x2);
+        out[3] = Math.max(y1, y2);
+    }
+}
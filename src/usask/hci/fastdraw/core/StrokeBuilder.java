@@ -0,0 +1,135 @@
+package usask.hci.fastdraw.core;
+
+import java.util.Arrays;
+
+// Builds the smoothed freehand stroke of each pointer. Every sample adds a quadratic segment from
+// the previous midpoint, controlled by the previous sample, to the midpoint between the previous
+// sample and the new one. Segments are written as control x, control y, end x, end y quadruples
+// into the caller's buffer, and every sample is kept for the command log. Pointer ids are always
+// below 32.
+public class StrokeBuilder {
+    private float[] mPoints; // x, y pairs indexed by pointer id
+    private float[] mMids;
+    private float[][] mSamples;
+    private int[] mSampleCounts;
+    private float[] mBounds;
+    
+    public StrokeBuilder() {
+        mPoints = new float[64];
+        mMids = new float[64];
+        mSamples = new float[32][];
+        mSampleCounts = new int[32];
+        mBounds = new float[4];
+    }
+    
+    public void start(int id, float x, float y) {
+        mPoints[id * 2] = mMids[id * 2] = x;
+        mPoints[id * 2 + 1] = mMids[id * 2 + 1] = y;
+        
+        if (mSamples[id] == null)
+            mSamples[id] = new float[64];
+        
+        mSamples[id][0] = x;
+        mSamples[id][1] = y;
+        mSampleCounts[id] = 1;
+    }
+    
+    // Writes one segment per sample to segments, which must hold count * 4 floats, and sets the
+    // bounds to the area they cover
+    public void extend(int id, float[] xs, float[] ys, int count, float[] segments) {
+        float pointX = mPoints[id * 2];
+        float pointY = mPoints[id * 2 + 1];
+        float lastMidX = mMids[id * 2];
+        float lastMidY = mMids[id * 2 + 1];
+        float left = Float.MAX_VALUE, top = Float.MAX_VALUE;
+        float right = -Float.MAX_VALUE, bottom = -Float.MAX_VALUE;
+        
+        addSamples(id, xs, ys, count);
+        
+        for (int i = 0; i < count; i++) {
+            float x = xs[i];
+            float y = ys[i];
+            float midX = (pointX + x) / 2;
+            float midY = (pointY + y) / 2;
+            
+            segments[i * 4] = pointX;
+            segments[i * 4 + 1] = pointY;
+            segments[i * 4 + 2] = midX;
+            segments[i * 4 + 3] = midY;
+            
+            // Each segment lies within the triangle formed by its end points and control point
+            left = Math.min(left, Math.min(lastMidX, Math.min(pointX, midX)));
+            top = Math.min(top, Math.min(lastMidY, Math.min(pointY, midY)));
+            right = Math.max(right, Math.max(lastMidX, Math.max(pointX, midX)));
+            bottom = Math.max(bottom, Math.max(lastMidY, Math.max(pointY, midY)));
+            
+            pointX = x;
+            pointY = y;
+            lastMidX = midX;
+            lastMidY = midY;
+        }
+        
+        mBounds[0] = left;
+        mBounds[1] = top;
+        mBounds[2] = right;
+        mBounds[3] = bottom;
+        
+        mPoints[id * 2] = pointX;
+        mPoints[id * 2 + 1] = pointY;
+        mMids[id * 2] = lastMidX;
+        mMids[id * 2 + 1] = lastMidY;
+    }
+    
+    // Left, top, right and bottom of the segments from the last extend
+    public float[] getBounds() {
+        return mBounds;
+    }
+    
+    // Every sample of the pointer's stroke so far, as packed x, y pairs
+    public float[] getSamples(int id) {
+        return mSamples[id];
+    }
+    
+    public int getSampleCount(int id) {
+        return mSampleCounts[id];
+    }
+    
+    // Writes the segments of a stroke of count packed x, y pairs starting at offset, exactly as
+    // extend produced them, and returns how many there are. out must hold (count - 1) * 4 floats.
+    public static int segments(float[] coords, int offset, int count, float[] out) {
+        float lastX = coords[offset];
+        float lastY = coords[offset + 1];
+        
+        for (int i = 1; i < count; i++) {
+            float x = coords[offset + i * 2];
+            float y = coords[offset + i * 2 + 1];
+            
+            out[(i - 1) * 4] = lastX;
+            out[(i - 1) * 4 + 1] = lastY;
+            out[(i - 1) * 4 + 2] = (lastX + x) / 2;
+            out[(i - 1) * 4 + 3] = (lastY + y) / 2;
+            lastX = x;
+            lastY = y;
+        }
+        
+        return Math.max(0, count - 1);
+    }
+    
+    private void addSamples(int id, float[] xs, float[] ys, int count) {
+        float[] samples = mSamples[id];
+        int start = mSampleCounts[id];
+        
+        // Kept for the next stroke with this id, so this only happens for the longest strokes
+        if ((start + count) * 2 > samples.length) {
+            samples = Arrays.copyOf(samples, Math.max(samples.length * 2, (start + count) * 2));
+            mSamples[id] = samples;
+        }
+        
+        for (int i = 0; i < count; i++) {
+            samples[(start + i) * 2] = xs[i];
+            samples[(start + i) * 2 + 1] = ys[i];
+        }
+        
+        mSampleCounts[id] = start + count;
+    }
+}
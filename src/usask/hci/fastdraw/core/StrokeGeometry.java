@@ -0,0 +1,73 @@
+package usask.hci.fastdraw.core;
+
+// Distances from a point to the center lines of committed strokes, for hit testing them
+public class StrokeGeometry {
+    // Distance to the polyline through count packed x, y pairs starting at offset
+    public static float polyline(float[] coords, int offset, int count, float x, float y) {
+        float best = distance(coords[offset], coords[offset + 1], x, y);
+        
+        for (int i = 1; i < count; i++) {
+            float x1 = coords[offset + i * 2 - 2];
+            float y1 = coords[offset + i * 2 - 1];
+            float dx = coords[offset + i * 2] - x1;
+            float dy = coords[offset + i * 2 + 1] - y1;
+            float lengthSquared = dx*dx + dy*dy;
+            float t = lengthSquared > 0 ? ((x - x1) * dx + (y - y1) * dy) / lengthSquared : 0;
+            t = Math.max(0, Math.min(1, t));
+            
+            best = Math.min(best, distance(x1 + t * dx, y1 + t * dy, x, y));
+        }
+        
+        return best;
+    }
+    
+    // Distance to the outline of a circle
+    public static float circle(float centerX, float centerY, float radius, float x, float y) {
+        return Math.abs(distance(centerX, centerY, x, y) - radius);
+    }
+    
+    // Distance to the outline of a rectangle
+    public static float rect(float left, float top, float right, float bottom, float x, float y) {
+        if (x >= left && x <= right && y >= top && y <= bottom)
+            return Math.min(Math.min(x - left, right - x), Math.min(y - top, bottom - y));
+        
+        float dx = Math.max(left - x, Math.max(0, x - right));
+        float dy = Math.max(top - y, Math.max(0, y - bottom));
+        return (float) Math.sqrt(dx*dx + dy*dy);
+    }
+    
+    // Distance to a fill's pixel runs, stored as x1, y, x2, y pairs covering x1 <= x < x2 of row y
+    public static float spans(float[] coords, int offset, int count, float x, float y) {
+        float best = Float.MAX_VALUE;
+        
+        for (int i = 0; i + 1 < count; i += 2) {
+            int k = offset + i * 2;
+            float dx = Math.max(coords[k] - x, Math.max(0, x - coords[k + 2]));
+            float dy = Math.max(coords[k + 1] - y, Math.max(0, y - coords[k + 1] - 1));
+            best = Math.min(best, dx*dx + dy*dy);
+        }
+        
+        return (float) Math.sqrt(best);
+    }
+    
+    // Writes the bounds of count packed x, y pairs as left, top, right, bottom
+    public static void bounds(float[] coords, int offset, int count, float[] out) {
+        out[0] = out[2] = coords[offset];
+        out[1] = out[3] = coords[offset + 1];
+        
+        for (int i = 1; i < count; i++) {
+            float x = coords[offset + i * 2];
+            float y = coords[offset + i * 2 + 1];
+            out[0] = Math.min(out[0], x);
+            out[1] = Math.min(out[1], y);
+            out[2] = Math.max(out[2], x);
+            out[3] = Math.max(out[3], y);
+        }
+    }
+    
+    private static float distance(float x1, float y1, float x2, float y2) {
+        float dx = x2 - x1;
+        float dy = y2 - y1;
+        return (float) Math.sqrt(dx*dx + dy*dy);
+    }
+}
@@ -0,0 +1,160 @@
+package usask.hci.fastdraw.core;
+
+import java.util.Arrays;
+
+// A uniform grid over the canvas, each cell listing the strokes whose bounds overlap it, so the
+// strokes near a point or in an area are found without looking at the rest. Strokes are known by
+// their command index and keep the bounds they were added with. Query results are written into
+// an internal array, in ascending command order, which is drawing order.
+public class StrokeIndex {
+    private int mCellSize;
+    private int mCols;
+    private int mRows;
+    private int[][] mCells;
+    private int[] mCellCounts;
+    private float[] mBounds; // left, top, right, bottom indexed by command
+    private boolean[] mIndexed;
+    private int[] mSeen; // the query that last returned each command, so none is returned twice
+    private int mQuery;
+    private int[] mResults;
+    private int mResultCount;
+    
+    public StrokeIndex(int cellSize) {
+        mCellSize = cellSize;
+        mBounds = new float[256 * 4];
+        mIndexed = new boolean[256];
+        mSeen = new int[256];
+        mResults = new int[64];
+        reset(0, 0);
+    }
+    
+    public int getCellSize() {
+        return mCellSize;
+    }
+    
+    // Empties the index and sizes the grid for a new canvas
+    public void reset(int width, int height) {
+        mCols = Math.max(1, (width + mCellSize - 1) / mCellSize);
+        mRows = Math.max(1, (height + mCellSize - 1) / mCellSize);
+        mCells = new int[mCols * mRows][];
+        mCellCounts = new int[mCols * mRows];
+        Arrays.fill(mIndexed, false);
+    }
+    
+    public void clear() {
+        Arrays.fill(mCellCounts, 0);
+        Arrays.fill(mIndexed, false);
+    }
+    
+    public void add(int command, float left, float top, float right, float bottom) {
+        if (command >= mIndexed.length) {
+            int length = Math.max(mIndexed.length * 2, command + 1);
+            mBounds = Arrays.copyOf(mBounds, length * 4);
+            mIndexed = Arrays.copyOf(mIndexed, length);
+            mSeen = Arrays.copyOf(mSeen, length);
+        }
+        
+        mBounds[command * 4] = left;
+        mBounds[command * 4 + 1] = top;
+        mBounds[command * 4 + 2] = right;
+        mBounds[command * 4 + 3] = bottom;
+        mIndexed[command] = true;
+        
+        for (int row = row(top); row <= row(bottom); row++) {
+            for (int col = col(left); col <= col(right); col++) {
+                int cell = row * mCols + col;
+                int count = mCellCounts[cell];
+                
+                if (mCells[cell] == null)
+                    mCells[cell] = new int[8];
+                else if (count == mCells[cell].length)
+                    mCells[cell] = Arrays.copyOf(mCells[cell], count * 2);
+                
+                mCells[cell][count] = command;
+                mCellCounts[cell] = count + 1;
+            }
+        }
+    }
+    
+    public void remove(int command) {
+        if (!contains(command))
+            return;
+        
+        mIndexed[command] = false;
+        
+        for (int row = row(mBounds[command * 4 + 1]); row <= row(mBounds[command * 4 + 3]); row++) {
+            for (int col = col(mBounds[command * 4]); col <= col(mBounds[command * 4 + 2]); col++) {
+                int cell = row * mCols + col;
+                int[] commands = mCells[cell];
+                
+                for (int i = 0; i < mCellCounts[cell]; i++) {
+                    if (commands[i] == command) {
+                        commands[i] = commands[--mCellCounts[cell]];
+                        break;
+                    }
+                }
+            }
+        }
+    }
+    
+    public boolean contains(int command) {
+        return command < mIndexed.length && mIndexed[command];
+    }
+    
+    // Writes the command's bounds as left, top, right, bottom
+    public void getBounds(int command, float[] out) {
+        System.arraycopy(mBounds, command * 4, out, 0, 4);
+    }
+    
+    // Writes the area of the cells the bounds overlap as left, top, right, bottom
+    public void getCellBounds(float left, float top, float right, float bottom, float[] out) {
+        out[0] = col(left) * mCellSize;
+        out[1] = row(top) * mCellSize;
+        out[2] = (col(right) + 1) * mCellSize;
+        out[3] = (row(bottom) + 1) * mCellSize;
+    }
+    
+    // Finds the strokes whose bounds overlap the area and returns how many there are
+    public int query(float left, float top, float right, float bottom) {
+        mQuery++;
+        mResultCount = 0;
+        
+        for (int row = row(top); row <= row(bottom); row++) {
+            for (int col = col(left); col <= col(right); col++) {
+                int cell = row * mCols + col;
+                int[] commands = mCells[cell];
+                
+                for (int i = 0; i < mCellCounts[cell]; i++) {
+                    int command = commands[i];
+                    
+                    if (mSeen[command] == mQuery || mBounds[command * 4] > right || mBounds[command * 4 + 2] < left
+                            || mBounds[command * 4 + 1] > bottom || mBounds[command * 4 + 3] < top)
+                        continue;
+                    
+                    mSeen[command] = mQuery;
+                    
+                    if (mResultCount == mResults.length)
+                        mResults = Arrays.copyOf(mResults, mResultCount * 2);
+                    
+                    mResults[mResultCount++] = command;
+                }
+            }
+        }
+        
+        Arrays.sort(mResults, 0, mResultCount);
+        return mResultCount;
+    }
+    
+    // The i-th command found by the last query
+    public int getResult(int i) {
+        return mResults[i];
+    }
+    
+    private int col(float x) {
+        return Math.max(0, Math.min(mCols - 1, (int) Math.floor(x / mCellSize)));
+    }
+    
+    private int row(float y) {
+        return Math.max(0, Math.min(mRows - 1, (int) Math.floor(y / mCellSize)));
+    }
+}
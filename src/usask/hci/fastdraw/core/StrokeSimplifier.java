@@ -0,0 +1,124 @@
+package usask.hci.fastdraw.core;
+
+// Drops stroke samples that would add path vertices without visibly changing the stroke. A sample
+// is kept once it is at least the tolerance away from the last kept one; the samples dropped on
+// the way there are skipped, except that the most recent of them is kept first if the stroke bends
+// away from it by more than the tolerance, which keeps corners and tight curves. The tolerance is
+// a fraction of the stroke's thickness, since a wider stroke hides more. Each pointer only needs
+// its last kept and last dropped sample, so memory stays constant however long the stroke is.
+// Pointer ids are always below 32.
+public class StrokeSimplifier {
+    private static final float mMinTolerance = 0.5f; // px; deviations below half a pixel never show
+    
+    private float mTolerance;
+    private float[] mTolerances; // px, per pointer id
+    private float[] mKept; // x, y pairs indexed by pointer id
+    private float[] mDropped;
+    private int mHasDropped; // bit n is set while pointer id n has a dropped sample after its last kept one
+    private long mReceived;
+    private long mVertices;
+    
+    // tolerance is the fraction of the thickness a sample may be off by, or 0 to keep every sample
+    public StrokeSimplifier(float tolerance) {
+        mTolerance = tolerance;
+        mTolerances = new float[32];
+        mKept = new float[64];
+        mDropped = new float[64];
+    }
+    
+    // Takes effect from the next stroke
+    public void setTolerance(float tolerance) {
+        mTolerance = tolerance;
+    }
+    
+    public float getTolerance() {
+        return mTolerance;
+    }
+    
+    public void start(int id, float x, float y, float thickness) {
+        mTolerances[id] = mTolerance > 0 ? Math.max(mMinTolerance, mTolerance * thickness) : 0;
+        mKept[id * 2] = x;
+        mKept[id * 2 + 1] = y;
+        mHasDropped &= ~(1 << id);
+        mReceived++;
+        mVertices++;
+    }
+    
+    // Writes the samples to keep out of count samples to outXs and outYs, which must hold count + 1
+    // floats and not be xs or ys, and returns how many there are
+    public int simplify(int id, float[] xs, float[] ys, int count, float[] outXs, float[] outYs) {
+        float tolerance = mTolerances[id];
+        float keptX = mKept[id * 2];
+        float keptY = mKept[id * 2 + 1];
+        boolean hasDropped = (mHasDropped & (1 << id)) != 0;
+        float droppedX = mDropped[id * 2];
+        float droppedY = mDropped[id * 2 + 1];
+        int kept = 0;
+        
+        for (int i = 0; i < count; i++) {
+            float x = xs[i];
+            float y = ys[i];
+            float dx = x - keptX;
+            float dy = y - keptY;
+            float length = (float) Math.sqrt(dx*dx + dy*dy);
+            
+            if (length < tolerance) {
+                droppedX = x;
+                droppedY = y;
+                hasDropped = true;
+                continue;
+            }
+            
+            // Distance of the dropped sample from the line between the last kept sample and this one
+            if (hasDropped && length > 0 && Math.abs((droppedX - keptX) * dy - (droppedY - keptY) * dx) / length > tolerance) {
+                outXs[kept] = droppedX;
+                outYs[kept] = droppedY;
+                kept++;
+            }
+            
+            outXs[kept] = x;
+            outYs[kept] = y;
+            kept++;
+            keptX = x;
+            keptY = y;
+            hasDropped = false;
+        }
+        
+        mKept[id * 2] = keptX;
+        mKept[id * 2 + 1] = keptY;
+        mDropped[id * 2] = droppedX;
+        mDropped[id * 2 + 1] = droppedY;
+        
+        if (hasDropped)
+            mHasDropped |= 1 << id;
+        else
+            mHasDropped &= ~(1 << id);
+        
+        mReceived += count;
+        mVertices += kept;
+        return kept;
+    }
+    
+    // Ends the pointer's stroke where the pointer actually stopped: if the last samples were
+    // dropped, writes the final one to the start of outXs and outYs and returns true
+    public boolean finish(int id, float[] outXs, float[] outYs) {
+        if ((mHasDropped & (1 << id)) == 0)
+            return false;
+        
+        mHasDropped &= ~(1 << id);
+        outXs[0] = mDropped[id * 2];
+        outYs[0] = mDropped[id * 2 + 1];
+        mVertices++;
+        return true;
+    }
+    
+    // Samples given to start and simplify since this was created
+    public long getReceived() {
+        return mReceived;
+    }
+    
+    // Samples kept out of those, which become the paths' vertices
+    public long getVertices() {
+        return mVertices;
+    }
+}
@@ -0,0 +1,95 @@
+package usask.hci.fastdraw.core;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Keeps square tiles of ARGB pixels run-length encoded in direct buffers, off the Java heap, up to
+// a ceiling of bytes. Past it the least recently used tiles are dropped, and whoever stored them
+// has to rebuild them some other way. A tile's buffer is reused when it is stored again and still
+// fits, so a tile that keeps being evicted and reloaded settles on one buffer.
+public class TileStore {
+    private int mTileSize;
+    private long mCeiling;
+    private long mUsed;
+    private LinkedHashMap<Integer, ByteBuffer> mTiles; // in order of use, oldest first
+    private ByteBuffer mEncoded;
+    
+    public TileStore(int tileSize, long ceiling) {
+        mTileSize = tileSize;
+        mCeiling = ceiling;
+        mTiles = new LinkedHashMap<Integer, ByteBuffer>(64, 0.75f, true);
+        mEncoded = ByteBuffer.allocate(RunLengthCodec.maxEncodedSize(tileSize, tileSize));
+    }
+    
+    public void setCeiling(long ceiling) {
+        mCeiling = ceiling;
+        evict();
+    }
+    
+    // Bytes of direct memory held
+    public long getUsed() {
+        return mUsed;
+    }
+    
+    // Stores a tile of tileSize * tileSize packed pixels, returning the size it was encoded to
+    public int put(int index, int[] pixels) {
+        mEncoded.clear();
+        RunLengthCodec.encode(pixels, 0, mTileSize, mTileSize, mTileSize, mEncoded);
+        mEncoded.flip();
+        
+        int size = mEncoded.remaining();
+        ByteBuffer tile = mTiles.remove(index);
+        
+        if (tile != null && (tile.capacity() < size || tile.capacity() > size * 2)) {
+            mUsed -= tile.capacity();
+            tile = null;
+        }
+        
+        if (tile == null) {
+            tile = ByteBuffer.allocateDirect(size);
+            mUsed += size;
+        }
+        
+        tile.clear();
+        tile.put(mEncoded);
+        tile.flip();
+        mTiles.put(index, tile);
+        evict();
+        return size;
+    }
+    
+    // Decodes a tile into pixels, returning false if it is not stored
+    public boolean get(int index, int[] pixels) {
+        ByteBuffer tile = mTiles.get(index);
+        
+        if (tile == null)
+            return false;
+        
+        tile.rewind();
+        RunLengthCodec.decode(tile, pixels, 0, mTileSize, mTileSize, mTileSize);
+        return true;
+    }
+    
+    public void remove(int index) {
+        ByteBuffer tile = mTiles.remove(index);
+        
+        if (tile != null)
+            mUsed -= tile.capacity();
+    }
+    
+    public void clear() {
+        mTiles.clear();
+        mUsed = 0;
+    }
+    
+    private void evict() {
+        Iterator<Map.Entry<Integer, ByteBuffer>> oldest = mTiles.entrySet().iterator();
+        
+        while (mUsed > mCeiling && oldest.hasNext()) {
+            mUsed -= oldest.next().getValue().capacity();
+            oldest.remove();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package usask.hci.fastdraw.core;
+
+// Maps between view coordinates and the coordinates of a canvas that can be larger than the view.
+// The view shows the canvas scaled by mScale from the canvas point mLeft, mTop. Zooming out stops
+// once the whole canvas fits, and panning stops at its edges, so the view is always covered.
+public class Viewport {
+    private int mViewWidth;
+    private int mViewHeight;
+    private int mCanvasWidth;
+    private int mCanvasHeight;
+    private float mMinScale;
+    private float mMaxScale;
+    private float mScale;
+    private float mLeft;
+    private float mTop;
+    
+    public Viewport(float maxScale) {
+        mMaxScale = maxScale;
+        mMinScale = 1;
+        mScale = 1;
+    }
+    
+    // Starts over at full size from the canvas' top left corner
+    public void setSize(int viewWidth, int viewHeight, int canvasWidth, int canvasHeight) {
+        mViewWidth = viewWidth;
+        mViewHeight = viewHeight;
+        mCanvasWidth = canvasWidth;
+        mCanvasHeight = canvasHeight;
+        mMinScale = Math.min(1, Math.max((float) viewWidth / canvasWidth, (float) viewHeight / canvasHeight));
+        mScale = 1;
+        mLeft = 0;
+        mTop = 0;
+    }
+    
+    public float getScale() {
+        return mScale;
+    }
+    
+    // The canvas point at the view's top left corner
+    public float getLeft() {
+        return mLeft;
+    }
+    
+    public float getTop() {
+        return mTop;
+    }
+    
+    public float toCanvasX(float x) {
+        return mLeft + x / mScale;
+    }
+    
+    public float toCanvasY(float y) {
+        return mTop + y / mScale;
+    }
+    
+    public float toViewX(float x) {
+        return (x - mLeft) * mScale;
+    }
+    
+    public float toViewY(float y) {
+        return (y - mTop) * mScale;
+    }
+    
+    // Zooms to scale, clamped, and pans so the canvas point x, y is at the view point viewX, viewY
+    // or as close as the canvas' edges allow. Returns whether anything changed.
+    public boolean place(float x, float y, float viewX, float viewY, float scale) {
+        float newScale = Math.max(mMinScale, Math.min(mMaxScale, scale));
+        float left = clamp(x - viewX / newScale, mCanvasWidth - mViewWidth / newScale);
+        float top = clamp(y - viewY / newScale, mCanvasHeight - mViewHeight / newScale);
+        
+        if (newScale == mScale && left == mLeft && top == mTop)
+            return false;
+        
+        mScale = newScale;
+        mLeft = left;
+        mTop = top;
+        return true;
+    }
+    
+    private static float clamp(float origin, float max) {
+        return Math.max(0, Math.min(max, origin));
+    }
+}
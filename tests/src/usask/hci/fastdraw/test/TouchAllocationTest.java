@@ -0,0 +1,151 @@
+package usask.hci.fastdraw.test;
+
+import android.os.Debug;
+import android.os.SystemClock;
+import android.test.ActivityInstrumentationTestCase2;
+import android.view.InputDevice;
+import android.view.MotionEvent;
+import android.view.ViewGroup;
+
+import usask.hci.fastdraw.DrawView;
+import usask.hci.fastdraw.MainActivity;
+
+// Counts the objects the UI thread allocates while DrawView handles the moves of a multi-finger
+// paintbrush gesture: onTouchEvent, the tool's touchMoveBatch, the dirty rectangles and the
+// undo history's markDirty. The events are made before counting starts and a first gesture
+// warms up the per-pointer buffers, so only the move path itself is counted. Runs on a device
+// or emulator as an instrumentation test of the app:
+// android update test-project -m .. -p tests
+// ant -f tests/build.xml debug install test
+public class TouchAllocationTest extends ActivityInstrumentationTestCase2<MainActivity> {
+    private static final int mFingers = 5;
+    private static final int mMoves = 200;
+    private static final int mBatchSize = 4; // samples per move event, counting the historical ones
+    
+    private DrawView mView;
+    
+    public TouchAllocationTest() {
+        super(MainActivity.class);
+    }
+    
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        
+        ViewGroup content = (ViewGroup) getActivity().findViewById(android.R.id.content);
+        mView = (DrawView) content.getChildAt(0);
+        getInstrumentation().waitForIdleSync();
+    }
+    
+    public void testPaintMovesAllocateNothing() throws Throwable {
+        final MotionEvent[] warmUp = gesture(0);
+        final MotionEvent[] measured = gesture(mMoves * 20);
+        final int[] allocated = new int[1];
+        
+        runTestOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                play(warmUp, 0, warmUp.length);
+                
+                // The fingers go down and lift outside the count, since finishing a stroke may
+                // grow the command log
+                play(measured, 0, mFingers);
+                
+                Debug.startAllocCounting();
+                Debug.resetThreadAllocCount();
+                play(measured, mFingers, mFingers + mMoves);
+                allocated[0] = Debug.getThreadAllocCount();
+                Debug.stopAllocCounting();
+                
+                play(measured, mFingers + mMoves, measured.length);
+            }
+        });
+        
+        recycle(warmUp);
+        recycle(measured);
+        assertEquals("Objects allocated by " + mMoves + " move events", 0, allocated[0]);
+    }
+    
+    private void play(MotionEvent[] events, int from, int to) {
+        for (int i = from; i < to; i++) {
+            mView.dispatchTouchEvent(events[i]);
+        }
+    }
+    
+    private void recycle(MotionEvent[] events) {
+        for (MotionEvent event : events) {
+            event.recycle();
+        }
+    }
+    
+    // The fingers go down one at a time, draw wavy strokes across the top of the view in mMoves
+    // batched moves, and lift in reverse order. Strokes stay clear of the grid's bottom row,
+    // where the command map button is.
+    private MotionEvent[] gesture(long start) {
+        MotionEvent[] events = new MotionEvent[mFingers * 2 + mMoves];
+        MotionEvent.PointerProperties[] properties = new MotionEvent.PointerProperties[mFingers];
+        MotionEvent.PointerCoords[] coords = new MotionEvent.PointerCoords[mFingers];
+        long downTime = SystemClock.uptimeMillis() + start;
+        int width = mView.getWidth();
+        int height = mView.getHeight();
+        int n = 0;
+        
+        for (int i = 0; i < mFingers; i++) {
+            properties[i] = new MotionEvent.PointerProperties();
+            properties[i].id = i;
+            properties[i].toolType = MotionEvent.TOOL_TYPE_FINGER;
+            coords[i] = new MotionEvent.PointerCoords();
+            coords[i].pressure = 1;
+            coords[i].size = 1;
+            place(coords[i], i, 0, width, height);
+        }
+        
+        for (int i = 0; i < mFingers; i++) {
+            int action = i == 0 ? MotionEvent.ACTION_DOWN
+                    : MotionEvent.ACTION_POINTER_DOWN | (i << MotionEvent.ACTION_POINTER_INDEX_SHIFT);
+            events[n++] = obtain(downTime, downTime + i, action, i + 1, properties, coords);
+        }
+        
+        for (int move = 0; move < mMoves; move++) {
+            long time = downTime + mFingers + move * 16;
+            MotionEvent event = null;
+            
+            for (int sample = 0; sample < mBatchSize; sample++) {
+                for (int i = 0; i < mFingers; i++) {
+                    place(coords[i], i, move * mBatchSize + sample + 1, width, height);
+                }
+                
+                long sampleTime = time + sample * 4;
+                
+                if (event == null)
+                    event = obtain(downTime, sampleTime, MotionEvent.ACTION_MOVE, mFingers, properties, coords);
+                else
+                    event.addBatch(sampleTime, coords, 0);
+            }
+            
+            events[n++] = event;
+        }
+        
+        long upTime = downTime + mFingers + mMoves * 16;
+        
+        for (int i = mFingers - 1; i >= 0; i--) {
+            int action = i == 0 ? MotionEvent.ACTION_UP
+                    : MotionEvent.ACTION_POINTER_UP | (i << MotionEvent.ACTION_POINTER_INDEX_SHIFT);
+            events[n++] = obtain(downTime, upTime + mFingers - i, action, i + 1, properties, coords);
+        }
+        
+        return events;
+    }
+    
+    private void place(MotionEvent.PointerCoords coords, int finger, int sample, int width, int height) {
+        int samples = mMoves * mBatchSize;
+        coords.x = width * (0.1f + 0.8f * sample / samples);
+        coords.y = height * (0.08f + 0.12f * finger) + (float) Math.sin(sample / 8.0) * 20;
+    }
+    
+    private static MotionEvent obtain(long downTime, long eventTime, int action, int pointerCount,
+            MotionEvent.PointerProperties[] properties, MotionEvent.PointerCoords[] coords) {
+        return MotionEvent.obtain(downTime, eventTime, action, pointerCount, properties, coords,
+                0, 0, 1, 1, 0, 0, InputDevice.SOURCE_TOUCHSCREEN, 0);
+    }
+}